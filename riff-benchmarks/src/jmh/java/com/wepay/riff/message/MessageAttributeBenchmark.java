@@ -0,0 +1,275 @@
+package com.wepay.riff.message;
+
+import com.wepay.riff.network.MessageAttributeReader;
+import com.wepay.riff.network.MessageAttributeWriter;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes and decodes a message with the {@link ByteBuf} based, the compact, and the byte array based attribute
+ * writers and readers. The int array holds small values like ids, which the compact encoding shrinks.
+ * The dictionary cases write the string as an id from a warm per-connection dictionary (only if it is short enough).
+ * The reused cases reset one writer or reader instance for every message like the encoder and the decoder do.
+ * The long array cases compare the bulk array operations with writing and reading the elements one by one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageAttributeBenchmark {
+
+    @Param({"16", "1024"})
+    private int arraySize;
+
+    private byte[] bytes;
+    private int[] ints;
+    private String text;
+    private long[] longs;
+
+    private ByteBuf buf;
+    private ByteBuf encodedBuf;
+    private int encodedLength;
+    private byte[] encodedBytes;
+    private ByteBuf compactEncodedBuf;
+    private int compactEncodedLength;
+    private DictionaryMessageAttributeWriter.Dictionary writerDictionary;
+    private DictionaryMessageAttributeReader.Dictionary readerDictionary;
+    private ByteBuf dictionaryEncodedBuf;
+    private int dictionaryEncodedLength;
+    private ByteBufMessageAttributeWriter reusedWriter;
+    private ByteBufMessageAttributeReader reusedReader;
+    private ByteArrayMessageAttributeWriter reusedArrayWriter;
+    private ByteBuf longsEncodedBuf;
+    private int longsEncodedLength;
+
+    @Setup
+    public void setup() {
+        bytes = new byte[arraySize];
+        Arrays.fill(bytes, (byte) 'x');
+        ints = new int[arraySize];
+        for (int i = 0; i < arraySize; i++) {
+            ints[i] = i;
+        }
+        text = new String(bytes);
+        longs = new long[arraySize];
+        for (int i = 0; i < arraySize; i++) {
+            longs[i] = System.nanoTime() + i;
+        }
+
+        buf = PooledByteBufAllocator.DEFAULT.directBuffer();
+
+        ByteArrayMessageAttributeWriter writer = new ByteArrayMessageAttributeWriter();
+        write(writer);
+        encodedBytes = writer.toByteArray();
+        encodedLength = encodedBytes.length;
+        encodedBuf = PooledByteBufAllocator.DEFAULT.directBuffer(encodedLength);
+        encodedBuf.writeBytes(encodedBytes);
+
+        compactEncodedBuf = PooledByteBufAllocator.DEFAULT.directBuffer();
+        CompactByteBufMessageAttributeWriter compactWriter = new CompactByteBufMessageAttributeWriter(compactEncodedBuf);
+        write(compactWriter);
+        compactEncodedLength = compactWriter.bytesWritten();
+
+        // Warm up the dictionaries with two messages, since a string is added when it is seen the second time,
+        // then encode the third one with ids
+        writerDictionary = new DictionaryMessageAttributeWriter.Dictionary();
+        readerDictionary = new DictionaryMessageAttributeReader.Dictionary();
+        dictionaryEncodedBuf = PooledByteBufAllocator.DEFAULT.directBuffer();
+        MessageAttributeWriter dictionaryWriter;
+        for (int i = 0; i < 2; i++) {
+            dictionaryWriter = new DictionaryMessageAttributeWriter(
+                new CompactByteBufMessageAttributeWriter(dictionaryEncodedBuf), writerDictionary
+            );
+            write(dictionaryWriter);
+            MessageAttributeReader dictionaryReader = new DictionaryMessageAttributeReader(
+                new CompactByteBufMessageAttributeReader(dictionaryEncodedBuf, dictionaryWriter.bytesWritten()),
+                readerDictionary
+            );
+            dictionaryReader.readByte();
+            dictionaryReader.readInt();
+            dictionaryReader.readLong();
+            dictionaryReader.readBoolean();
+            dictionaryReader.readString();
+            dictionaryEncodedBuf.clear();
+        }
+        dictionaryWriter = new DictionaryMessageAttributeWriter(
+            new CompactByteBufMessageAttributeWriter(dictionaryEncodedBuf), writerDictionary
+        );
+        write(dictionaryWriter);
+        dictionaryEncodedLength = dictionaryWriter.bytesWritten();
+
+        reusedWriter = new ByteBufMessageAttributeWriter(buf);
+        reusedReader = new ByteBufMessageAttributeReader(encodedBuf, encodedLength);
+        reusedArrayWriter = new ByteArrayMessageAttributeWriter(encodedLength);
+
+        longsEncodedBuf = PooledByteBufAllocator.DEFAULT.directBuffer();
+        ByteBufMessageAttributeWriter longsWriter = new ByteBufMessageAttributeWriter(longsEncodedBuf);
+        longsWriter.writeLongArray(longs);
+        longsEncodedLength = longsWriter.bytesWritten();
+    }
+
+    @TearDown
+    public void tearDown() {
+        buf.release();
+        encodedBuf.release();
+        compactEncodedBuf.release();
+        dictionaryEncodedBuf.release();
+        longsEncodedBuf.release();
+    }
+
+    @Benchmark
+    public int byteBufEncode() {
+        buf.clear();
+        ByteBufMessageAttributeWriter writer = new ByteBufMessageAttributeWriter(buf);
+        write(writer);
+        return writer.bytesWritten();
+    }
+
+    @Benchmark
+    public int reusedByteBufEncode() {
+        buf.clear();
+        reusedWriter.reset(buf);
+        write(reusedWriter);
+        return reusedWriter.bytesWritten();
+    }
+
+    @Benchmark
+    public int compactEncode() {
+        buf.clear();
+        CompactByteBufMessageAttributeWriter writer = new CompactByteBufMessageAttributeWriter(buf);
+        write(writer);
+        return writer.bytesWritten();
+    }
+
+    @Benchmark
+    public int dictionaryEncode() {
+        buf.clear();
+        DictionaryMessageAttributeWriter writer =
+            new DictionaryMessageAttributeWriter(new CompactByteBufMessageAttributeWriter(buf), writerDictionary);
+        write(writer);
+        return writer.bytesWritten();
+    }
+
+    @Benchmark
+    public byte[] byteArrayEncode() {
+        ByteArrayMessageAttributeWriter writer = new ByteArrayMessageAttributeWriter();
+        write(writer);
+        return writer.toByteArray();
+    }
+
+    @Benchmark
+    public int reusedByteArrayEncode() {
+        reusedArrayWriter.reset();
+        write(reusedArrayWriter);
+        return reusedArrayWriter.bytesWritten();
+    }
+
+    @Benchmark
+    public void byteBufDecode(Blackhole blackhole) {
+        encodedBuf.readerIndex(0);
+        read(new ByteBufMessageAttributeReader(encodedBuf, encodedLength), blackhole);
+    }
+
+    @Benchmark
+    public void reusedByteBufDecode(Blackhole blackhole) {
+        encodedBuf.readerIndex(0);
+        reusedReader.reset(encodedBuf, encodedLength);
+        read(reusedReader, blackhole);
+    }
+
+    @Benchmark
+    public void compactDecode(Blackhole blackhole) {
+        compactEncodedBuf.readerIndex(0);
+        read(new CompactByteBufMessageAttributeReader(compactEncodedBuf, compactEncodedLength), blackhole);
+    }
+
+    @Benchmark
+    public void dictionaryDecode(Blackhole blackhole) {
+        dictionaryEncodedBuf.readerIndex(0);
+        read(new DictionaryMessageAttributeReader(
+            new CompactByteBufMessageAttributeReader(dictionaryEncodedBuf, dictionaryEncodedLength), readerDictionary
+        ), blackhole);
+    }
+
+    @Benchmark
+    public void byteArrayDecode(Blackhole blackhole) {
+        read(new ByteArrayMessageAttributeReader(encodedBytes), blackhole);
+    }
+
+    @Benchmark
+    public int longArrayEncode() {
+        buf.clear();
+        reusedWriter.reset(buf);
+        reusedWriter.writeLongArray(longs);
+        return reusedWriter.bytesWritten();
+    }
+
+    @Benchmark
+    public int longLoopEncode() {
+        buf.clear();
+        reusedWriter.reset(buf);
+        reusedWriter.writeInt(longs.length);
+        for (long value : longs) {
+            reusedWriter.writeLong(value);
+        }
+        return reusedWriter.bytesWritten();
+    }
+
+    @Benchmark
+    public long[] longArrayDecode() {
+        longsEncodedBuf.readerIndex(0);
+        reusedReader.reset(longsEncodedBuf, longsEncodedLength);
+        return reusedReader.readLongArray();
+    }
+
+    @Benchmark
+    public long[] longLoopDecode() {
+        longsEncodedBuf.readerIndex(0);
+        reusedReader.reset(longsEncodedBuf, longsEncodedLength);
+        long[] array = new long[reusedReader.readInt()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = reusedReader.readLong();
+        }
+        return array;
+    }
+
+    private void write(MessageAttributeWriter writer) {
+        writer.writeByte((byte) 1);
+        writer.writeInt(arraySize);
+        writer.writeLong(System.identityHashCode(this));
+        writer.writeBoolean(true);
+        writer.writeString(text);
+        writer.writeByteArray(bytes);
+        writer.writeIntArray(ints);
+    }
+
+    private static void read(MessageAttributeReader reader, Blackhole blackhole) {
+        blackhole.consume(reader.readByte());
+        blackhole.consume(reader.readInt());
+        blackhole.consume(reader.readLong());
+        blackhole.consume(reader.readBoolean());
+        blackhole.consume(reader.readString());
+        blackhole.consume(reader.readByteArray());
+        blackhole.consume(reader.readIntArray());
+        reader.ensureReadCompletely();
+    }
+
+}
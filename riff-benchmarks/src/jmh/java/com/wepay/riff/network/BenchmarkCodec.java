@@ -0,0 +1,62 @@
+package com.wepay.riff.network;
+
+/**
+ * The codec of {@link BenchmarkMessage}.
+ */
+public class BenchmarkCodec implements MessageCodec {
+
+    public static final BenchmarkCodec INSTANCE = new BenchmarkCodec();
+
+    private static final byte MAGIC_BYTE = 'B';
+    private static final short VERSION = 0;
+
+    @Override
+    public byte magicByte() {
+        return MAGIC_BYTE;
+    }
+
+    @Override
+    public short version() {
+        return VERSION;
+    }
+
+    @Override
+    public Message decode(MessageAttributeReader reader) {
+        byte messageType = reader.readByte();
+
+        switch (messageType) {
+            case BenchmarkMessage.MESSAGE_TYPE:
+                return new BenchmarkMessage(reader.readByteArray());
+
+            default:
+                throw new IllegalStateException("unknown message type: " + messageType);
+        }
+    }
+
+    @Override
+    public void encode(Message message, MessageAttributeWriter writer) {
+        writer.writeByte(message.type());
+
+        switch (message.type()) {
+            case BenchmarkMessage.MESSAGE_TYPE:
+                writer.writeByteArray(((BenchmarkMessage) message).payload);
+                break;
+
+            default:
+                throw new IllegalStateException("unknown message type: " + message.type());
+        }
+    }
+
+    @Override
+    public int estimateSize(Message message) {
+        switch (message.type()) {
+            case BenchmarkMessage.MESSAGE_TYPE:
+                // type (1) + length prefix (4) + payload
+                return 1 + 4 + ((BenchmarkMessage) message).payload.length;
+
+            default:
+                return -1;
+        }
+    }
+
+}
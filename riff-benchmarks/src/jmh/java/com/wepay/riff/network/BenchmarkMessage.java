@@ -0,0 +1,21 @@
+package com.wepay.riff.network;
+
+/**
+ * A message with an opaque payload used by benchmarks.
+ */
+public class BenchmarkMessage extends Message {
+
+    public static final byte MESSAGE_TYPE = 1;
+
+    public final byte[] payload;
+
+    public BenchmarkMessage(byte[] payload) {
+        this.payload = payload;
+    }
+
+    @Override
+    public byte type() {
+        return MESSAGE_TYPE;
+    }
+
+}
@@ -0,0 +1,165 @@
+package com.wepay.riff.network;
+
+import com.wepay.riff.util.PortFinder;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends requests from a {@link NetworkClient} to an echo {@link NetworkServer} over the loopback interface, with and
+ * without SSL. {@link #roundTrip()} measures the latency distribution of a single request, and
+ * {@link #pipelined()} measures the throughput of a window of outstanding requests.
+ */
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoopbackBenchmark {
+
+    private static final int WINDOW = 100;
+    private static final long REQUEST_TIMEOUT_MILLIS = 10000L;
+    private static final long CONNECT_TIMEOUT_SECONDS = 10L;
+    private static final int QUEUE_LOW_THRESHOLD = 300;
+    private static final int QUEUE_HIGH_THRESHOLD = 500;
+
+    @Param({"false", "true"})
+    private boolean ssl;
+
+    @Param({"64", "4096"})
+    private int payloadSize;
+
+    private NetworkServer server;
+    private NetworkClient client;
+    private Message request;
+
+    @Setup
+    public void setup() throws Exception {
+        Map<Short, MessageCodec> codecs =
+            Collections.singletonMap(BenchmarkCodec.INSTANCE.version(), BenchmarkCodec.INSTANCE);
+
+        SslContext serverSslCtx = null;
+        SslContext clientSslCtx = null;
+        if (ssl) {
+            SelfSignedCertificate certificate = new SelfSignedCertificate();
+            serverSslCtx = SslContextBuilder.forServer(certificate.certificate(), certificate.privateKey()).build();
+            clientSslCtx = SslContextBuilder.forClient().trustManager(InsecureTrustManagerFactory.INSTANCE).build();
+        }
+
+        int port = new PortFinder().getPort();
+        server = new NetworkServer(port, serverSslCtx) {
+            @Override
+            protected MessageHandler getMessageHandler() {
+                MessageHandler handler = new EchoHandler(codecs, null);
+                handler.enableCorrelation();
+                return handler;
+            }
+        };
+
+        CountDownLatch connected = new CountDownLatch(1);
+        MessageHandler clientHandler = new EchoHandler(codecs, connected::countDown);
+        clientHandler.enableRequestTracking(REQUEST_TIMEOUT_MILLIS);
+
+        client = new NetworkClient(InetAddress.getLocalHost().getHostName(), port, clientSslCtx) {
+            @Override
+            protected MessageHandler getMessageHandler() {
+                return clientHandler;
+            }
+        };
+        client.open();
+
+        if (!connected.await(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("handshake timed out");
+        }
+
+        request = new BenchmarkMessage(new byte[payloadSize]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.close();
+        server.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Message roundTrip() throws Exception {
+        return client.sendRequest(request).get();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @OperationsPerInvocation(WINDOW)
+    public void pipelined() throws Exception {
+        @SuppressWarnings("unchecked")
+        CompletableFuture<Message>[] futures = new CompletableFuture[WINDOW];
+        for (int i = 0; i < WINDOW; i++) {
+            futures[i] = client.sendRequest(request);
+        }
+        CompletableFuture.allOf(futures).get();
+    }
+
+    /**
+     * Replies to requests with the request payload.
+     */
+    private static final class EchoHandler extends MessageHandler {
+
+        EchoHandler(Map<Short, MessageCodec> codecs, Runnable onChannelActive) {
+            super(codecs, "LoopbackBenchmark", new MessageHandlerCallbacks() {
+                @Override
+                public void onChannelActive() {
+                    if (onChannelActive != null) {
+                        onChannelActive.run();
+                    }
+                }
+
+                @Override
+                public void onChannelInactive() {
+                    // Do nothing
+                }
+
+                @Override
+                public void onWritabilityChanged(boolean isWritable) {
+                    // Do nothing
+                }
+
+                @Override
+                public void onExceptionCaught(Throwable ex) {
+                    // Do nothing
+                }
+            }, QUEUE_LOW_THRESHOLD, QUEUE_HIGH_THRESHOLD);
+        }
+
+        @Override
+        protected void process(Message msg) {
+            if (msg.type() == MessageType.CORRELATED) {
+                CorrelatedMessage request = (CorrelatedMessage) msg;
+                sendMessage(request.reply(request.payload), true);
+            }
+        }
+
+    }
+
+}
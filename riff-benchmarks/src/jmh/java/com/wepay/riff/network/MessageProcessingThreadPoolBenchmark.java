@@ -0,0 +1,90 @@
+package com.wepay.riff.network;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fans messages out to many {@link MessageProcessor}s sharing a {@link MessageProcessingThreadPool}, and waits until
+ * all of them are processed. Each message simulates a small amount of work.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageProcessingThreadPoolBenchmark {
+
+    private static final int NUM_PROCESSORS = 64;
+    private static final int MESSAGES_PER_PROCESSOR = 16;
+    private static final int WORK_TOKENS = 100;
+
+    @Param({"1", "4"})
+    private int numThreads;
+
+    @Param({"SHARED_QUEUE", "WORK_STEALING"})
+    private MessageProcessingThreadPool.Scheduler scheduler;
+
+    private final AtomicLong processed = new AtomicLong(0L);
+    private final Message message = new BenchmarkMessage(new byte[0]);
+
+    private MessageProcessingThreadPool threadPool;
+    private MessageProcessor[] processors;
+    private long offered = 0L;
+
+    @Setup
+    public void setup() {
+        threadPool = new MessageProcessingThreadPool(numThreads, scheduler).open();
+        Throttling throttling = new Throttling(Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+        processors = new MessageProcessor[NUM_PROCESSORS];
+        for (int i = 0; i < NUM_PROCESSORS; i++) {
+            processors[i] = new MessageProcessor(throttling, threadPool) {
+                @Override
+                protected void processMessage(Message msg) {
+                    Blackhole.consumeCPU(WORK_TOKENS);
+                    processed.incrementAndGet();
+                }
+            };
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (MessageProcessor processor : processors) {
+            processor.close();
+        }
+        threadPool.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_PROCESSORS * MESSAGES_PER_PROCESSOR)
+    public void fanOut() {
+        for (int i = 0; i < MESSAGES_PER_PROCESSOR; i++) {
+            for (MessageProcessor processor : processors) {
+                processor.offer(message);
+            }
+        }
+        offered += NUM_PROCESSORS * MESSAGES_PER_PROCESSOR;
+
+        while (processed.get() < offered) {
+            Thread.yield();
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+package com.wepay.riff.network;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Offers messages to a {@link MessageProcessor} and waits until they are processed by the thread pool.
+ * The score is the time per message, including throttling, queueing and scheduling.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageProcessorBenchmark {
+
+    private static final int MESSAGES_PER_INVOCATION = 1000;
+
+    @Param({"1", "64"})
+    private int maxMessagesPerTurn;
+
+    private final AtomicLong processed = new AtomicLong(0L);
+    private final Message message = new BenchmarkMessage(new byte[0]);
+
+    private MessageProcessingThreadPool threadPool;
+    private MessageProcessor processor;
+    private long offered = 0L;
+
+    @Setup
+    public void setup() {
+        threadPool = new MessageProcessingThreadPool(1).open();
+        processor = new MessageProcessor(
+            new Throttling(Integer.MAX_VALUE, Integer.MAX_VALUE), threadPool, maxMessagesPerTurn, 0L
+        ) {
+            @Override
+            protected void processMessage(Message msg) {
+                processed.incrementAndGet();
+            }
+
+            @Override
+            protected void processMessages(List<Message> msgs) {
+                processed.addAndGet(msgs.size());
+            }
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        processor.close();
+        threadPool.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES_PER_INVOCATION)
+    public void offerAndProcess() {
+        for (int i = 0; i < MESSAGES_PER_INVOCATION; i++) {
+            processor.offer(message);
+        }
+        offered += MESSAGES_PER_INVOCATION;
+
+        while (processed.get() < offered) {
+            Thread.yield();
+        }
+    }
+
+}
@@ -0,0 +1,195 @@
+package com.wepay.riff.network;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the CPU cost of the JDK and the OpenSSL providers with SSL contexts built by {@link ServerSSL} and
+ * {@link ClientSSL}. The engines exchange records in memory, so the network is not involved.
+ * {@link #handshake(HandshakeState)} measures a full handshake, or an abbreviated one with a resumed session, and
+ * {@link #wrapUnwrap(TransferState)} measures encrypting and decrypting one record.
+ * <p>
+ * The OpenSSL provider requires netty-tcnative, which is a runtime dependency of this module. The OpenSSL client of
+ * this netty version does not resume sessions, so the resumed handshake is a full handshake with OpenSSL.
+ * Both ends use TLSv1.2 so that the providers are compared on the same protocol.
+ */
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SSLBenchmark {
+
+    private static final String HOST = "localhost";
+    private static final int MAX_HANDSHAKE_ROUNDS = 100;
+
+    @State(Scope.Thread)
+    public static class HandshakeState {
+
+        @Param({SSLConfig.PROVIDER_JDK, SSLConfig.PROVIDER_OPENSSL})
+        private String provider;
+
+        @Param({"false", "true"})
+        private boolean resume;
+
+        private SslContext serverSslCtx;
+        private SslContext clientSslCtx;
+        // A new peer port for every handshake avoids resuming a session
+        private int port;
+
+        @Setup
+        public void setup() throws Exception {
+            serverSslCtx = ServerSSL.createContext(config(provider));
+            clientSslCtx = ClientSSL.createContext(config(provider));
+            port = 1;
+        }
+
+    }
+
+    @State(Scope.Thread)
+    public static class TransferState {
+
+        @Param({SSLConfig.PROVIDER_JDK, SSLConfig.PROVIDER_OPENSSL})
+        private String provider;
+
+        @Param({"1024", "16384"})
+        private int recordSize;
+
+        private SSLEngine client;
+        private SSLEngine server;
+        private ByteBuffer payload;
+        private ByteBuffer network;
+        private ByteBuffer received;
+
+        @Setup
+        public void setup() throws Exception {
+            client = ClientSSL.createContext(config(provider)).newEngine(ByteBufAllocator.DEFAULT, HOST, 1);
+            server = ServerSSL.createContext(config(provider)).newEngine(ByteBufAllocator.DEFAULT);
+            handshake(client, server);
+
+            payload = ByteBuffer.allocateDirect(recordSize);
+            network = ByteBuffer.allocateDirect(client.getSession().getPacketBufferSize());
+            received = ByteBuffer.allocateDirect(server.getSession().getApplicationBufferSize());
+        }
+
+        @TearDown
+        public void tearDown() {
+            ReferenceCountUtil.release(client);
+            ReferenceCountUtil.release(server);
+        }
+
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean handshake(HandshakeState state) throws SSLException {
+        int port = state.resume ? 0 : state.port++;
+        SSLEngine client = state.clientSslCtx.newEngine(ByteBufAllocator.DEFAULT, HOST, port);
+        SSLEngine server = state.serverSslCtx.newEngine(ByteBufAllocator.DEFAULT);
+        try {
+            handshake(client, server);
+            return client.getSession().isValid();
+
+        } finally {
+            ReferenceCountUtil.release(client);
+            ReferenceCountUtil.release(server);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int wrapUnwrap(TransferState state) throws SSLException {
+        state.payload.clear();
+        state.network.clear();
+        check(state.client.wrap(state.payload, state.network));
+
+        state.network.flip();
+        state.received.clear();
+        check(state.server.unwrap(state.network, state.received));
+
+        return state.received.position();
+    }
+
+    private static SSLConfig config(String provider) {
+        Properties props = new Properties();
+        props.setProperty(SSLConfig.PROVIDER, provider);
+        props.setProperty(SSLConfig.PROTOCOLS, "TLSv1.2");
+        // Bounds the caches filled by full handshakes
+        props.setProperty(SSLConfig.SESSION_CACHE_SIZE, "1000");
+        if (SSLConfig.PROVIDER_OPENSSL.equals(provider)) {
+            props.setProperty(SSLConfig.SESSION_TICKETS, "true");
+        }
+        return new SSLConfig("", props);
+    }
+
+    private static void handshake(SSLEngine client, SSLEngine server) throws SSLException {
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        ByteBuffer clientToServer = ByteBuffer.allocateDirect(client.getSession().getPacketBufferSize());
+        ByteBuffer serverToClient = ByteBuffer.allocateDirect(server.getSession().getPacketBufferSize());
+        ByteBuffer clientApp = ByteBuffer.allocateDirect(client.getSession().getApplicationBufferSize());
+        ByteBuffer serverApp = ByteBuffer.allocateDirect(server.getSession().getApplicationBufferSize());
+
+        client.beginHandshake();
+        server.beginHandshake();
+
+        for (int i = 0; i < MAX_HANDSHAKE_ROUNDS; i++) {
+            if (isHandshakeDone(client) && isHandshakeDone(server)) {
+                return;
+            }
+            client.wrap(empty, clientToServer);
+            runDelegatedTasks(client);
+            server.wrap(empty, serverToClient);
+            runDelegatedTasks(server);
+
+            clientToServer.flip();
+            server.unwrap(clientToServer, serverApp);
+            clientToServer.compact();
+            runDelegatedTasks(server);
+
+            serverToClient.flip();
+            client.unwrap(serverToClient, clientApp);
+            serverToClient.compact();
+            runDelegatedTasks(client);
+        }
+
+        throw new IllegalStateException("handshake did not complete");
+    }
+
+    private static boolean isHandshakeDone(SSLEngine engine) {
+        return engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+    }
+
+    private static void runDelegatedTasks(SSLEngine engine) {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private static void check(SSLEngineResult result) {
+        if (result.getStatus() != SSLEngineResult.Status.OK) {
+            throw new IllegalStateException("unexpected result: " + result);
+        }
+    }
+
+}
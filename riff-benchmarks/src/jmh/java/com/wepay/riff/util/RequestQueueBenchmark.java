@@ -0,0 +1,157 @@
+package com.wepay.riff.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enqueues and dequeues requests with {@link RequestQueue} and {@link BoundedRequestQueue}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestQueueBenchmark {
+
+    private static final int CAPACITY = 1000;
+    private static final int MAX_BATCH_SIZE = 100;
+    private static final Object REQUEST = new Object();
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        private RequestQueue<Object> queue;
+
+        @Setup
+        public void setup() {
+            queue = new RequestQueue<>(new ArrayBlockingQueue<>(CAPACITY));
+        }
+
+        @TearDown
+        public void tearDown() {
+            queue.close();
+        }
+
+    }
+
+    @State(Scope.Thread)
+    public static class BoundedThreadState {
+
+        private BoundedRequestQueue<Object> queue;
+
+        @Setup
+        public void setup() {
+            queue = new BoundedRequestQueue<>(CAPACITY);
+        }
+
+        @TearDown
+        public void tearDown() {
+            queue.close();
+        }
+
+    }
+
+    @State(Scope.Group)
+    public static class GroupState {
+
+        private RequestQueue<Object> queue;
+
+        @Setup
+        public void setup() {
+            queue = new RequestQueue<>(new ArrayBlockingQueue<>(CAPACITY));
+        }
+
+        @TearDown
+        public void tearDown() {
+            queue.close();
+        }
+
+    }
+
+    @State(Scope.Group)
+    public static class BoundedGroupState {
+
+        private BoundedRequestQueue<Object> queue;
+        private final ArrayList<Object> batch = new ArrayList<>(MAX_BATCH_SIZE);
+
+        @Setup
+        public void setup() {
+            queue = new BoundedRequestQueue<>(CAPACITY);
+        }
+
+        @TearDown
+        public void tearDown() {
+            queue.close();
+        }
+
+    }
+
+    /**
+     * Enqueues and dequeues a request on the same thread, no contention.
+     */
+    @Benchmark
+    public Object enqueueDequeue(ThreadState state) {
+        state.queue.enqueue(REQUEST);
+        return state.queue.dequeue();
+    }
+
+    /**
+     * Enqueues from one thread while another thread dequeues in batches. Both sides check the size first so that
+     * neither blocks when the other side stops at the end of an iteration.
+     */
+    @Benchmark
+    @Group("producerConsumer")
+    @GroupThreads(1)
+    public boolean produce(GroupState state) {
+        return state.queue.size() < CAPACITY && state.queue.enqueue(REQUEST);
+    }
+
+    @Benchmark
+    @Group("producerConsumer")
+    @GroupThreads(1)
+    public List<Object> consume(GroupState state) {
+        return state.queue.size() > 0 ? state.queue.dequeue(MAX_BATCH_SIZE) : null;
+    }
+
+    @Benchmark
+    public Object boundedEnqueueDequeue(BoundedThreadState state) {
+        state.queue.enqueue(REQUEST);
+        return state.queue.dequeue();
+    }
+
+    /**
+     * Same as {@link #produce(GroupState)} and {@link #consume(GroupState)} with four producers, the consumer drains
+     * batches into a reused list like {@link com.wepay.riff.network.NetworkClient} does.
+     */
+    @Benchmark
+    @Group("boundedProducerConsumer")
+    @GroupThreads(4)
+    public boolean boundedProduce(BoundedGroupState state) {
+        return state.queue.size() < CAPACITY && state.queue.enqueue(REQUEST);
+    }
+
+    @Benchmark
+    @Group("boundedProducerConsumer")
+    @GroupThreads(1)
+    public int boundedConsume(BoundedGroupState state) {
+        state.batch.clear();
+        return state.queue.drainTo(state.batch, MAX_BATCH_SIZE);
+    }
+
+}
@@ -1,12 +1,14 @@
 package com.wepay.riff.message;
 
 import com.wepay.riff.network.MessageAttributeReader;
+import com.wepay.riff.util.IntArrayList;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.List;
 
 public class ByteArrayMessageAttributeReader extends MessageAttributeReader {
@@ -83,6 +85,17 @@ public class ByteArrayMessageAttributeReader extends MessageAttributeReader {
         }
     }
 
+    public ByteBuf readByteBufSlice() {
+        byte[] array = readByteArray();
+
+        if (array != null) {
+            return Unpooled.wrappedBuffer(array);
+
+        } else {
+            return null;
+        }
+    }
+
     public short[] readShortArray() {
         try {
             int arrayLength = buf.readInt();
@@ -126,11 +139,98 @@ public class ByteArrayMessageAttributeReader extends MessageAttributeReader {
             int arrayLength = buf.readInt();
 
             if (arrayLength >= 0) {
-                List<Integer> arrayList = new ArrayList<>(arrayLength);
+                int[] array = new int[arrayLength];
+                for (int i = 0; i < arrayLength; i++) {
+                    array[i] = readInt();
+                }
+                return new IntArrayList(array);
+
+            } else {
+                return null;
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException("corrupted message");
+        }
+    }
+
+    public long[] readLongArray() {
+        try {
+            int arrayLength = buf.readInt();
+
+            if (arrayLength >= 0) {
+                checkArraySize(arrayLength, 8);
+
+                long[] array = new long[arrayLength];
+                for (int i = 0; i < arrayLength; i++) {
+                    array[i] = buf.readLong();
+                }
+                return array;
+
+            } else {
+                return null;
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException("corrupted message");
+        }
+    }
+
+    public double[] readDoubleArray() {
+        try {
+            int arrayLength = buf.readInt();
+
+            if (arrayLength >= 0) {
+                checkArraySize(arrayLength, 8);
+
+                double[] array = new double[arrayLength];
+                for (int i = 0; i < arrayLength; i++) {
+                    array[i] = buf.readDouble();
+                }
+                return array;
+
+            } else {
+                return null;
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException("corrupted message");
+        }
+    }
+
+    public float[] readFloatArray() {
+        try {
+            int arrayLength = buf.readInt();
+
+            if (arrayLength >= 0) {
+                checkArraySize(arrayLength, 4);
+
+                float[] array = new float[arrayLength];
+                for (int i = 0; i < arrayLength; i++) {
+                    array[i] = buf.readFloat();
+                }
+                return array;
+
+            } else {
+                return null;
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException("corrupted message");
+        }
+    }
+
+    public boolean[] readBooleanArray() {
+        try {
+            int arrayLength = buf.readInt();
+
+            if (arrayLength >= 0) {
+                checkArraySize(PrimitiveArrays.bitsetSize(arrayLength), 1);
+
+                byte[] bits = new byte[PrimitiveArrays.bitsetSize(arrayLength)];
+                buf.readFully(bits);
+
+                boolean[] array = new boolean[arrayLength];
                 for (int i = 0; i < arrayLength; i++) {
-                    arrayList.add(readInt());
+                    array[i] = (bits[i >>> 3] & (1 << (i & 7))) != 0;
                 }
-                return arrayList;
+                return array;
 
             } else {
                 return null;
@@ -178,4 +278,11 @@ public class ByteArrayMessageAttributeReader extends MessageAttributeReader {
         }
     }
 
+    private void checkArraySize(int arrayLength, int elementSize) throws IOException {
+        // The remaining bytes of a byte array input stream are available
+        if (buf.available() / elementSize < arrayLength) {
+            throw new IllegalStateException("corrupted message");
+        }
+    }
+
 }
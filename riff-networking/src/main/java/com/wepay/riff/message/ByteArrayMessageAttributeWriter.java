@@ -1,137 +1,190 @@
 package com.wepay.riff.message;
 
 import com.wepay.riff.network.MessageAttributeWriter;
+import com.wepay.riff.util.IntArrayList;
+import io.netty.buffer.ByteBuf;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.List;
 
+/**
+ * A writer which writes attributes in big-endian order straight into a growable byte array. The format is the same
+ * as {@link ByteBufMessageAttributeWriter}. An instance can be reused after {@link #reset()}.
+ */
 public class ByteArrayMessageAttributeWriter extends MessageAttributeWriter {
 
-    private final ByteArrayOutputStream baos;
-    private final DataOutputStream buf;
+    // The same as the default initial capacity of java.io.ByteArrayOutputStream
+    private static final int DEFAULT_INITIAL_CAPACITY = 32;
+
+    private byte[] buf;
     private int bytesWritten;
 
     public ByteArrayMessageAttributeWriter() {
-        this.baos = new ByteArrayOutputStream();
-        this.buf = new DataOutputStream(baos);
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    public ByteArrayMessageAttributeWriter(int initialCapacity) {
+        this.buf = new byte[initialCapacity];
+        this.bytesWritten = 0;
+    }
+
+    /**
+     * Discards the written bytes, so that the instance can be reused. The array is retained.
+     */
+    public void reset() {
         bytesWritten = 0;
     }
 
     public void writeByte(byte b) {
-        try {
-            buf.write((int) b);
-            bytesWritten += 1;
-        } catch (IOException ex) {
-            throw new IllegalStateException("message corrupted");
-        }
+        ensureCapacity(1);
+        buf[bytesWritten++] = b;
     }
 
     public void writeShort(short s) {
-        try {
-            buf.writeShort((int) s);
-            bytesWritten += 2;
-        } catch (IOException ex) {
-            throw new IllegalStateException("message corrupted");
-        }
+        ensureCapacity(2);
+        putShort(s);
     }
 
     public void writeInt(int v) {
-        try {
-            buf.writeInt(v);
-            bytesWritten += 4;
-        } catch (IOException ex) {
-            throw new IllegalStateException("message corrupted");
-        }
+        ensureCapacity(4);
+        putInt(v);
     }
 
     public void writeLong(long v) {
-        try {
-            buf.writeLong(v);
-            bytesWritten += 8;
-        } catch (IOException ex) {
-            throw new IllegalStateException("message corrupted");
-        }
+        ensureCapacity(8);
+        putLong(v);
     }
 
     public void writeDouble(double v) {
-        try {
-            buf.writeDouble(v);
-            bytesWritten += 8;
-        } catch (IOException ex) {
-            throw new IllegalStateException("message corrupted");
-        }
+        writeLong(Double.doubleToLongBits(v));
     }
 
     public void writeByteArray(byte[] array) {
-        try {
-            if (array != null) {
-                buf.writeInt(array.length);
-                buf.write(array);
-                bytesWritten += (4 + array.length);
+        if (array != null) {
+            ensureCapacity(4 + array.length);
+            putInt(array.length);
+            System.arraycopy(array, 0, buf, bytesWritten, array.length);
+            bytesWritten += array.length;
+
+        } else {
+            writeInt(-1);
+        }
+    }
 
-            } else {
-                buf.writeInt(-1);
-                bytesWritten += 4;
-            }
-        } catch (IOException ex) {
-            throw new IllegalStateException("message corrupted");
+    public void writeByteBuf(ByteBuf array) {
+        if (array != null) {
+            int length = array.readableBytes();
+            ensureCapacity(4 + length);
+            putInt(length);
+            array.getBytes(array.readerIndex(), buf, bytesWritten, length);
+            bytesWritten += length;
+
+        } else {
+            writeInt(-1);
         }
     }
 
     public void writeShortArray(short[] array) {
-        try {
-            if (array != null) {
-                buf.writeInt(array.length);
-                for (short value : array) {
-                    buf.writeShort(value);
-                }
-                bytesWritten += (4 + array.length * 2);
-
-            } else {
-                buf.writeInt(-1);
-                bytesWritten += 4;
+        if (array != null) {
+            ensureCapacity(4 + array.length * 2);
+            putInt(array.length);
+            for (short value : array) {
+                putShort(value);
             }
-        } catch (IOException ex) {
-            throw new IllegalStateException("message corrupted");
+
+        } else {
+            writeInt(-1);
         }
     }
 
     public void writeIntArray(int[] array) {
-        try {
-            if (array != null) {
-                buf.writeInt(array.length);
-                for (int value : array) {
-                    buf.writeInt(value);
-                }
-                bytesWritten += (4 + array.length * 4);
-
-            } else {
-                buf.writeInt(-1);
-                bytesWritten += 4;
+        if (array != null) {
+            ensureCapacity(4 + array.length * 4);
+            putInt(array.length);
+            for (int value : array) {
+                putInt(value);
             }
-        } catch (IOException ex) {
-            throw new IllegalStateException("message corrupted");
+
+        } else {
+            writeInt(-1);
         }
     }
 
     public void writeIntList(List<Integer> list) {
-        try {
-            if (list != null) {
-                buf.writeInt(list.size());
+        if (list != null) {
+            ensureCapacity(4 + list.size() * 4);
+            putInt(list.size());
+            if (list instanceof IntArrayList) {
+                IntArrayList intList = (IntArrayList) list;
+                for (int i = 0; i < intList.size(); i++) {
+                    putInt(intList.getInt(i));
+                }
+            } else {
                 for (int value : list) {
-                    buf.writeInt(value);
+                    putInt(value);
                 }
-                bytesWritten += (4 + list.size() * 4);
+            }
 
-            } else {
-                buf.writeInt(-1);
-                bytesWritten += 4;
+        } else {
+            writeInt(-1);
+        }
+    }
+
+    public void writeLongArray(long[] array) {
+        if (array != null) {
+            ensureCapacity(4 + array.length * 8);
+            putInt(array.length);
+            for (long value : array) {
+                putLong(value);
+            }
+
+        } else {
+            writeInt(-1);
+        }
+    }
+
+    public void writeDoubleArray(double[] array) {
+        if (array != null) {
+            ensureCapacity(4 + array.length * 8);
+            putInt(array.length);
+            for (double value : array) {
+                putLong(Double.doubleToRawLongBits(value));
+            }
+
+        } else {
+            writeInt(-1);
+        }
+    }
+
+    public void writeFloatArray(float[] array) {
+        if (array != null) {
+            ensureCapacity(4 + array.length * 4);
+            putInt(array.length);
+            for (float value : array) {
+                putInt(Float.floatToRawIntBits(value));
+            }
+
+        } else {
+            writeInt(-1);
+        }
+    }
+
+    public void writeBooleanArray(boolean[] array) {
+        if (array != null) {
+            int size = PrimitiveArrays.bitsetSize(array.length);
+            ensureCapacity(4 + size);
+            putInt(array.length);
+            Arrays.fill(buf, bytesWritten, bytesWritten + size, (byte) 0);
+            for (int i = 0; i < array.length; i++) {
+                if (array[i]) {
+                    buf[bytesWritten + (i >>> 3)] |= 1 << (i & 7);
+                }
             }
-        } catch (IOException ex) {
-            throw new IllegalStateException("message corrupted");
+            bytesWritten += size;
+
+        } else {
+            writeInt(-1);
         }
     }
 
@@ -149,12 +202,36 @@ public class ByteArrayMessageAttributeWriter extends MessageAttributeWriter {
     }
 
     public byte[] toByteArray() {
-        try {
-            buf.flush();
-            return baos.toByteArray();
-        } catch (IOException ex) {
-            throw new IllegalStateException("message corrupted");
+        return Arrays.copyOf(buf, bytesWritten);
+    }
+
+    private void ensureCapacity(int amount) {
+        int minCapacity = bytesWritten + amount;
+        if (minCapacity < 0) {
+            throw new IllegalStateException("message too large");
         }
+        if (minCapacity > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(minCapacity, buf.length << 1));
+        }
+    }
+
+    private void putShort(short s) {
+        buf[bytesWritten] = (byte) (s >>> 8);
+        buf[bytesWritten + 1] = (byte) s;
+        bytesWritten += 2;
+    }
+
+    private void putInt(int v) {
+        buf[bytesWritten] = (byte) (v >>> 24);
+        buf[bytesWritten + 1] = (byte) (v >>> 16);
+        buf[bytesWritten + 2] = (byte) (v >>> 8);
+        buf[bytesWritten + 3] = (byte) v;
+        bytesWritten += 4;
+    }
+
+    private void putLong(long v) {
+        putInt((int) (v >>> 32));
+        putInt((int) v);
     }
 
 }
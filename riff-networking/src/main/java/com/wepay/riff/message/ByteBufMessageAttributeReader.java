@@ -1,15 +1,15 @@
 package com.wepay.riff.message;
 
 import com.wepay.riff.network.MessageAttributeReader;
+import com.wepay.riff.util.IntArrayList;
 import io.netty.buffer.ByteBuf;
 
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.List;
 
 public class ByteBufMessageAttributeReader extends MessageAttributeReader {
 
-    private final ByteBuf buf;
+    private ByteBuf buf;
     private int remaining;
 
     public ByteBufMessageAttributeReader(ByteBuf buf, int length) {
@@ -17,6 +17,16 @@ public class ByteBufMessageAttributeReader extends MessageAttributeReader {
         this.remaining = length;
     }
 
+    /**
+     * Resets this reader to read another frame, so that an instance can be reused for every frame.
+     * @param buf buffer
+     * @param length the length of the frame payload
+     */
+    public void reset(ByteBuf buf, int length) {
+        this.buf = buf;
+        this.remaining = length;
+    }
+
     public byte readByte() {
         checkDataSize(1);
 
@@ -64,6 +74,21 @@ public class ByteBufMessageAttributeReader extends MessageAttributeReader {
         }
     }
 
+    public ByteBuf readByteBufSlice() {
+        checkDataSize(4);
+
+        int arrayLength = buf.readInt();
+
+        if (arrayLength >= 0) {
+            checkDataSize(arrayLength);
+
+            return buf.readRetainedSlice(arrayLength);
+
+        } else {
+            return null;
+        }
+    }
+
     public short[] readShortArray() {
         checkDataSize(4);
 
@@ -89,12 +114,10 @@ public class ByteBufMessageAttributeReader extends MessageAttributeReader {
         int arrayLength = buf.readInt();
 
         if (arrayLength >= 0) {
-            checkDataSize(arrayLength * 4);
+            checkArraySize(arrayLength, 4);
 
             int[] array = new int[arrayLength];
-            for (int i = 0; i < arrayLength; i++) {
-                array[i] = buf.readInt();
-            }
+            PrimitiveArrays.readInts(buf, array);
             return array;
 
         } else {
@@ -103,18 +126,72 @@ public class ByteBufMessageAttributeReader extends MessageAttributeReader {
     }
 
     public List<Integer> readIntList() {
+        int[] array = readIntArray();
+        return array != null ? new IntArrayList(array) : null;
+    }
+
+    public long[] readLongArray() {
         checkDataSize(4);
 
         int arrayLength = buf.readInt();
 
         if (arrayLength >= 0) {
-            checkDataSize(arrayLength * 4);
+            checkArraySize(arrayLength, 8);
 
-            List<Integer> arrayList = new ArrayList<>(arrayLength);
-            for (int i = 0; i < arrayLength; i++) {
-                arrayList.add(buf.readInt());
-            }
-            return arrayList;
+            long[] array = new long[arrayLength];
+            PrimitiveArrays.readLongs(buf, array);
+            return array;
+
+        } else {
+            return null;
+        }
+    }
+
+    public double[] readDoubleArray() {
+        checkDataSize(4);
+
+        int arrayLength = buf.readInt();
+
+        if (arrayLength >= 0) {
+            checkArraySize(arrayLength, 8);
+
+            double[] array = new double[arrayLength];
+            PrimitiveArrays.readDoubles(buf, array);
+            return array;
+
+        } else {
+            return null;
+        }
+    }
+
+    public float[] readFloatArray() {
+        checkDataSize(4);
+
+        int arrayLength = buf.readInt();
+
+        if (arrayLength >= 0) {
+            checkArraySize(arrayLength, 4);
+
+            float[] array = new float[arrayLength];
+            PrimitiveArrays.readFloats(buf, array);
+            return array;
+
+        } else {
+            return null;
+        }
+    }
+
+    public boolean[] readBooleanArray() {
+        checkDataSize(4);
+
+        int arrayLength = buf.readInt();
+
+        if (arrayLength >= 0) {
+            checkDataSize(PrimitiveArrays.bitsetSize(arrayLength));
+
+            boolean[] array = new boolean[arrayLength];
+            PrimitiveArrays.readBits(buf, array);
+            return array;
 
         } else {
             return null;
@@ -151,6 +228,15 @@ public class ByteBufMessageAttributeReader extends MessageAttributeReader {
         remaining -= amount;
     }
 
+    private void checkArraySize(int arrayLength, int elementSize) {
+        // Compare without multiplying, which may overflow
+        if (remaining / elementSize < arrayLength) {
+            drain();
+            throw new IllegalStateException("corrupted message");
+        }
+        remaining -= arrayLength * elementSize;
+    }
+
     private void drain() {
         buf.skipBytes(remaining);
         remaining = 0;
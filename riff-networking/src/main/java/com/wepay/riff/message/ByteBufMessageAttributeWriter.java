@@ -1,6 +1,7 @@
 package com.wepay.riff.message;
 
 import com.wepay.riff.network.MessageAttributeWriter;
+import com.wepay.riff.util.IntArrayList;
 import io.netty.buffer.ByteBuf;
 
 import java.nio.charset.StandardCharsets;
@@ -8,7 +9,7 @@ import java.util.List;
 
 public class ByteBufMessageAttributeWriter extends MessageAttributeWriter {
 
-    private final ByteBuf buf;
+    private ByteBuf buf;
     private int bytesWritten;
 
     public ByteBufMessageAttributeWriter(ByteBuf buf) {
@@ -16,6 +17,15 @@ public class ByteBufMessageAttributeWriter extends MessageAttributeWriter {
         this.bytesWritten = 0;
     }
 
+    /**
+     * Resets this writer to write to another buffer, so that an instance can be reused for every frame.
+     * @param buf buffer
+     */
+    public void reset(ByteBuf buf) {
+        this.buf = buf;
+        this.bytesWritten = 0;
+    }
+
     public void writeByte(byte b) {
         buf.writeByte(b);
         bytesWritten += 1;
@@ -53,6 +63,19 @@ public class ByteBufMessageAttributeWriter extends MessageAttributeWriter {
         }
     }
 
+    public void writeByteBuf(ByteBuf array) {
+        if (array != null) {
+            int length = array.readableBytes();
+            buf.writeInt(length);
+            buf.writeBytes(array, array.readerIndex(), length);
+            bytesWritten += (4 + length);
+
+        } else {
+            buf.writeInt(-1);
+            bytesWritten += 4;
+        }
+    }
+
     public void writeShortArray(short[] array) {
         if (array != null) {
             buf.writeInt(array.length);
@@ -70,9 +93,7 @@ public class ByteBufMessageAttributeWriter extends MessageAttributeWriter {
     public void writeIntArray(int[] array) {
         if (array != null) {
             buf.writeInt(array.length);
-            for (int value : array) {
-                buf.writeInt(value);
-            }
+            PrimitiveArrays.writeInts(buf, array);
             bytesWritten += (4 + array.length * 4);
 
         } else {
@@ -84,8 +105,15 @@ public class ByteBufMessageAttributeWriter extends MessageAttributeWriter {
     public void writeIntList(List<Integer> list) {
         if (list != null) {
             buf.writeInt(list.size());
-            for (int value : list) {
-                buf.writeInt(value);
+            if (list instanceof IntArrayList) {
+                IntArrayList intList = (IntArrayList) list;
+                for (int i = 0; i < intList.size(); i++) {
+                    buf.writeInt(intList.getInt(i));
+                }
+            } else {
+                for (int value : list) {
+                    buf.writeInt(value);
+                }
             }
             bytesWritten += (4 + list.size() * 4);
 
@@ -95,6 +123,54 @@ public class ByteBufMessageAttributeWriter extends MessageAttributeWriter {
         }
     }
 
+    public void writeLongArray(long[] array) {
+        if (array != null) {
+            buf.writeInt(array.length);
+            PrimitiveArrays.writeLongs(buf, array);
+            bytesWritten += (4 + array.length * 8);
+
+        } else {
+            buf.writeInt(-1);
+            bytesWritten += 4;
+        }
+    }
+
+    public void writeDoubleArray(double[] array) {
+        if (array != null) {
+            buf.writeInt(array.length);
+            PrimitiveArrays.writeDoubles(buf, array);
+            bytesWritten += (4 + array.length * 8);
+
+        } else {
+            buf.writeInt(-1);
+            bytesWritten += 4;
+        }
+    }
+
+    public void writeFloatArray(float[] array) {
+        if (array != null) {
+            buf.writeInt(array.length);
+            PrimitiveArrays.writeFloats(buf, array);
+            bytesWritten += (4 + array.length * 4);
+
+        } else {
+            buf.writeInt(-1);
+            bytesWritten += 4;
+        }
+    }
+
+    public void writeBooleanArray(boolean[] array) {
+        if (array != null) {
+            buf.writeInt(array.length);
+            PrimitiveArrays.writeBits(buf, array);
+            bytesWritten += (4 + PrimitiveArrays.bitsetSize(array.length));
+
+        } else {
+            buf.writeInt(-1);
+            bytesWritten += 4;
+        }
+    }
+
     public void writeBoolean(boolean b) {
         writeByte(b ? (byte) 1 : (byte) 0);
     }
@@ -0,0 +1,295 @@
+package com.wepay.riff.message;
+
+import com.wepay.riff.network.MessageAttributeReader;
+import com.wepay.riff.util.IntArrayList;
+import io.netty.buffer.ByteBuf;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * A reader of the compact encoding written by {@link CompactByteBufMessageAttributeWriter}.
+ */
+public class CompactByteBufMessageAttributeReader extends MessageAttributeReader {
+
+    private static final int VALUE_BITS = 7;
+    private static final int VALUE_MASK = 0x7F;
+
+    private ByteBuf buf;
+    private int remaining;
+
+    public CompactByteBufMessageAttributeReader(ByteBuf buf, int length) {
+        this.buf = buf;
+        this.remaining = length;
+    }
+
+    /**
+     * Resets this reader to read another frame, so that an instance can be reused for every frame.
+     * @param buf buffer
+     * @param length the length of the frame payload
+     */
+    public void reset(ByteBuf buf, int length) {
+        this.buf = buf;
+        this.remaining = length;
+    }
+
+    public byte readByte() {
+        checkDataSize(1);
+
+        return buf.readByte();
+    }
+
+    public short readShort() {
+        checkDataSize(2);
+
+        return buf.readShort();
+    }
+
+    public int readInt() {
+        int v = readVarint32();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    public long readLong() {
+        long v = readVarint64();
+        return (v >>> 1) ^ -(v & 1L);
+    }
+
+    public double readDouble() {
+        checkDataSize(8);
+
+        return buf.readDouble();
+    }
+
+    public byte[] readByteArray() {
+        int arrayLength = readLength();
+
+        if (arrayLength >= 0) {
+            checkDataSize(arrayLength);
+
+            byte[] array = new byte[arrayLength];
+            buf.readBytes(array);
+            return array;
+
+        } else {
+            return null;
+        }
+    }
+
+    public ByteBuf readByteBufSlice() {
+        int arrayLength = readLength();
+
+        if (arrayLength >= 0) {
+            checkDataSize(arrayLength);
+
+            return buf.readRetainedSlice(arrayLength);
+
+        } else {
+            return null;
+        }
+    }
+
+    public short[] readShortArray() {
+        int arrayLength = readLength();
+
+        if (arrayLength >= 0) {
+            checkDataSize(arrayLength * 2);
+
+            short[] array = new short[arrayLength];
+            for (int i = 0; i < arrayLength; i++) {
+                array[i] = buf.readShort();
+            }
+            return array;
+
+        } else {
+            return null;
+        }
+    }
+
+    public int[] readIntArray() {
+        int arrayLength = readLength();
+
+        if (arrayLength >= 0) {
+            // Each element takes at least one byte
+            checkDataAvailable(arrayLength);
+
+            int[] array = new int[arrayLength];
+            for (int i = 0; i < arrayLength; i++) {
+                array[i] = readInt();
+            }
+            return array;
+
+        } else {
+            return null;
+        }
+    }
+
+    public List<Integer> readIntList() {
+        int arrayLength = readLength();
+
+        if (arrayLength >= 0) {
+            // Each element takes at least one byte
+            checkDataAvailable(arrayLength);
+
+            int[] array = new int[arrayLength];
+            for (int i = 0; i < arrayLength; i++) {
+                array[i] = readInt();
+            }
+            return new IntArrayList(array);
+
+        } else {
+            return null;
+        }
+    }
+
+    public long[] readLongArray() {
+        int arrayLength = readLength();
+
+        if (arrayLength >= 0) {
+            // Each element takes at least one byte
+            checkDataAvailable(arrayLength);
+
+            long[] array = new long[arrayLength];
+            for (int i = 0; i < arrayLength; i++) {
+                array[i] = readLong();
+            }
+            return array;
+
+        } else {
+            return null;
+        }
+    }
+
+    public double[] readDoubleArray() {
+        int arrayLength = readLength();
+
+        if (arrayLength >= 0) {
+            checkArraySize(arrayLength, 8);
+
+            double[] array = new double[arrayLength];
+            PrimitiveArrays.readDoubles(buf, array);
+            return array;
+
+        } else {
+            return null;
+        }
+    }
+
+    public float[] readFloatArray() {
+        int arrayLength = readLength();
+
+        if (arrayLength >= 0) {
+            checkArraySize(arrayLength, 4);
+
+            float[] array = new float[arrayLength];
+            PrimitiveArrays.readFloats(buf, array);
+            return array;
+
+        } else {
+            return null;
+        }
+    }
+
+    public boolean[] readBooleanArray() {
+        int arrayLength = readLength();
+
+        if (arrayLength >= 0) {
+            checkDataSize(PrimitiveArrays.bitsetSize(arrayLength));
+
+            boolean[] array = new boolean[arrayLength];
+            PrimitiveArrays.readBits(buf, array);
+            return array;
+
+        } else {
+            return null;
+        }
+    }
+
+    public boolean readBoolean() {
+        return readByte() == 1;
+    }
+
+    public String readString() {
+        byte[] array = readByteArray();
+
+        if (array != null) {
+            return new String(array, StandardCharsets.UTF_8);
+
+        } else {
+            return null;
+        }
+    }
+
+    public void ensureReadCompletely() {
+        if (remaining > 0) {
+            drain();
+            throw new IllegalStateException("corrupted message");
+        }
+    }
+
+    /**
+     * Reads a length prefix.
+     * @return the length, or -1 for null
+     */
+    private int readLength() {
+        int length = readVarint32() - 1;
+        if (length < -1) {
+            drain();
+            throw new IllegalStateException("corrupted message");
+        }
+        return length;
+    }
+
+    private int readVarint32() {
+        int result = 0;
+        for (int shift = 0; shift < Integer.SIZE; shift += VALUE_BITS) {
+            byte b = readByte();
+            result |= (b & VALUE_MASK) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        drain();
+        throw new IllegalStateException("corrupted message");
+    }
+
+    private long readVarint64() {
+        long result = 0L;
+        for (int shift = 0; shift < Long.SIZE; shift += VALUE_BITS) {
+            byte b = readByte();
+            result |= (long) (b & VALUE_MASK) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        drain();
+        throw new IllegalStateException("corrupted message");
+    }
+
+    private void checkDataSize(int amount) {
+        checkDataAvailable(amount);
+        remaining -= amount;
+    }
+
+    private void checkArraySize(int arrayLength, int elementSize) {
+        // Compare without multiplying, which may overflow
+        if (remaining / elementSize < arrayLength) {
+            drain();
+            throw new IllegalStateException("corrupted message");
+        }
+        remaining -= arrayLength * elementSize;
+    }
+
+    private void checkDataAvailable(int amount) {
+        if (remaining < amount || amount < 0) {
+            drain();
+            throw new IllegalStateException("corrupted message");
+        }
+    }
+
+    private void drain() {
+        buf.skipBytes(remaining);
+        remaining = 0;
+    }
+
+}
@@ -0,0 +1,217 @@
+package com.wepay.riff.message;
+
+import com.wepay.riff.network.MessageAttributeWriter;
+import com.wepay.riff.util.IntArrayList;
+import io.netty.buffer.ByteBuf;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * A writer of the compact encoding. Ints and longs are written as zigzag varints, and array lengths are written as
+ * unsigned varints of length + 1, where zero means null. Other types are written in the same way as
+ * {@link ByteBufMessageAttributeWriter}.
+ * <p>
+ * A varint stores seven bits per byte, least significant group first, and the high bit of a byte is set if more
+ * bytes follow. Zigzag encoding maps signed values to unsigned values so that small negative values are small, too.
+ */
+public class CompactByteBufMessageAttributeWriter extends MessageAttributeWriter {
+
+    private static final int VALUE_BITS = 7;
+    private static final int VALUE_MASK = 0x7F;
+    private static final int CONTINUATION_BIT = 0x80;
+
+    private ByteBuf buf;
+    private int bytesWritten;
+
+    public CompactByteBufMessageAttributeWriter(ByteBuf buf) {
+        this.buf = buf;
+        this.bytesWritten = 0;
+    }
+
+    /**
+     * Resets this writer to write to another buffer, so that an instance can be reused for every frame.
+     * @param buf buffer
+     */
+    public void reset(ByteBuf buf) {
+        this.buf = buf;
+        this.bytesWritten = 0;
+    }
+
+    public void writeByte(byte b) {
+        buf.writeByte(b);
+        bytesWritten += 1;
+    }
+
+    public void writeShort(short s) {
+        buf.writeShort(s);
+        bytesWritten += 2;
+    }
+
+    public void writeInt(int v) {
+        writeVarint32((v << 1) ^ (v >> (Integer.SIZE - 1)));
+    }
+
+    public void writeLong(long v) {
+        writeVarint64((v << 1) ^ (v >> (Long.SIZE - 1)));
+    }
+
+    public void writeDouble(double v) {
+        buf.writeDouble(v);
+        bytesWritten += 8;
+    }
+
+    public void writeByteArray(byte[] array) {
+        if (array != null) {
+            writeLength(array.length);
+            buf.writeBytes(array);
+            bytesWritten += array.length;
+
+        } else {
+            writeNull();
+        }
+    }
+
+    public void writeByteBuf(ByteBuf array) {
+        if (array != null) {
+            int length = array.readableBytes();
+            writeLength(length);
+            buf.writeBytes(array, array.readerIndex(), length);
+            bytesWritten += length;
+
+        } else {
+            writeNull();
+        }
+    }
+
+    public void writeShortArray(short[] array) {
+        if (array != null) {
+            writeLength(array.length);
+            for (short value : array) {
+                buf.writeShort(value);
+            }
+            bytesWritten += array.length * 2;
+
+        } else {
+            writeNull();
+        }
+    }
+
+    public void writeIntArray(int[] array) {
+        if (array != null) {
+            writeLength(array.length);
+            for (int value : array) {
+                writeInt(value);
+            }
+
+        } else {
+            writeNull();
+        }
+    }
+
+    public void writeIntList(List<Integer> list) {
+        if (list != null) {
+            writeLength(list.size());
+            if (list instanceof IntArrayList) {
+                IntArrayList intList = (IntArrayList) list;
+                for (int i = 0; i < intList.size(); i++) {
+                    writeInt(intList.getInt(i));
+                }
+            } else {
+                for (int value : list) {
+                    writeInt(value);
+                }
+            }
+
+        } else {
+            writeNull();
+        }
+    }
+
+    public void writeLongArray(long[] array) {
+        if (array != null) {
+            writeLength(array.length);
+            for (long value : array) {
+                writeLong(value);
+            }
+
+        } else {
+            writeNull();
+        }
+    }
+
+    public void writeDoubleArray(double[] array) {
+        if (array != null) {
+            writeLength(array.length);
+            PrimitiveArrays.writeDoubles(buf, array);
+            bytesWritten += array.length * 8;
+
+        } else {
+            writeNull();
+        }
+    }
+
+    public void writeFloatArray(float[] array) {
+        if (array != null) {
+            writeLength(array.length);
+            PrimitiveArrays.writeFloats(buf, array);
+            bytesWritten += array.length * 4;
+
+        } else {
+            writeNull();
+        }
+    }
+
+    public void writeBooleanArray(boolean[] array) {
+        if (array != null) {
+            writeLength(array.length);
+            PrimitiveArrays.writeBits(buf, array);
+            bytesWritten += PrimitiveArrays.bitsetSize(array.length);
+
+        } else {
+            writeNull();
+        }
+    }
+
+    public void writeBoolean(boolean b) {
+        writeByte(b ? (byte) 1 : (byte) 0);
+    }
+
+    public void writeString(String text) {
+        byte[] array = text != null ? text.getBytes(StandardCharsets.UTF_8) : null;
+        writeByteArray(array);
+    }
+
+    public int bytesWritten() {
+        return bytesWritten;
+    }
+
+    private void writeLength(int length) {
+        writeVarint32(length + 1);
+    }
+
+    private void writeNull() {
+        writeVarint32(0);
+    }
+
+    private void writeVarint32(int v) {
+        while ((v & ~VALUE_MASK) != 0) {
+            buf.writeByte((v & VALUE_MASK) | CONTINUATION_BIT);
+            v >>>= VALUE_BITS;
+            bytesWritten++;
+        }
+        buf.writeByte(v);
+        bytesWritten++;
+    }
+
+    private void writeVarint64(long v) {
+        while ((v & ~VALUE_MASK) != 0L) {
+            buf.writeByte(((int) v & VALUE_MASK) | CONTINUATION_BIT);
+            v >>>= VALUE_BITS;
+            bytesWritten++;
+        }
+        buf.writeByte((int) v);
+        bytesWritten++;
+    }
+
+}
@@ -0,0 +1,37 @@
+package com.wepay.riff.message;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Strings seen once on a connection, which are candidates for a string dictionary. A string is added to a dictionary
+ * when it is seen in full the second time, so strings which appear only once do not fill the dictionary. The oldest
+ * candidate is forgotten when there are too many. The writer and the reader see the same strings in the same order,
+ * so their candidates, and their dictionaries, stay identical. This is not thread-safe.
+ */
+final class DictionaryCandidates {
+
+    private static final int MAX_CANDIDATES = DictionaryMessageAttributeWriter.MAX_ENTRIES;
+
+    private final LinkedHashSet<String> candidates = new LinkedHashSet<>();
+
+    /**
+     * Records a string seen in full.
+     * @param text the string
+     * @return true if the string is seen the second time, and it should be added to the dictionary
+     */
+    boolean admit(String text) {
+        if (candidates.remove(text)) {
+            return true;
+        }
+
+        candidates.add(text);
+        if (candidates.size() > MAX_CANDIDATES) {
+            Iterator<String> iterator = candidates.iterator();
+            iterator.next();
+            iterator.remove();
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,153 @@
+package com.wepay.riff.message;
+
+import com.wepay.riff.network.MessageAttributeReader;
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A reader of strings written by {@link DictionaryMessageAttributeWriter}. A string read by id is the cached instance
+ * in the per-connection dictionary, so no new string is allocated. Other attributes are read by the underlying reader
+ * as they are.
+ */
+public class DictionaryMessageAttributeReader extends MessageAttributeReader {
+
+    private static final int VALUE_BITS = 7;
+    private static final int VALUE_MASK = 0x7F;
+
+    private final MessageAttributeReader reader;
+    private final Dictionary dictionary;
+
+    public DictionaryMessageAttributeReader(MessageAttributeReader reader, Dictionary dictionary) {
+        this.reader = reader;
+        this.dictionary = dictionary;
+    }
+
+    public byte readByte() {
+        return reader.readByte();
+    }
+
+    public short readShort() {
+        return reader.readShort();
+    }
+
+    public int readInt() {
+        return reader.readInt();
+    }
+
+    public long readLong() {
+        return reader.readLong();
+    }
+
+    public double readDouble() {
+        return reader.readDouble();
+    }
+
+    public byte[] readByteArray() {
+        return reader.readByteArray();
+    }
+
+    public ByteBuf readByteBufSlice() {
+        return reader.readByteBufSlice();
+    }
+
+    public short[] readShortArray() {
+        return reader.readShortArray();
+    }
+
+    public int[] readIntArray() {
+        return reader.readIntArray();
+    }
+
+    public List<Integer> readIntList() {
+        return reader.readIntList();
+    }
+
+    public long[] readLongArray() {
+        return reader.readLongArray();
+    }
+
+    public double[] readDoubleArray() {
+        return reader.readDoubleArray();
+    }
+
+    public float[] readFloatArray() {
+        return reader.readFloatArray();
+    }
+
+    public boolean[] readBooleanArray() {
+        return reader.readBooleanArray();
+    }
+
+    public boolean readBoolean() {
+        return reader.readBoolean();
+    }
+
+    public String readString() {
+        int tag = readTag();
+
+        if (tag == 0) {
+            String text = reader.readString();
+            if (text != null) {
+                dictionary.add(text);
+            }
+            return text;
+
+        } else if (tag > 0 && tag <= dictionary.strings.size()) {
+            return dictionary.strings.get(tag - 1);
+
+        } else {
+            throw corrupted();
+        }
+    }
+
+    public void ensureReadCompletely() {
+        reader.ensureReadCompletely();
+    }
+
+    private int readTag() {
+        int result = 0;
+        for (int shift = 0; shift < Integer.SIZE; shift += VALUE_BITS) {
+            byte b = reader.readByte();
+            result |= (b & VALUE_MASK) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw corrupted();
+    }
+
+    private IllegalStateException corrupted() {
+        // The underlying reader skips the rest of the message, and throws if there is any
+        reader.ensureReadCompletely();
+        return new IllegalStateException("corrupted message");
+    }
+
+    /**
+     * The dictionary of strings received on a connection. This is not thread-safe.
+     */
+    public static final class Dictionary {
+
+        private final ArrayList<String> strings = new ArrayList<>();
+        private final DictionaryCandidates candidates = new DictionaryCandidates();
+
+        private void add(String text) {
+            if (text.length() <= DictionaryMessageAttributeWriter.MAX_STRING_LENGTH
+                && strings.size() < DictionaryMessageAttributeWriter.MAX_ENTRIES
+                && candidates.admit(text)) {
+                strings.add(text);
+            }
+        }
+
+        /**
+         * Returns the number of strings in the dictionary.
+         * @return the number of strings
+         */
+        public int size() {
+            return strings.size();
+        }
+
+    }
+
+}
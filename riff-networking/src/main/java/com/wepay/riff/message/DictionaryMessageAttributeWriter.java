@@ -0,0 +1,152 @@
+package com.wepay.riff.message;
+
+import com.wepay.riff.network.MessageAttributeWriter;
+import io.netty.buffer.ByteBuf;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A writer which replaces repeated strings with ids from a per-connection dictionary. Other attributes are written by
+ * the underlying writer as they are.
+ * <p>
+ * A string is written as a tag followed by the string if the tag is zero. A non-zero tag is the id of a string in the
+ * dictionary plus one. The tag is an unsigned varint, so it takes one byte for the first 127 ids. A string written in
+ * full is added to the dictionary the second time it is written in full (see {@link DictionaryCandidates}), if it is
+ * short and the dictionary is not full. {@link DictionaryMessageAttributeReader} applies the same rule, so the
+ * dictionaries on both ends stay identical as long as frames are decoded in the order they are encoded.
+ */
+public class DictionaryMessageAttributeWriter extends MessageAttributeWriter {
+
+    /**
+     * The maximum number of strings in a dictionary.
+     */
+    public static final int MAX_ENTRIES = 1024;
+
+    /**
+     * The maximum length of a string added to a dictionary in chars.
+     */
+    public static final int MAX_STRING_LENGTH = 128;
+
+    private static final int VALUE_BITS = 7;
+    private static final int VALUE_MASK = 0x7F;
+    private static final int CONTINUATION_BIT = 0x80;
+
+    private final MessageAttributeWriter writer;
+    private final Dictionary dictionary;
+
+    public DictionaryMessageAttributeWriter(MessageAttributeWriter writer, Dictionary dictionary) {
+        this.writer = writer;
+        this.dictionary = dictionary;
+    }
+
+    public void writeByte(byte b) {
+        writer.writeByte(b);
+    }
+
+    public void writeShort(short s) {
+        writer.writeShort(s);
+    }
+
+    public void writeInt(int v) {
+        writer.writeInt(v);
+    }
+
+    public void writeLong(long v) {
+        writer.writeLong(v);
+    }
+
+    public void writeDouble(double v) {
+        writer.writeDouble(v);
+    }
+
+    public void writeByteArray(byte[] array) {
+        writer.writeByteArray(array);
+    }
+
+    public void writeByteBuf(ByteBuf buf) {
+        writer.writeByteBuf(buf);
+    }
+
+    public void writeShortArray(short[] array) {
+        writer.writeShortArray(array);
+    }
+
+    public void writeIntArray(int[] array) {
+        writer.writeIntArray(array);
+    }
+
+    public void writeIntList(List<Integer> list) {
+        writer.writeIntList(list);
+    }
+
+    public void writeLongArray(long[] array) {
+        writer.writeLongArray(array);
+    }
+
+    public void writeDoubleArray(double[] array) {
+        writer.writeDoubleArray(array);
+    }
+
+    public void writeFloatArray(float[] array) {
+        writer.writeFloatArray(array);
+    }
+
+    public void writeBooleanArray(boolean[] array) {
+        writer.writeBooleanArray(array);
+    }
+
+    public void writeBoolean(boolean b) {
+        writer.writeBoolean(b);
+    }
+
+    public void writeString(String text) {
+        if (text != null) {
+            Integer id = dictionary.ids.get(text);
+            if (id != null) {
+                writeTag(id + 1);
+                return;
+            }
+            dictionary.add(text);
+        }
+        writeTag(0);
+        writer.writeString(text);
+    }
+
+    public int bytesWritten() {
+        return writer.bytesWritten();
+    }
+
+    private void writeTag(int v) {
+        while ((v & ~VALUE_MASK) != 0) {
+            writer.writeByte((byte) ((v & VALUE_MASK) | CONTINUATION_BIT));
+            v >>>= VALUE_BITS;
+        }
+        writer.writeByte((byte) v);
+    }
+
+    /**
+     * The dictionary of strings sent on a connection. This is not thread-safe.
+     */
+    public static final class Dictionary {
+
+        private final HashMap<String, Integer> ids = new HashMap<>();
+        private final DictionaryCandidates candidates = new DictionaryCandidates();
+
+        private void add(String text) {
+            if (text.length() <= MAX_STRING_LENGTH && ids.size() < MAX_ENTRIES && candidates.admit(text)) {
+                ids.put(text, ids.size());
+            }
+        }
+
+        /**
+         * Returns the number of strings in the dictionary.
+         * @return the number of strings
+         */
+        public int size() {
+            return ids.size();
+        }
+
+    }
+
+}
@@ -0,0 +1,180 @@
+package com.wepay.riff.message;
+
+import io.netty.buffer.ByteBuf;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Bulk copies of primitive arrays between arrays and buffers in big-endian order. The caller checks the length of
+ * the data once beforehand. An array in a heap or direct buffer backed by a single {@link ByteBuffer} is copied
+ * through a view buffer, which the JDK copies in bulk. A small array, or an array in a buffer of several components,
+ * is copied element by element, and the buffer checks the index of every element.
+ */
+final class PrimitiveArrays {
+
+    // Creating the view buffers costs more than copying a few elements one by one
+    private static final int MIN_BULK_COPY_SIZE = 128;
+
+    private PrimitiveArrays() {
+    }
+
+    static void writeInts(ByteBuf buf, int[] array) {
+        int size = array.length * Integer.BYTES;
+        buf.ensureWritable(size);
+        int index = buf.writerIndex();
+        if (isBulkCopyable(buf, size)) {
+            nioBuffer(buf, index, size).asIntBuffer().put(array);
+        } else {
+            for (int value : array) {
+                buf.setInt(index, value);
+                index += Integer.BYTES;
+            }
+        }
+        buf.writerIndex(buf.writerIndex() + size);
+    }
+
+    static void writeLongs(ByteBuf buf, long[] array) {
+        int size = array.length * Long.BYTES;
+        buf.ensureWritable(size);
+        int index = buf.writerIndex();
+        if (isBulkCopyable(buf, size)) {
+            nioBuffer(buf, index, size).asLongBuffer().put(array);
+        } else {
+            for (long value : array) {
+                buf.setLong(index, value);
+                index += Long.BYTES;
+            }
+        }
+        buf.writerIndex(buf.writerIndex() + size);
+    }
+
+    static void writeDoubles(ByteBuf buf, double[] array) {
+        int size = array.length * Double.BYTES;
+        buf.ensureWritable(size);
+        int index = buf.writerIndex();
+        if (isBulkCopyable(buf, size)) {
+            nioBuffer(buf, index, size).asDoubleBuffer().put(array);
+        } else {
+            for (double value : array) {
+                buf.setLong(index, Double.doubleToRawLongBits(value));
+                index += Double.BYTES;
+            }
+        }
+        buf.writerIndex(buf.writerIndex() + size);
+    }
+
+    static void writeFloats(ByteBuf buf, float[] array) {
+        int size = array.length * Float.BYTES;
+        buf.ensureWritable(size);
+        int index = buf.writerIndex();
+        if (isBulkCopyable(buf, size)) {
+            nioBuffer(buf, index, size).asFloatBuffer().put(array);
+        } else {
+            for (float value : array) {
+                buf.setInt(index, Float.floatToRawIntBits(value));
+                index += Float.BYTES;
+            }
+        }
+        buf.writerIndex(buf.writerIndex() + size);
+    }
+
+    static void writeBits(ByteBuf buf, boolean[] array) {
+        buf.ensureWritable(bitsetSize(array.length));
+        for (int i = 0; i < array.length; i += Byte.SIZE) {
+            int bits = 0;
+            int end = Math.min(i + Byte.SIZE, array.length);
+            for (int j = i; j < end; j++) {
+                if (array[j]) {
+                    bits |= 1 << (j - i);
+                }
+            }
+            buf.writeByte(bits);
+        }
+    }
+
+    static void readInts(ByteBuf buf, int[] array) {
+        int size = array.length * Integer.BYTES;
+        int index = buf.readerIndex();
+        if (isBulkCopyable(buf, size)) {
+            nioBuffer(buf, index, size).asIntBuffer().get(array);
+        } else {
+            for (int i = 0; i < array.length; i++) {
+                array[i] = buf.getInt(index);
+                index += Integer.BYTES;
+            }
+        }
+        buf.skipBytes(size);
+    }
+
+    static void readLongs(ByteBuf buf, long[] array) {
+        int size = array.length * Long.BYTES;
+        int index = buf.readerIndex();
+        if (isBulkCopyable(buf, size)) {
+            nioBuffer(buf, index, size).asLongBuffer().get(array);
+        } else {
+            for (int i = 0; i < array.length; i++) {
+                array[i] = buf.getLong(index);
+                index += Long.BYTES;
+            }
+        }
+        buf.skipBytes(size);
+    }
+
+    static void readDoubles(ByteBuf buf, double[] array) {
+        int size = array.length * Double.BYTES;
+        int index = buf.readerIndex();
+        if (isBulkCopyable(buf, size)) {
+            nioBuffer(buf, index, size).asDoubleBuffer().get(array);
+        } else {
+            for (int i = 0; i < array.length; i++) {
+                array[i] = Double.longBitsToDouble(buf.getLong(index));
+                index += Double.BYTES;
+            }
+        }
+        buf.skipBytes(size);
+    }
+
+    static void readFloats(ByteBuf buf, float[] array) {
+        int size = array.length * Float.BYTES;
+        int index = buf.readerIndex();
+        if (isBulkCopyable(buf, size)) {
+            nioBuffer(buf, index, size).asFloatBuffer().get(array);
+        } else {
+            for (int i = 0; i < array.length; i++) {
+                array[i] = Float.intBitsToFloat(buf.getInt(index));
+                index += Float.BYTES;
+            }
+        }
+        buf.skipBytes(size);
+    }
+
+    static void readBits(ByteBuf buf, boolean[] array) {
+        for (int i = 0; i < array.length; i += Byte.SIZE) {
+            int bits = buf.readByte();
+            int end = Math.min(i + Byte.SIZE, array.length);
+            for (int j = i; j < end; j++) {
+                array[j] = (bits & (1 << (j - i))) != 0;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes of a bitset.
+     * @param length the number of bits
+     * @return the number of bytes
+     */
+    static int bitsetSize(int length) {
+        return (length >>> 3) + ((length & (Byte.SIZE - 1)) != 0 ? 1 : 0);
+    }
+
+    private static boolean isBulkCopyable(ByteBuf buf, int size) {
+        return size >= MIN_BULK_COPY_SIZE && buf.nioBufferCount() == 1;
+    }
+
+    private static ByteBuffer nioBuffer(ByteBuf buf, int index, int length) {
+        // A heap buffer returns a wrapper of its array. The view buffers inherit the byte order.
+        return buf.nioBuffer(index, length).order(ByteOrder.BIG_ENDIAN);
+    }
+
+}
@@ -0,0 +1,96 @@
+package com.wepay.riff.network;
+
+import io.netty.channel.Channel;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.EpollSocketChannel;
+
+/**
+ * AdaptiveWriteBufferWaterMark sizes the write buffer water marks of a channel from the observed bandwidth-delay
+ * product, so that a bulk sender is not parked in {@link MessageHandler#ensureWritable()} with a window much smaller
+ * than the link can carry.
+ * <p>
+ * The bandwidth is measured when the channel recovers from being unwritable. The buffer drained from the high water
+ * mark to the low water mark in the meantime, which gives the drain rate of the socket. The round trip time is taken
+ * from the kernel when the transport reports it (epoll), otherwise the configured value is used.
+ * The high water mark is set to twice the bandwidth-delay product, bounded by the configured range, and the low water
+ * mark to half of it. The estimate is smoothed to avoid oscillation.
+ * <p>
+ * All methods must be called on the event loop of the channel.
+ */
+final class AdaptiveWriteBufferWaterMark {
+
+    private static final long NANOS_PER_MICRO = 1000L;
+    // The high water mark moves 1/STEPS of the way toward the estimate on each update
+    private static final int STEPS = 4;
+
+    private final int minHighWaterMark;
+    private final int maxHighWaterMark;
+    private final long defaultRttMicros;
+
+    private int highWaterMark;
+    private long unwritableSinceNanos = -1L;
+
+    AdaptiveWriteBufferWaterMark(int minHighWaterMark, int maxHighWaterMark, long defaultRttMicros) {
+        if (minHighWaterMark <= 0 || maxHighWaterMark < minHighWaterMark) {
+            throw new IllegalArgumentException(
+                "invalid water marks: min=" + minHighWaterMark + " max=" + maxHighWaterMark
+            );
+        }
+        this.minHighWaterMark = minHighWaterMark;
+        this.maxHighWaterMark = maxHighWaterMark;
+        this.defaultRttMicros = defaultRttMicros;
+        this.highWaterMark = minHighWaterMark;
+    }
+
+    /**
+     * Returns the current water marks.
+     */
+    WriteBufferWaterMark waterMark() {
+        return new WriteBufferWaterMark(highWaterMark / 2, highWaterMark);
+    }
+
+    /**
+     * Updates the water marks of the channel when it recovers from being unwritable.
+     * @param channel channel
+     * @param writable the new writability of the channel
+     * @param nowNanos the current time in nanoseconds
+     */
+    void onWritabilityChanged(Channel channel, boolean writable, long nowNanos) {
+        if (!writable) {
+            unwritableSinceNanos = nowNanos;
+            return;
+        }
+
+        if (unwritableSinceNanos < 0) {
+            return;
+        }
+
+        long elapsedNanos = Math.max(nowNanos - unwritableSinceNanos, 1L);
+        unwritableSinceNanos = -1L;
+
+        WriteBufferWaterMark current = channel.config().getWriteBufferWaterMark();
+        long drainedBytes = current.high() - current.low();
+        long bdp = drainedBytes * rttMicros(channel) * NANOS_PER_MICRO / elapsedNanos;
+
+        long target = Math.min(Math.max(bdp * 2, minHighWaterMark), maxHighWaterMark);
+        // Move a fraction of the way toward the target. The last step lands on the target.
+        long step = (target - highWaterMark) / STEPS;
+        int next = (int) (step != 0 ? highWaterMark + step : target);
+
+        if (next != highWaterMark) {
+            highWaterMark = next;
+            channel.config().setWriteBufferWaterMark(waterMark());
+        }
+    }
+
+    private long rttMicros(Channel channel) {
+        if (channel instanceof EpollSocketChannel) {
+            long rtt = ((EpollSocketChannel) channel).tcpInfo().rtt();
+            if (rtt > 0) {
+                return rtt;
+            }
+        }
+        return defaultRttMicros;
+    }
+
+}
@@ -75,6 +75,8 @@ public final class ClientSSL {
                 builder.trustManager(InsecureTrustManagerFactory.INSTANCE);
             }
 
+            config.configure(builder);
+
             return builder.build();
 
         } catch (GeneralSecurityException | IOException e) {
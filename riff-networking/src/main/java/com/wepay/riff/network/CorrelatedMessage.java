@@ -0,0 +1,87 @@
+package com.wepay.riff.network;
+
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.ReferenceCounted;
+
+/**
+ * A message with a request id. A request sent by {@link MessageHandler#sendRequest(Message)} is delivered to
+ * the peer as a CorrelatedMessage. The peer replies by sending the message created by {@link #reply(Message)}.
+ * Correlated messages can be exchanged only when both ends enable correlation
+ * (see {@link MessageHandler#enableCorrelation()}).
+ * <p>
+ * The reference count is that of the payload, so a correlated message is released with its payload like any other
+ * message. The reference count is always 1 if the payload is not {@link ReferenceCounted}. A received request is
+ * released after it is processed, and a received response after the future of the request completes.
+ */
+public class CorrelatedMessage extends Message implements ReferenceCounted {
+
+    public final long requestId;
+    public final boolean isResponse;
+    public final Message payload;
+
+    public CorrelatedMessage(long requestId, boolean isResponse, Message payload) {
+        this.requestId = requestId;
+        this.isResponse = isResponse;
+        this.payload = payload;
+    }
+
+    /**
+     * Creates a response to this request. The response is released when it is sent, and this request after it is
+     * processed, so a payload shared by both must be retained once more.
+     * @param response response payload
+     * @return a correlated response message
+     */
+    public CorrelatedMessage reply(Message response) {
+        return new CorrelatedMessage(requestId, true, response);
+    }
+
+    @Override
+    public byte type() {
+        return MessageType.CORRELATED;
+    }
+
+    @Override
+    public int refCnt() {
+        return payload instanceof ReferenceCounted ? ((ReferenceCounted) payload).refCnt() : 1;
+    }
+
+    @Override
+    public CorrelatedMessage retain() {
+        ReferenceCountUtil.retain(payload);
+        return this;
+    }
+
+    @Override
+    public CorrelatedMessage retain(int increment) {
+        ReferenceCountUtil.retain(payload, increment);
+        return this;
+    }
+
+    @Override
+    public CorrelatedMessage touch() {
+        ReferenceCountUtil.touch(payload);
+        return this;
+    }
+
+    @Override
+    public CorrelatedMessage touch(Object hint) {
+        ReferenceCountUtil.touch(payload, hint);
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        return ReferenceCountUtil.release(payload);
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        return ReferenceCountUtil.release(payload, decrement);
+    }
+
+    @Override
+    public String toString() {
+        return "CorrelatedMessage(requestId=" + requestId + ", isResponse=" + isResponse + ", payload=" + payload + ")";
+    }
+
+}
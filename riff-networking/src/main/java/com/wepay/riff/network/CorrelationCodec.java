@@ -0,0 +1,78 @@
+package com.wepay.riff.network;
+
+/**
+ * CorrelationCodec adds request ids to messages of another codec. It encodes {@link CorrelatedMessage}s with
+ * a request id envelope, and other messages with an empty envelope. The version and the magic byte are those of
+ * the wrapped codec, so {@link MessageHandler} wraps the negotiated codec with this only when both ends enable
+ * correlation (see {@link MessageHandler#enableCorrelation()}).
+ */
+class CorrelationCodec implements MessageCodec {
+
+    private static final byte PLAIN = 0;
+    private static final byte REQUEST = 1;
+    private static final byte RESPONSE = 2;
+
+    // kind (1) + request id (8)
+    private static final int ENVELOPE_SIZE = 1 + 8;
+
+    private final MessageCodec codec;
+
+    CorrelationCodec(MessageCodec codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    public short version() {
+        return codec.version();
+    }
+
+    @Override
+    public byte magicByte() {
+        return codec.magicByte();
+    }
+
+    @Override
+    public Message decode(MessageAttributeReader reader) {
+        byte kind = reader.readByte();
+
+        switch (kind) {
+            case PLAIN:
+                return codec.decode(reader);
+
+            case REQUEST:
+            case RESPONSE:
+                long requestId = reader.readLong();
+                return new CorrelatedMessage(requestId, kind == RESPONSE, codec.decode(reader));
+
+            default:
+                throw new IllegalStateException("unknown envelope: " + kind);
+        }
+    }
+
+    @Override
+    public void encode(Message message, MessageAttributeWriter writer) {
+        if (message.type() == MessageType.CORRELATED) {
+            CorrelatedMessage correlated = (CorrelatedMessage) message;
+            writer.writeByte(correlated.isResponse ? RESPONSE : REQUEST);
+            writer.writeLong(correlated.requestId);
+            codec.encode(correlated.payload, writer);
+
+        } else {
+            writer.writeByte(PLAIN);
+            codec.encode(message, writer);
+        }
+    }
+
+    @Override
+    public int estimateSize(Message message) {
+        if (message.type() == MessageType.CORRELATED) {
+            int size = codec.estimateSize(((CorrelatedMessage) message).payload);
+            return size < 0 ? size : ENVELOPE_SIZE + size;
+
+        } else {
+            int size = codec.estimateSize(message);
+            return size < 0 ? size : 1 + size;
+        }
+    }
+
+}
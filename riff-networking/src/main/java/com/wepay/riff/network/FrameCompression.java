@@ -0,0 +1,42 @@
+package com.wepay.riff.network;
+
+import java.util.Set;
+
+/**
+ * Compression algorithms of frames. An algorithm is advertised in {@link Hello} as a capability, and the first
+ * algorithm in the declaration order which both peers advertise is used in both directions.
+ */
+public enum FrameCompression {
+
+    /**
+     * Snappy, fast with a moderate compression ratio. This uses the pure Java implementation in Netty.
+     */
+    SNAPPY(Hello.SNAPPY_COMPRESSION),
+
+    /**
+     * Deflate, slower with a better compression ratio. This is the fallback.
+     */
+    DEFLATE(Hello.DEFLATE_COMPRESSION);
+
+    public final short capability;
+
+    FrameCompression(short capability) {
+        this.capability = capability;
+    }
+
+    /**
+     * Selects the compression algorithm to use.
+     * @param local the capabilities advertised by this end
+     * @param remote the capabilities advertised by the peer
+     * @return the compression algorithm, or null if there is no common one
+     */
+    static FrameCompression negotiate(Set<Short> local, Set<Short> remote) {
+        for (FrameCompression compression : values()) {
+            if (local.contains(compression.capability) && remote.contains(compression.capability)) {
+                return compression;
+            }
+        }
+        return null;
+    }
+
+}
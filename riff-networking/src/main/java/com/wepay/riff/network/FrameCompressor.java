@@ -0,0 +1,214 @@
+package com.wepay.riff.network;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.compression.DecompressionException;
+import io.netty.handler.codec.compression.Snappy;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses frame payloads. An instance keeps state for reuse, so it must be confined to one
+ * encoder or decoder, which is called on the event loop of the channel.
+ */
+abstract class FrameCompressor {
+
+    static FrameCompressor create(FrameCompression compression) {
+        switch (compression) {
+            case SNAPPY:
+                return new SnappyCompressor();
+            case DEFLATE:
+                return new DeflateCompressor();
+            default:
+                throw new IllegalArgumentException("unknown compression: " + compression);
+        }
+    }
+
+    /**
+     * Compresses the readable bytes of {@code in} into {@code out}.
+     * @param in uncompressed data
+     * @param out compressed data
+     */
+    abstract void compress(ByteBuf in, ByteBuf out);
+
+    /**
+     * Decompresses the readable bytes of {@code in} into {@code out}.
+     * @param in compressed data
+     * @param out uncompressed data, whose maximum capacity bounds the memory allocated
+     * @param uncompressedLength the expected length of uncompressed data
+     * @throws CorruptedFrameException if the data is corrupted
+     */
+    abstract void decompress(ByteBuf in, ByteBuf out, int uncompressedLength);
+
+    /**
+     * Releases resources.
+     */
+    void close() {
+    }
+
+    /**
+     * Compresses data in chunks of at most {@link #MAX_CHUNK_SIZE} bytes, since the hash table of {@link Snappy} stores
+     * offsets as shorts. Each chunk is a Snappy block preceded by its length (4 bytes). A Snappy block starts with
+     * the uncompressed length as a varint, which {@link Snappy} trusts to allocate the output. It is checked against
+     * the room left in the output before the block is decoded.
+     */
+    private static final class SnappyCompressor extends FrameCompressor {
+
+        // The same as the chunk size of io.netty.handler.codec.compression.SnappyFrameEncoder
+        private static final int MAX_CHUNK_SIZE = Short.MAX_VALUE;
+        private static final int CHUNK_LENGTH_SIZE = 4;
+        // The uncompressed length of a block is a varint of at most 5 bytes, 7 bits per byte
+        private static final int MAX_PREAMBLE_SIZE = 5;
+        private static final int PREAMBLE_VALUE_MASK = 0x7F;
+        private static final int PREAMBLE_CONTINUATION_BIT = 0x80;
+
+        private final Snappy snappy = new Snappy();
+
+        @Override
+        void compress(ByteBuf in, ByteBuf out) {
+            while (in.isReadable()) {
+                ByteBuf chunk = in.readSlice(Math.min(in.readableBytes(), MAX_CHUNK_SIZE));
+                int lengthIndex = out.writerIndex();
+                out.writeInt(0);
+                snappy.reset();
+                snappy.encode(chunk, out, chunk.readableBytes());
+                out.setInt(lengthIndex, out.writerIndex() - lengthIndex - CHUNK_LENGTH_SIZE);
+            }
+        }
+
+        @Override
+        void decompress(ByteBuf in, ByteBuf out, int uncompressedLength) {
+            while (in.isReadable()) {
+                if (in.readableBytes() < CHUNK_LENGTH_SIZE) {
+                    throw new CorruptedFrameException("truncated chunk length");
+                }
+                int chunkLength = in.readInt();
+                if (chunkLength <= 0 || chunkLength > in.readableBytes()) {
+                    throw new CorruptedFrameException("invalid chunk length: " + chunkLength);
+                }
+                ByteBuf chunk = in.readSlice(chunkLength);
+                int chunkUncompressedLength = preamble(chunk);
+                if (chunkUncompressedLength > out.maxWritableBytes()) {
+                    throw new CorruptedFrameException("decompressed frame too long: chunk=" + chunkUncompressedLength
+                        + " remaining=" + out.maxWritableBytes());
+                }
+                snappy.reset();
+                try {
+                    snappy.decode(chunk, out);
+                } catch (DecompressionException | IndexOutOfBoundsException ex) {
+                    throw new CorruptedFrameException("failed to decompress a frame", ex);
+                }
+            }
+            if (out.readableBytes() != uncompressedLength) {
+                throw new CorruptedFrameException("decompressed frame length mismatch: expected=" + uncompressedLength
+                    + " actual=" + out.readableBytes());
+            }
+        }
+
+        /**
+         * Returns the uncompressed length of a Snappy block without consuming it.
+         */
+        private static int preamble(ByteBuf chunk) {
+            int value = 0;
+            for (int i = 0; i < MAX_PREAMBLE_SIZE && i < chunk.readableBytes(); i++) {
+                int b = chunk.getUnsignedByte(chunk.readerIndex() + i);
+                value |= (b & PREAMBLE_VALUE_MASK) << (7 * i);
+                if ((b & PREAMBLE_CONTINUATION_BIT) == 0) {
+                    if (value < 0) {
+                        break;
+                    }
+                    return value;
+                }
+            }
+            throw new CorruptedFrameException("invalid chunk preamble");
+        }
+
+    }
+
+    private static final class DeflateCompressor extends FrameCompressor {
+
+        // The same as the buffer size of java.util.zip.DeflaterOutputStream
+        private static final int CHUNK_SIZE = 512;
+
+        // Created on first use since an encoder only compresses and a decoder only decompresses
+        private Deflater deflater;
+        private Inflater inflater;
+
+        @Override
+        void compress(ByteBuf in, ByteBuf out) {
+            if (deflater == null) {
+                deflater = new Deflater(Deflater.BEST_SPEED);
+            } else {
+                deflater.reset();
+            }
+            if (in.hasArray()) {
+                deflater.setInput(in.array(), in.arrayOffset() + in.readerIndex(), in.readableBytes());
+            } else {
+                deflater.setInput(ByteBufUtil.getBytes(in));
+            }
+            deflater.finish();
+            in.skipBytes(in.readableBytes());
+
+            while (!deflater.finished()) {
+                out.ensureWritable(CHUNK_SIZE);
+                if (out.hasArray()) {
+                    int n = deflater.deflate(out.array(), out.arrayOffset() + out.writerIndex(), out.writableBytes());
+                    out.writerIndex(out.writerIndex() + n);
+                } else {
+                    byte[] chunk = new byte[CHUNK_SIZE];
+                    int n = deflater.deflate(chunk);
+                    out.writeBytes(chunk, 0, n);
+                }
+            }
+        }
+
+        @Override
+        void decompress(ByteBuf in, ByteBuf out, int uncompressedLength) {
+            if (inflater == null) {
+                inflater = new Inflater();
+            } else {
+                inflater.reset();
+            }
+            if (in.hasArray()) {
+                inflater.setInput(in.array(), in.arrayOffset() + in.readerIndex(), in.readableBytes());
+            } else {
+                inflater.setInput(ByteBufUtil.getBytes(in));
+            }
+            in.skipBytes(in.readableBytes());
+
+            out.ensureWritable(uncompressedLength);
+            try {
+                int n;
+                if (out.hasArray()) {
+                    n = inflater.inflate(out.array(), out.arrayOffset() + out.writerIndex(), uncompressedLength);
+                    out.writerIndex(out.writerIndex() + n);
+                } else {
+                    byte[] bytes = new byte[uncompressedLength];
+                    n = inflater.inflate(bytes);
+                    out.writeBytes(bytes, 0, n);
+                }
+                if (n != uncompressedLength || !inflater.finished()) {
+                    throw new CorruptedFrameException("decompressed frame length mismatch: expected="
+                        + uncompressedLength + " actual=" + n);
+                }
+            } catch (DataFormatException ex) {
+                throw new CorruptedFrameException("failed to decompress a frame", ex);
+            }
+        }
+
+        @Override
+        void close() {
+            if (deflater != null) {
+                deflater.end();
+            }
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+
+    }
+
+}
@@ -4,6 +4,17 @@ import java.util.Set;
 
 public class Hello extends Message {
 
+    /**
+     * Optional capabilities are advertised in the version set as reserved negative values, which are not used as
+     * codec versions. A peer which does not know a capability ignores it because it matches none of its codecs.
+     * A capability is used only when both peers advertise it.
+     */
+    public static final short COMPACT_ENCODING = -1;
+    public static final short SNAPPY_COMPRESSION = -2;
+    public static final short DEFLATE_COMPRESSION = -3;
+    public static final short STRING_DICTIONARY = -4;
+    public static final short CORRELATION = -5;
+
     public final Set<Short> versions;
     public final String message;
 
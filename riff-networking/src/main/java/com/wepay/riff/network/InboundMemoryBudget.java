@@ -0,0 +1,189 @@
+package com.wepay.riff.network;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * InboundMemoryBudget bounds the bytes of received messages buffered by all connections sharing it.
+ * A budget is typically created once per process and shared by all {@link NetworkServer}s
+ * (see {@link NetworkServer#setInboundMemoryBudget(InboundMemoryBudget)}).
+ * <p>
+ * When the total goes above the high watermark, reading is paused on the heaviest connections, just enough of them
+ * that the total goes below the low watermark once they drain. Lighter connections keep reading. When the total goes
+ * below the low watermark, all paused connections are resumed at once.
+ * <p>
+ * The size of a message is its encoded size (see {@link Message#encodedSize()}).
+ * The total is a lock-free counter. The monitor is taken only when the total is beyond a watermark.
+ */
+public final class InboundMemoryBudget {
+
+    private final long lowWatermark;
+    private final long highWatermark;
+    private final AtomicLong bufferedBytes = new AtomicLong(0L);
+
+    // Modified only while holding the monitor
+    private volatile boolean overBudget = false;
+    private final Set<Registration> registrations = new HashSet<>();
+    private final Set<Registration> paused = new HashSet<>();
+
+    /**
+     * Creates a budget.
+     * @param lowWatermark paused connections are resumed when the total buffered bytes goes below this
+     * @param highWatermark connections are paused when the total buffered bytes goes above this
+     */
+    public InboundMemoryBudget(long lowWatermark, long highWatermark) {
+        if (lowWatermark < 0 || highWatermark < lowWatermark) {
+            throw new IllegalArgumentException(
+                "invalid watermarks: low=" + lowWatermark + " high=" + highWatermark
+            );
+        }
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+    }
+
+    /**
+     * Returns the total bytes of buffered messages.
+     * @return buffered bytes
+     */
+    public long bufferedBytes() {
+        return bufferedBytes.get();
+    }
+
+    /**
+     * Returns the number of connections paused by this budget.
+     * @return the number of paused connections
+     */
+    public int numPausedConnections() {
+        synchronized (this) {
+            return paused.size();
+        }
+    }
+
+    /**
+     * Registers the throttling of a connection.
+     * @param throttling throttling
+     * @return registration
+     */
+    Registration register(Throttling throttling) {
+        Registration registration = new Registration(throttling);
+        synchronized (this) {
+            registrations.add(registration);
+        }
+        return registration;
+    }
+
+    /**
+     * Unregisters a connection. The registration still accounts for messages released after this call.
+     * @param registration registration
+     */
+    void unregister(Registration registration) {
+        synchronized (this) {
+            registrations.remove(registration);
+            if (paused.remove(registration)) {
+                registration.throttling.pausedByBudget(false);
+            }
+        }
+    }
+
+    private void add(long delta) {
+        long total = bufferedBytes.addAndGet(delta);
+
+        // Fast path. Take the monitor only when the state may change.
+        if (total > highWatermark || (overBudget && total < lowWatermark)) {
+            rebalance();
+        }
+    }
+
+    private void rebalance() {
+        synchronized (this) {
+            // Re-read the total after pausing. A concurrent release which happened before overBudget was set is seen
+            // here, and one which happens after takes the slow path by itself.
+            while (true) {
+                long total = bufferedBytes.get();
+
+                if (total < lowWatermark) {
+                    if (overBudget) {
+                        overBudget = false;
+                        for (Registration registration : paused) {
+                            registration.throttling.pausedByBudget(false);
+                        }
+                        paused.clear();
+                    }
+                    return;
+                }
+
+                if (total <= highWatermark) {
+                    return;
+                }
+
+                overBudget = true;
+                pauseHeaviest(total - lowWatermark);
+
+                if (bufferedBytes.get() >= lowWatermark) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // The caller must hold the monitor
+    private void pauseHeaviest(long excess) {
+        long pausedBytes = 0L;
+        for (Registration registration : paused) {
+            pausedBytes += registration.bufferedBytes.get();
+        }
+
+        if (pausedBytes >= excess) {
+            return;
+        }
+
+        List<Registration> candidates = new ArrayList<>(registrations.size());
+        for (Registration registration : registrations) {
+            if (!paused.contains(registration)) {
+                // Sort by a snapshot since the counters keep changing
+                registration.sortKey = registration.bufferedBytes.get();
+                if (registration.sortKey > 0) {
+                    candidates.add(registration);
+                }
+            }
+        }
+        candidates.sort((r1, r2) -> Long.compare(r2.sortKey, r1.sortKey));
+
+        for (Registration registration : candidates) {
+            if (pausedBytes >= excess) {
+                break;
+            }
+            paused.add(registration);
+            registration.throttling.pausedByBudget(true);
+            pausedBytes += registration.sortKey;
+        }
+    }
+
+    /**
+     * A connection registered to a budget.
+     */
+    final class Registration {
+
+        private final Throttling throttling;
+        private final AtomicLong bufferedBytes = new AtomicLong(0L);
+        private long sortKey = 0L; // Used only while holding the budget monitor
+
+        private Registration(Throttling throttling) {
+            this.throttling = throttling;
+        }
+
+        InboundMemoryBudget budget() {
+            return InboundMemoryBudget.this;
+        }
+
+        void add(long delta) {
+            bufferedBytes.addAndGet(delta);
+            InboundMemoryBudget.this.add(delta);
+        }
+
+    }
+
+}
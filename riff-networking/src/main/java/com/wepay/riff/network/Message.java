@@ -1,7 +1,37 @@
 package com.wepay.riff.network;
 
+/**
+ * A message. A message that holds a reference counted resource, such as a buffer obtained by
+ * {@link MessageAttributeReader#readByteBufSlice()}, should implement {@link io.netty.util.ReferenceCounted}.
+ * A received message is released after it is processed by {@link MessageHandler}.
+ */
 public abstract class Message {
 
+    private int encodedSize = -1;
+    private long queuedNanos = 0L;
+
     public abstract byte type();
 
+    /**
+     * Returns the size of the encoded message in bytes excluding the frame header. This is set by
+     * {@link MessageDecoder} when the message is received.
+     * @return the encoded size, or -1 if unknown
+     */
+    public int encodedSize() {
+        return encodedSize;
+    }
+
+    void encodedSize(int encodedSize) {
+        this.encodedSize = encodedSize;
+    }
+
+    // The time the message is queued to a processor. Set only when metrics are enabled.
+    long queuedNanos() {
+        return queuedNanos;
+    }
+
+    void queuedNanos(long queuedNanos) {
+        this.queuedNanos = queuedNanos;
+    }
+
 }
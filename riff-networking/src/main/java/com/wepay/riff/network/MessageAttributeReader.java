@@ -1,5 +1,8 @@
 package com.wepay.riff.network;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
 import java.util.List;
 
 public abstract class MessageAttributeReader {
@@ -16,12 +19,120 @@ public abstract class MessageAttributeReader {
 
     public abstract byte[] readByteArray();
 
+    /**
+     * Reads a byte array written by {@link MessageAttributeWriter#writeByteArray(byte[])} or
+     * {@link MessageAttributeWriter#writeByteBuf(ByteBuf)} without copying it if possible.
+     * The returned buffer is retained, and the caller is responsible for releasing it. A message holding the buffer
+     * should implement {@link io.netty.util.ReferenceCounted}, then it is released after it is processed.
+     * The default implementation wraps the array read by {@link #readByteArray()}.
+     *
+     * @return a retained buffer, or null
+     */
+    public ByteBuf readByteBufSlice() {
+        byte[] array = readByteArray();
+        return array != null ? Unpooled.wrappedBuffer(array) : null;
+    }
+
     public abstract short[] readShortArray();
 
     public abstract int[] readIntArray();
 
+    /**
+     * Reads an int list written by {@link MessageAttributeWriter#writeIntList(List)}. The readers of riff return
+     * a {@link com.wepay.riff.util.IntArrayList}, which holds the elements without boxing them.
+     *
+     * @return list, or null
+     */
     public abstract List<Integer> readIntList();
 
+    /**
+     * Reads a long array written by {@link MessageAttributeWriter#writeLongArray(long[])}.
+     * The default implementation reads the length by {@link #readInt()} and the elements by {@link #readLong()}.
+     *
+     * @return array, or null
+     */
+    public long[] readLongArray() {
+        int arrayLength = readInt();
+
+        if (arrayLength >= 0) {
+            long[] array = new long[arrayLength];
+            for (int i = 0; i < arrayLength; i++) {
+                array[i] = readLong();
+            }
+            return array;
+
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Reads a double array written by {@link MessageAttributeWriter#writeDoubleArray(double[])}.
+     * The default implementation reads the length by {@link #readInt()} and the elements by {@link #readDouble()}.
+     *
+     * @return array, or null
+     */
+    public double[] readDoubleArray() {
+        int arrayLength = readInt();
+
+        if (arrayLength >= 0) {
+            double[] array = new double[arrayLength];
+            for (int i = 0; i < arrayLength; i++) {
+                array[i] = readDouble();
+            }
+            return array;
+
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Reads a float array written by {@link MessageAttributeWriter#writeFloatArray(float[])}.
+     * The default implementation reads the length and the bits of the elements by {@link #readInt()}.
+     *
+     * @return array, or null
+     */
+    public float[] readFloatArray() {
+        int arrayLength = readInt();
+
+        if (arrayLength >= 0) {
+            float[] array = new float[arrayLength];
+            for (int i = 0; i < arrayLength; i++) {
+                array[i] = Float.intBitsToFloat(readInt());
+            }
+            return array;
+
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Reads a boolean array written by {@link MessageAttributeWriter#writeBooleanArray(boolean[])}.
+     * The default implementation reads the length by {@link #readInt()} and the bitset by {@link #readByte()}.
+     *
+     * @return array, or null
+     */
+    public boolean[] readBooleanArray() {
+        int arrayLength = readInt();
+
+        if (arrayLength >= 0) {
+            boolean[] array = new boolean[arrayLength];
+            byte bits = 0;
+            for (int i = 0; i < arrayLength; i++) {
+                if ((i & 7) == 0) {
+                    bits = readByte();
+                }
+                array[i] = (bits & (1 << (i & 7))) != 0;
+            }
+            return array;
+
+        } else {
+            return null;
+        }
+    }
+
     public abstract boolean readBoolean();
 
     public abstract String readString();
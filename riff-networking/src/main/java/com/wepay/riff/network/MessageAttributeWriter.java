@@ -1,5 +1,7 @@
 package com.wepay.riff.network;
 
+import io.netty.buffer.ByteBuf;
+
 import java.util.List;
 
 public abstract class MessageAttributeWriter {
@@ -16,12 +18,118 @@ public abstract class MessageAttributeWriter {
 
     public abstract void writeByteArray(byte[] array);
 
+    /**
+     * Writes the readable bytes of the buffer in the same format as {@link #writeByteArray(byte[])}.
+     * The reader index of the buffer is not modified. The default implementation copies the bytes to an array.
+     *
+     * @param buf buffer
+     */
+    public void writeByteBuf(ByteBuf buf) {
+        if (buf != null) {
+            byte[] array = new byte[buf.readableBytes()];
+            buf.getBytes(buf.readerIndex(), array);
+            writeByteArray(array);
+
+        } else {
+            writeByteArray(null);
+        }
+    }
+
     public abstract void writeShortArray(short[] array);
 
     public abstract void writeIntArray(int[] array);
 
+    /**
+     * Writes an int list as the length followed by the elements. The writers of riff write the elements of
+     * a {@link com.wepay.riff.util.IntArrayList} without unboxing them.
+     *
+     * @param list list, or null
+     */
     public abstract void writeIntList(List<Integer> list);
 
+    /**
+     * Writes a long array as the length followed by the elements. The elements are copied in bulk if possible.
+     * The default implementation writes the length by {@link #writeInt(int)}, -1 for null, and the elements by
+     * {@link #writeLong(long)}.
+     *
+     * @param array array, or null
+     */
+    public void writeLongArray(long[] array) {
+        if (array != null) {
+            writeInt(array.length);
+            for (long v : array) {
+                writeLong(v);
+            }
+
+        } else {
+            writeInt(-1);
+        }
+    }
+
+    /**
+     * Writes a double array as the length followed by the elements. The elements are copied in bulk if possible.
+     * The default implementation writes the length by {@link #writeInt(int)}, -1 for null, and the elements by
+     * {@link #writeDouble(double)}.
+     *
+     * @param array array, or null
+     */
+    public void writeDoubleArray(double[] array) {
+        if (array != null) {
+            writeInt(array.length);
+            for (double v : array) {
+                writeDouble(v);
+            }
+
+        } else {
+            writeInt(-1);
+        }
+    }
+
+    /**
+     * Writes a float array as the length followed by the elements. The elements are copied in bulk if possible.
+     * The default implementation writes the length, -1 for null, and the bits of the elements by
+     * {@link #writeInt(int)}.
+     *
+     * @param array array, or null
+     */
+    public void writeFloatArray(float[] array) {
+        if (array != null) {
+            writeInt(array.length);
+            for (float v : array) {
+                writeInt(Float.floatToRawIntBits(v));
+            }
+
+        } else {
+            writeInt(-1);
+        }
+    }
+
+    /**
+     * Writes a boolean array as a bitset, the length followed by eight elements per byte. The first element of a byte
+     * is the least significant bit. The default implementation writes the length by {@link #writeInt(int)}, -1 for
+     * null, and the bitset by {@link #writeByte(byte)}.
+     *
+     * @param array array, or null
+     */
+    public void writeBooleanArray(boolean[] array) {
+        if (array != null) {
+            writeInt(array.length);
+            int bits = 0;
+            for (int i = 0; i < array.length; i++) {
+                if (array[i]) {
+                    bits |= 1 << (i & 7);
+                }
+                if ((i & 7) == 7 || i == array.length - 1) {
+                    writeByte((byte) bits);
+                    bits = 0;
+                }
+            }
+
+        } else {
+            writeInt(-1);
+        }
+    }
+
     public abstract void writeBoolean(boolean b);
 
     public abstract void writeString(String text);
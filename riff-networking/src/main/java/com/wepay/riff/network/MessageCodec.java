@@ -10,4 +10,16 @@ public interface MessageCodec {
 
     void encode(Message message, MessageAttributeWriter writer);
 
+    /**
+     * Estimates the number of bytes {@link #encode(Message, MessageAttributeWriter)} writes for the message.
+     * {@link MessageEncoder} uses the estimate to allocate an output buffer of the right size up front.
+     * The estimate does not have to be exact, the buffer grows if needed.
+     *
+     * @param message message
+     * @return the estimated size in bytes, or a negative value if unknown
+     */
+    default int estimateSize(Message message) {
+        return -1;
+    }
+
 }
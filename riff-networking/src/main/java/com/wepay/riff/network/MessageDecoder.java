@@ -1,8 +1,11 @@
 package com.wepay.riff.network;
 
 import com.wepay.riff.message.ByteBufMessageAttributeReader;
+import com.wepay.riff.message.CompactByteBufMessageAttributeReader;
+import com.wepay.riff.message.DictionaryMessageAttributeReader;
 import com.wepay.riff.util.Logging;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
 import io.netty.handler.codec.CorruptedFrameException;
@@ -12,21 +15,140 @@ import java.util.List;
 
 public class MessageDecoder extends ByteToMessageDecoder {
 
+    // The default maximum length of a compressed payload after decompression
+    public static final int DEFAULT_MAX_UNCOMPRESSED_LENGTH = 64 * 1024 * 1024;
+
+    // magic byte (1) + version (2) + length (4)
+    private static final int HEADER_SIZE = 7;
+    // The high bit of the length is set if the payload is compressed
+    private static final int COMPRESSED_FLAG = Integer.MIN_VALUE;
+    // The uncompressed length precedes a compressed payload
+    private static final int UNCOMPRESSED_LENGTH_SIZE = 4;
+
     private final byte magicByte;
     private final short version;
     private final MessageCodec codec;
+    private final NetworkMetrics.CodecMetrics metrics;
+    private final FrameCompressor compressor;
+    private final int maxUncompressedLength;
+
+    // The readers are reset and reused for every frame. A decoder is not shared, so they are confined to the event
+    // loop of the channel. Only one of byteBufReader and compactReader is used.
+    private final ByteBufMessageAttributeReader byteBufReader;
+    private final CompactByteBufMessageAttributeReader compactReader;
+    private final MessageAttributeReader reader;
     private static final Logger logger = Logging.getLogger(MessageDecoder.class);
 
     public MessageDecoder(MessageCodec codec) {
+        this(codec, null);
+    }
+
+    /**
+     * Creates a decoder which records metrics of decoded messages.
+     * @param codec codec
+     * @param metrics metrics, or null to disable
+     */
+    public MessageDecoder(MessageCodec codec, NetworkMetrics metrics) {
+        this(codec, metrics, false);
+    }
+
+    /**
+     * Creates a decoder.
+     * @param codec codec
+     * @param metrics metrics, or null to disable
+     * @param compact true to read attributes in the compact encoding (see {@link CompactByteBufMessageAttributeReader})
+     */
+    public MessageDecoder(MessageCodec codec, NetworkMetrics metrics, boolean compact) {
+        this(codec, metrics, compact, null);
+    }
+
+    /**
+     * Creates a decoder which accepts compressed payloads.
+     * @param codec codec
+     * @param metrics metrics, or null to disable
+     * @param compact true to read attributes in the compact encoding (see {@link CompactByteBufMessageAttributeReader})
+     * @param compression compression algorithm, or null to reject compressed payloads
+     */
+    public MessageDecoder(MessageCodec codec, NetworkMetrics metrics, boolean compact, FrameCompression compression) {
+        this(codec, metrics, compact, false, compression);
+    }
+
+    /**
+     * Creates a decoder.
+     * @param codec codec
+     * @param metrics metrics, or null to disable
+     * @param compact true to read attributes in the compact encoding (see {@link CompactByteBufMessageAttributeReader})
+     * @param stringDictionary true to resolve string ids (see {@link DictionaryMessageAttributeReader})
+     * @param compression compression algorithm, or null to reject compressed payloads
+     */
+    public MessageDecoder(
+        MessageCodec codec,
+        NetworkMetrics metrics,
+        boolean compact,
+        boolean stringDictionary,
+        FrameCompression compression
+    ) {
+        this(codec, metrics, compact, stringDictionary, compression, DEFAULT_MAX_UNCOMPRESSED_LENGTH);
+    }
+
+    /**
+     * Creates a decoder. A compressed frame whose payload is longer than {@code maxUncompressedLength} bytes, before or
+     * after decompression, is rejected with {@link CorruptedFrameException}. This bounds the memory allocated for
+     * a frame whose header claims a huge uncompressed length. Uncompressed frames are not limited, since their memory
+     * grows only as their bytes arrive.
+     * @param codec codec
+     * @param metrics metrics, or null to disable
+     * @param compact true to read attributes in the compact encoding (see {@link CompactByteBufMessageAttributeReader})
+     * @param stringDictionary true to resolve string ids (see {@link DictionaryMessageAttributeReader})
+     * @param compression compression algorithm, or null to reject compressed payloads
+     * @param maxUncompressedLength the maximum length of a compressed payload after decompression in bytes
+     */
+    public MessageDecoder(
+        MessageCodec codec,
+        NetworkMetrics metrics,
+        boolean compact,
+        boolean stringDictionary,
+        FrameCompression compression,
+        int maxUncompressedLength
+    ) {
+        if (maxUncompressedLength <= 0) {
+            throw new IllegalArgumentException("the maximum uncompressed length must be positive");
+        }
+        this.maxUncompressedLength = maxUncompressedLength;
         this.magicByte = codec.magicByte();
         this.version = codec.version();
         this.codec = codec;
+        this.metrics = metrics != null ? metrics.codec(codec) : null;
+        this.compressor = compression != null ? FrameCompressor.create(compression) : null;
+
+        MessageAttributeReader reader;
+        if (compact) {
+            this.byteBufReader = null;
+            this.compactReader = new CompactByteBufMessageAttributeReader(Unpooled.EMPTY_BUFFER, 0);
+            reader = compactReader;
+        } else {
+            this.byteBufReader = new ByteBufMessageAttributeReader(Unpooled.EMPTY_BUFFER, 0);
+            this.compactReader = null;
+            reader = byteBufReader;
+        }
+        if (stringDictionary) {
+            reader = new DictionaryMessageAttributeReader(reader, new DictionaryMessageAttributeReader.Dictionary());
+        }
+        this.reader = reader;
+    }
+
+    @Override
+    protected void handlerRemoved0(ChannelHandlerContext ctx) throws Exception {
+        if (compressor != null) {
+            compressor.close();
+        }
+        super.handlerRemoved0(ctx);
     }
 
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
         // Wait until the magic byte, version, and the length prefix is available.
-        if (in.readableBytes() < 7) {
+        if (in.readableBytes() < HEADER_SIZE) {
             return;
         }
 
@@ -59,15 +181,33 @@ public class MessageDecoder extends ByteToMessageDecoder {
 
         // Wait until the whole data is available.
         int length = in.readInt();
+        boolean compressed = (length & COMPRESSED_FLAG) != 0;
+        length &= ~COMPRESSED_FLAG;
+        if (compressed && length > maxUncompressedLength) {
+            // A compressed payload is shorter than its uncompressed length
+            throw new CorruptedFrameException("Invalid Message: compressed length=" + length
+                + " exceeds maxUncompressedLength=" + maxUncompressedLength + " channel=" + ctx);
+        }
         if (in.readableBytes() < length) {
             in.resetReaderIndex();
             return;
         }
 
+        if (compressed) {
+            decodeCompressed(ctx, in, length, out);
+            return;
+        }
+
         // Decode the received data into a new Message.
-        MessageAttributeReader reader = new ByteBufMessageAttributeReader(in, length);
+        MessageAttributeReader reader = resetReader(in, length);
         if (length != 0) {
-            out.add(codec.decode(reader));
+            long startNanos = metrics != null ? System.nanoTime() : 0L;
+            Message msg = codec.decode(reader);
+            msg.encodedSize(length);
+            out.add(msg);
+            if (metrics != null) {
+                metrics.decoded(HEADER_SIZE + length, System.nanoTime() - startNanos);
+            }
         } else {
             logger.debug("Received KeepAlive from={}.", ctx.channel());
         }
@@ -75,6 +215,52 @@ public class MessageDecoder extends ByteToMessageDecoder {
         reader.ensureReadCompletely();
     }
 
+    private void decodeCompressed(ChannelHandlerContext ctx, ByteBuf in, int length, List<Object> out) {
+        if (compressor == null || length < UNCOMPRESSED_LENGTH_SIZE) {
+            in.skipBytes(length);
+            throw new CorruptedFrameException(
+                "Invalid Message: unexpected compressed payload length=" + length + " channel=" + ctx);
+        }
+
+        long startNanos = metrics != null ? System.nanoTime() : 0L;
+        int uncompressedLength = in.readInt();
+        ByteBuf compressedPayload = in.readSlice(length - UNCOMPRESSED_LENGTH_SIZE);
+        if (uncompressedLength <= 0 || uncompressedLength > maxUncompressedLength) {
+            throw new CorruptedFrameException(
+                "Invalid Message: uncompressedLength=" + uncompressedLength
+                    + " maxUncompressedLength=" + maxUncompressedLength + " channel=" + ctx);
+        }
+
+        // The maximum capacity bounds the memory allocated for a payload which decompresses to more than it claims
+        ByteBuf payload = in.alloc().heapBuffer(uncompressedLength, uncompressedLength);
+        try {
+            compressor.decompress(compressedPayload, payload, uncompressedLength);
+
+            // Decode the decompressed data into a new Message.
+            MessageAttributeReader reader = resetReader(payload, uncompressedLength);
+            Message msg = codec.decode(reader);
+            msg.encodedSize(uncompressedLength);
+            out.add(msg);
+            reader.ensureReadCompletely();
+
+            if (metrics != null) {
+                metrics.decoded(HEADER_SIZE + length, System.nanoTime() - startNanos);
+            }
+
+        } finally {
+            payload.release();
+        }
+    }
+
+    private MessageAttributeReader resetReader(ByteBuf in, int length) {
+        if (compactReader != null) {
+            compactReader.reset(in, length);
+        } else {
+            byteBufReader.reset(in, length);
+        }
+        return reader;
+    }
+
     private byte[] getFirstBytes(ByteBuf in, int maxBytes) {
         in.resetReaderIndex();
         int numBytes = Math.min(maxBytes, in.readableBytes());
@@ -1,20 +1,138 @@
 package com.wepay.riff.network;
 
 import com.wepay.riff.message.ByteBufMessageAttributeWriter;
+import com.wepay.riff.message.CompactByteBufMessageAttributeWriter;
+import com.wepay.riff.message.DictionaryMessageAttributeWriter;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToByteEncoder;
 
 public class MessageEncoder extends MessageToByteEncoder<Message> {
 
+    // magic byte (1) + version (2) + length (4)
+    private static final int HEADER_SIZE = 7;
+    // The same as netty's default initial capacity
+    private static final int DEFAULT_INITIAL_CAPACITY = 256;
+    // The high bit of the length is set if the payload is compressed
+    private static final int COMPRESSED_FLAG = Integer.MIN_VALUE;
+    // The uncompressed length precedes a compressed payload
+    private static final int UNCOMPRESSED_LENGTH_SIZE = 4;
+
     private final byte magicByte;
     private final short version;
     private final MessageCodec codec;
+    private final NetworkMetrics.CodecMetrics metrics;
+    private final FrameCompressor compressor;
+    private final int compressionThreshold;
+
+    // The writers are reset and reused for every frame. An encoder is not shared, so they are confined to the event
+    // loop of the channel. Only one of byteBufWriter and compactWriter is used.
+    private final ByteBufMessageAttributeWriter byteBufWriter;
+    private final CompactByteBufMessageAttributeWriter compactWriter;
+    private final MessageAttributeWriter writer;
 
     public MessageEncoder(MessageCodec codec) {
+        this(codec, null);
+    }
+
+    /**
+     * Creates an encoder which records metrics of encoded messages.
+     * @param codec codec
+     * @param metrics metrics, or null to disable
+     */
+    public MessageEncoder(MessageCodec codec, NetworkMetrics metrics) {
+        this(codec, metrics, false);
+    }
+
+    /**
+     * Creates an encoder.
+     * @param codec codec
+     * @param metrics metrics, or null to disable
+     * @param compact true to write attributes in the compact encoding (see {@link CompactByteBufMessageAttributeWriter})
+     */
+    public MessageEncoder(MessageCodec codec, NetworkMetrics metrics, boolean compact) {
+        this(codec, metrics, compact, null, 0);
+    }
+
+    /**
+     * Creates an encoder which compresses payloads. A payload is sent compressed only if it is at least
+     * {@code compressionThreshold} bytes long, and compression makes it smaller.
+     * @param codec codec
+     * @param metrics metrics, or null to disable
+     * @param compact true to write attributes in the compact encoding (see {@link CompactByteBufMessageAttributeWriter})
+     * @param compression compression algorithm, or null to disable
+     * @param compressionThreshold the minimum payload size to compress in bytes
+     */
+    public MessageEncoder(
+        MessageCodec codec,
+        NetworkMetrics metrics,
+        boolean compact,
+        FrameCompression compression,
+        int compressionThreshold
+    ) {
+        this(codec, metrics, compact, false, compression, compressionThreshold);
+    }
+
+    /**
+     * Creates an encoder.
+     * @param codec codec
+     * @param metrics metrics, or null to disable
+     * @param compact true to write attributes in the compact encoding (see {@link CompactByteBufMessageAttributeWriter})
+     * @param stringDictionary true to replace repeated strings with ids (see {@link DictionaryMessageAttributeWriter})
+     * @param compression compression algorithm, or null to disable
+     * @param compressionThreshold the minimum payload size to compress in bytes
+     */
+    public MessageEncoder(
+        MessageCodec codec,
+        NetworkMetrics metrics,
+        boolean compact,
+        boolean stringDictionary,
+        FrameCompression compression,
+        int compressionThreshold
+    ) {
         this.magicByte = codec.magicByte();
         this.version = codec.version();
         this.codec = codec;
+        this.metrics = metrics != null ? metrics.codec(codec) : null;
+        this.compressor = compression != null ? FrameCompressor.create(compression) : null;
+        this.compressionThreshold = Math.max(1, compressionThreshold);
+
+        MessageAttributeWriter writer;
+        if (compact) {
+            this.byteBufWriter = null;
+            this.compactWriter = new CompactByteBufMessageAttributeWriter(Unpooled.EMPTY_BUFFER);
+            writer = compactWriter;
+        } else {
+            this.byteBufWriter = new ByteBufMessageAttributeWriter(Unpooled.EMPTY_BUFFER);
+            this.compactWriter = null;
+            writer = byteBufWriter;
+        }
+        if (stringDictionary) {
+            writer = new DictionaryMessageAttributeWriter(writer, new DictionaryMessageAttributeWriter.Dictionary());
+        }
+        this.writer = writer;
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        if (compressor != null) {
+            compressor.close();
+        }
+        super.handlerRemoved(ctx);
+    }
+
+    @Override
+    protected ByteBuf allocateBuffer(ChannelHandlerContext ctx, Message msg, boolean preferDirect) {
+        int size = msg instanceof KeepAliveMessage ? 0 : codec.estimateSize(msg);
+
+        // Allocate a (pooled by default) buffer large enough to avoid reallocations if the size is known.
+        int capacity = size >= 0 ? HEADER_SIZE + size : DEFAULT_INITIAL_CAPACITY;
+        if (preferDirect) {
+            return ctx.alloc().ioBuffer(capacity);
+        } else {
+            return ctx.alloc().heapBuffer(capacity);
+        }
     }
 
     @Override
@@ -31,12 +149,51 @@ public class MessageEncoder extends MessageToByteEncoder<Message> {
         out.writeInt(0);
 
         // Encode the message
-        MessageAttributeWriter writer = new ByteBufMessageAttributeWriter(out);
         if (!(msg instanceof KeepAliveMessage)) {
+            long startNanos = metrics != null ? System.nanoTime() : 0L;
+            if (compactWriter != null) {
+                compactWriter.reset(out);
+            } else {
+                byteBufWriter.reset(out);
+            }
             codec.encode(msg, writer);
+
+            int length = writer.bytesWritten();
+            if (compressor != null && length >= compressionThreshold) {
+                length = compress(out, index + 4, length);
+            }
+            out.setInt(index, length);
+
+            if (metrics != null) {
+                metrics.encoded(HEADER_SIZE + (length & ~COMPRESSED_FLAG), System.nanoTime() - startNanos);
+            }
+        } else {
+            out.setInt(index, 0);
         }
+    }
+
+    /**
+     * Compresses the payload in place if it becomes smaller.
+     * @return the length field of the frame
+     */
+    private int compress(ByteBuf out, int payloadIndex, int length) {
+        ByteBuf compressed = out.alloc().heapBuffer(length);
+        try {
+            compressor.compress(out.slice(payloadIndex, length), compressed);
 
-        out.setInt(index, writer.bytesWritten());
+            int compressedLength = UNCOMPRESSED_LENGTH_SIZE + compressed.readableBytes();
+            if (compressedLength >= length) {
+                return length;
+            }
+
+            out.writerIndex(payloadIndex);
+            out.writeInt(length);
+            out.writeBytes(compressed);
+            return compressedLength | COMPRESSED_FLAG;
+
+        } finally {
+            compressed.release();
+        }
     }
 
 }
@@ -3,42 +3,92 @@ package com.wepay.riff.network;
 import com.wepay.riff.util.Logging;
 import com.wepay.zktools.util.State;
 import com.wepay.zktools.util.Uninterruptibly;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.WriteBufferWaterMark;
 import io.netty.handler.timeout.IdleState;
 import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.ScheduledFuture;
 import org.slf4j.Logger;
 
 import javax.net.ssl.SSLHandshakeException;
-import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 public abstract class MessageHandler extends SimpleChannelInboundHandler<Message> {
 
+    public static final int DEFAULT_MAX_PENDING_WRITES = 10000;
+
     private static final Logger logger = Logging.getLogger(MessageHandler.class);
 
     private static final int WRITE_BUFFER_LOW_WATER_MARK = 16 * 1024;
     private static final int WRITE_BUFFER_HIGH_WATER_MARK = 32 * 1024;
     private static final WriteBufferWaterMark WRITE_BUFFER_WATER_MARK =
         new WriteBufferWaterMark(WRITE_BUFFER_LOW_WATER_MARK, WRITE_BUFFER_HIGH_WATER_MARK);
+    private static final long DEFAULT_RTT_MICROS = 1000L;
     private static final Integer DEFAULT_PROCESSOR_ID = 0;
 
     private final Object writeLock = new Object();
+    private final Runnable consolidatedFlush = this::consolidatedFlush;
     private final MessageHandlerCallbacks callbacks;
     private final State<Boolean> writable = new State<>(false);
     private final Uninterruptibly.Runnable awaitWritable = () -> writable.await(true);
     private final GenericFutureListener<ChannelFuture> writeCompletionListener;
     private final Throttling throttling;
     private final MessageProcessingThreadPool threadPool;
-    private final Map<Integer, MessageProcessor> inboundQueues = new HashMap<>();
+    private final ProcessorTable inboundQueues = new ProcessorTable();
     private final boolean hasPrivateThreadPool;
 
     private volatile ChannelHandlerContext ctx;
     private volatile MessageCodec messageCodec = null;
+    private volatile int maxMessagesPerTurn = 1;
+    private volatile long maxMicrosPerTurn = 0L;
+    private volatile RequestTracker requestTracker = null;
+    private volatile long processorIdleTimeoutMillis = 0L;
+    private volatile ScheduledFuture<?> processorEvictionTask = null;
+    private volatile InboundMemoryBudget inboundMemoryBudget = null;
+    private volatile NetworkMetrics metrics = null;
+    private volatile WriteBufferWaterMark writeBufferWaterMark = WRITE_BUFFER_WATER_MARK;
+    private volatile AdaptiveWriteBufferWaterMark adaptiveWriteBufferWaterMark = null;
+    private volatile boolean compactEncodingEnabled = false;
+    private volatile boolean compactEncoding = false;
+    private volatile boolean stringDictionaryEnabled = false;
+    private volatile boolean stringDictionary = false;
+    private volatile boolean correlationEnabled = false;
+    private volatile boolean correlation = false;
+    private volatile Set<FrameCompression> compressionEnabled = EnumSet.noneOf(FrameCompression.class);
+    private volatile int compressionThreshold = 0;
+    private volatile FrameCompression compression = null;
+    private volatile int maxUncompressedLength = MessageDecoder.DEFAULT_MAX_UNCOMPRESSED_LENGTH;
+    private volatile int maxPendingWrites = DEFAULT_MAX_PENDING_WRITES;
+    // Read by FlushByteLimiter on the event loop
+    private volatile long flushConsolidationMaxBytes = 0L;
+
+    // Flush consolidation, guarded by writeLock
+    private int flushConsolidationMaxMessages = 0;
+    private int unflushedMessages = 0;
+    private boolean flushScheduled = false;
+    private boolean flushRequestedAfterScheduled = false;
+
+    // Messages sent by sendMessageAsync and not yet written, guarded by writeLock
+    private final Queue<PendingWrite> pendingWrites = new ArrayDeque<>();
+    private boolean closed = false;
 
     private final Map<Short, MessageCodec> codecs;
     private final String helloMessage;
@@ -103,10 +153,23 @@ public abstract class MessageHandler extends SimpleChannelInboundHandler<Message
         }
 
         this.ctx = ctx;
-        ctx.channel().config().setWriteBufferWaterMark(WRITE_BUFFER_WATER_MARK);
+        AdaptiveWriteBufferWaterMark adaptive = adaptiveWriteBufferWaterMark;
+        ctx.channel().config().setWriteBufferWaterMark(adaptive != null ? adaptive.waterMark() : writeBufferWaterMark);
         this.throttling.setChannelConfig(ctx.channel().config());
+        InboundMemoryBudget budget = inboundMemoryBudget;
+        if (budget != null) {
+            this.throttling.setInboundMemoryBudget(budget);
+        }
         this.writable.set(true);
 
+        long idleTimeout = processorIdleTimeoutMillis;
+        if (idleTimeout > 0) {
+            // Eviction runs on the event loop, which is the thread offering messages to processors.
+            processorEvictionTask = ctx.executor().scheduleAtFixedRate(
+                this::evictIdleProcessors, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS
+            );
+        }
+
         // Say Hello!
         sendHello(ctx);
     }
@@ -117,12 +180,19 @@ public abstract class MessageHandler extends SimpleChannelInboundHandler<Message
             this.threadPool.close();
         }
 
-        for (MessageProcessor messageProcessor : inboundQueues.values()) {
+        ScheduledFuture<?> evictionTask = processorEvictionTask;
+        if (evictionTask != null) {
+            evictionTask.cancel(false);
+        }
+
+        for (MessageProcessor messageProcessor : inboundQueues.processors()) {
             messageProcessor.close();
         }
+        throttling.unregisterInboundMemoryBudget();
 
         this.ctx = null;
         this.writable.set(true); // unblock threads waiting in ensureWritable
+        failPendingWrites();
 
         super.channelInactive(ctx);
 
@@ -148,10 +218,21 @@ public abstract class MessageHandler extends SimpleChannelInboundHandler<Message
                 throw ex;
             }
 
-            messageCodec = findCodec(hello.versions);
-            if (messageCodec != null) {
-                ctx.pipeline().replace("helloDecoder", "decoder", new MessageDecoder(messageCodec));
-                ctx.pipeline().replace("helloEncoder", "encoder", new MessageEncoder(messageCodec));
+            MessageCodec codec = findCodec(hello.versions);
+            if (codec != null) {
+                compactEncoding = compactEncodingEnabled && hello.versions.contains(Hello.COMPACT_ENCODING);
+                stringDictionary = stringDictionaryEnabled && hello.versions.contains(Hello.STRING_DICTIONARY);
+                compression = FrameCompression.negotiate(capabilities(), hello.versions);
+                correlation = correlationEnabled && hello.versions.contains(Hello.CORRELATION);
+                messageCodec = correlation ? new CorrelationCodec(codec) : codec;
+                ctx.pipeline().replace("helloDecoder", "decoder",
+                    new MessageDecoder(messageCodec, metrics, compactEncoding, stringDictionary, compression, maxUncompressedLength));
+                ctx.pipeline().replace("helloEncoder", "encoder", new MessageEncoder(
+                    messageCodec, metrics, compactEncoding, stringDictionary, compression, compressionThreshold
+                ));
+                synchronized (writeLock) {
+                    addFlushByteLimiter(ctx);
+                }
 
                 // We declare the channel is active after we get Hello message. This is different from Netty terminology.
                 // TODO : revisit, change terminology
@@ -168,34 +249,245 @@ public abstract class MessageHandler extends SimpleChannelInboundHandler<Message
             }
 
             initialize();
+            writePendingMessages();
+
+        } else if (msg.type() == MessageType.CORRELATED
+            && ((CorrelatedMessage) msg).isResponse
+            && requestTracker != null) {
+            // A response completes the future of the request directly on the event loop. The response is released
+            // by SimpleChannelInboundHandler when this method returns.
+            if (!requestTracker.complete((CorrelatedMessage) msg)) {
+                logger.debug("response to an unknown request (may have timed out): {}", msg);
+            }
 
         } else {
-            // All other messages
+            // All other messages. The message is released by SimpleChannelInboundHandler when this method returns,
+            // so retain it for the processor. The processor releases it after processing.
             MessageProcessor processor = getMessageProcessor(extractProcessorId(msg));
-            processor.offer(msg);
+            processor.offer(ReferenceCountUtil.retain(msg));
         }
     }
 
     private MessageProcessor getMessageProcessor(Integer processorId) {
-        synchronized (inboundQueues) {
-            MessageProcessor messageProcessor = inboundQueues.get(processorId);
-
-            if (messageProcessor == null) {
-                messageProcessor = new MessageProcessor(throttling, threadPool) {
-                    @Override
-                    protected void processMessage(Message msg) {
-                        try {
-                            process(msg);
-                        } catch (Throwable t) {
-                            shutdown();
-                        }
+        // This is called only by the event loop. The lookup is lock-free.
+        int id = processorId != null ? processorId : DEFAULT_PROCESSOR_ID;
+        MessageProcessor messageProcessor = inboundQueues.get(id);
+
+        if (messageProcessor == null) {
+            messageProcessor = new MessageProcessor(
+                throttling.newProcessorThrottling(), threadPool, maxMessagesPerTurn, maxMicrosPerTurn, metrics
+            ) {
+                @Override
+                protected void processMessage(Message msg) {
+                    try {
+                        process(msg);
+                    } catch (Throwable t) {
+                        shutdown();
+                    }
+                }
+
+                @Override
+                protected void processMessages(List<Message> msgs) {
+                    try {
+                        MessageHandler.this.processMessages(msgs);
+                    } catch (Throwable t) {
+                        shutdown();
                     }
-                };
-                inboundQueues.put(processorId, messageProcessor);
+                }
+            };
+            inboundQueues.put(id, messageProcessor);
+        }
+
+        return messageProcessor;
+    }
+
+    /**
+     * Removes processors which have been idle since the last eviction. This runs on the event loop.
+     */
+    private void evictIdleProcessors() {
+        for (int processorId : inboundQueues.processorIds()) {
+            MessageProcessor processor = inboundQueues.get(processorId);
+            if (processor != null && processor.closeIfIdle()) {
+                inboundQueues.remove(processorId, processor);
             }
+        }
+    }
+
+    /**
+     * Sets the idle timeout of message processors. A processor which has received no message for the timeout
+     * (up to twice the timeout) and has no message to process is removed. A new processor is created when a message
+     * for the processor id arrives again. This should be called before the channel becomes active.
+     *
+     * @param idleTimeoutMillis the idle timeout in milliseconds, zero or negative to never remove processors
+     */
+    public void setProcessorIdleTimeout(long idleTimeoutMillis) {
+        this.processorIdleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Sets the throttling policy and thresholds, replacing the queue thresholds given to the constructor.
+     * Reading from the channel is paused when the buffered amount of received messages goes above
+     * {@code highThreshold}, and resumed when it goes below {@code lowThreshold}. How much a message counts is
+     * determined by the policy, e.g. {@link ThrottlingPolicy#BYTES} bounds the buffered bytes.
+     * This should be called before the channel becomes active.
+     *
+     * @param policy throttling policy
+     * @param lowThreshold low threshold
+     * @param highThreshold high threshold
+     */
+    public void setThrottling(ThrottlingPolicy policy, long lowThreshold, long highThreshold) {
+        throttling.setPolicy(policy, lowThreshold, highThreshold);
+    }
+
+    /**
+     * Sets the throttling thresholds of each processor. Reading from the channel is also paused while the buffered
+     * amount of any processor is above {@code highThreshold}, until it goes below {@code lowThreshold}.
+     * This should be called before the channel becomes active.
+     *
+     * @param lowThreshold low threshold of a processor
+     * @param highThreshold high threshold of a processor, zero or negative to disable per-processor throttling
+     */
+    public void setProcessorThrottling(long lowThreshold, long highThreshold) {
+        throttling.setProcessorThresholds(lowThreshold, highThreshold);
+    }
 
-            return messageProcessor;
+    /**
+     * Sets the inbound memory budget shared with other connections. Reading from the channel is also paused while
+     * the budget is exceeded and this connection is among the heaviest ones.
+     * This should be called before the channel becomes active.
+     *
+     * @param budget inbound memory budget
+     */
+    public void setInboundMemoryBudget(InboundMemoryBudget budget) {
+        this.inboundMemoryBudget = budget;
+    }
+
+    /**
+     * Enables metrics. Messages and bytes received and sent, encode and decode time, processor queues, throttling,
+     * and time parked in {@link #ensureWritable()} are recorded (see {@link NetworkMetrics}).
+     * This should be called before the channel becomes active.
+     *
+     * @param metrics metrics
+     */
+    public void setMetrics(NetworkMetrics metrics) {
+        this.metrics = metrics;
+        this.throttling.setMetrics(metrics);
+    }
+
+    /**
+     * Enables the compact encoding of message attributes. Ints and longs are written as zigzag varints, and array
+     * lengths as varints (see {@link com.wepay.riff.message.CompactByteBufMessageAttributeWriter}). The encoding is
+     * advertised in {@link Hello} and used only if the peer enables it, too. Codecs need no change.
+     * This should be called before the channel becomes active.
+     */
+    public void enableCompactEncoding() {
+        this.compactEncodingEnabled = true;
+    }
+
+    /**
+     * Returns true if the compact encoding is negotiated with the peer.
+     * @return true if the compact encoding is used
+     */
+    public boolean isCompactEncoding() {
+        return compactEncoding;
+    }
+
+    /**
+     * Enables the per-connection string dictionary. A string is sent in full the first two times, and as an id
+     * afterwards (see {@link com.wepay.riff.message.DictionaryMessageAttributeWriter}). The receiver returns the same
+     * cached instance for the id. This suits strings repeated on a connection, like topic names. The dictionary is advertised
+     * in {@link Hello} and used only if the peer enables it, too.
+     * This should be called before the channel becomes active.
+     */
+    public void enableStringDictionary() {
+        this.stringDictionaryEnabled = true;
+    }
+
+    /**
+     * Returns true if the string dictionary is negotiated with the peer.
+     * @return true if the string dictionary is used
+     */
+    public boolean isStringDictionary() {
+        return stringDictionary;
+    }
+
+    /**
+     * Enables request ids on messages (see {@link CorrelatedMessage}). Every message is sent with an envelope
+     * carrying the request id of a request or a response. The envelope is advertised in {@link Hello} and used only
+     * if the peer enables it, too. Codecs need no change. Requests can be received once this is enabled, and
+     * {@link #enableRequestTracking(long)} enables this to send them.
+     * This should be called before the channel becomes active.
+     */
+    public void enableCorrelation() {
+        this.correlationEnabled = true;
+    }
+
+    /**
+     * Returns true if request ids are negotiated with the peer.
+     * @return true if request ids are used
+     */
+    public boolean isCorrelation() {
+        return correlation;
+    }
+
+    /**
+     * Enables compression of frames with Snappy or deflate, whichever the peer supports, preferring Snappy.
+     * See {@link #enableCompression(int, FrameCompression...)}.
+     *
+     * @param threshold the minimum payload size to compress in bytes
+     */
+    public void enableCompression(int threshold) {
+        enableCompression(threshold, FrameCompression.values());
+    }
+
+    /**
+     * Enables compression of frames. A payload is compressed only if it is at least {@code threshold} bytes long and
+     * compression makes it smaller. The algorithms are advertised in {@link Hello}, and compression is used only if
+     * the peer enables one of them, too. Old peers do not compress, and they receive no compressed frames.
+     * This should be called before the channel becomes active.
+     *
+     * @param threshold the minimum payload size to compress in bytes
+     * @param algorithms compression algorithms to advertise
+     */
+    public void enableCompression(int threshold, FrameCompression... algorithms) {
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("the compression threshold must be positive");
+        }
+        Set<FrameCompression> enabled = EnumSet.noneOf(FrameCompression.class);
+        enabled.addAll(Arrays.asList(algorithms));
+        this.compressionEnabled = enabled;
+        this.compressionThreshold = threshold;
+    }
+
+    /**
+     * Returns the compression algorithm negotiated with the peer.
+     * @return the compression algorithm, or null if frames are not compressed
+     */
+    public FrameCompression compression() {
+        return compression;
+    }
+
+    /**
+     * Sets the maximum length of a received compressed payload after decompression. A compressed frame claiming more
+     * is treated as corrupted and closes the channel. Uncompressed frames are not limited.
+     * The default is {@link MessageDecoder#DEFAULT_MAX_UNCOMPRESSED_LENGTH}.
+     * This should be called before the channel becomes active.
+     *
+     * @param maxUncompressedLength the maximum uncompressed length in bytes
+     */
+    public void setMaxUncompressedLength(int maxUncompressedLength) {
+        if (maxUncompressedLength <= 0) {
+            throw new IllegalArgumentException("the maximum uncompressed length must be positive");
         }
+        this.maxUncompressedLength = maxUncompressedLength;
+    }
+
+    /**
+     * Returns the number of message processors.
+     * @return the number of processors
+     */
+    int numProcessors() {
+        return inboundQueues.size();
     }
 
     @Override
@@ -226,6 +518,12 @@ public abstract class MessageHandler extends SimpleChannelInboundHandler<Message
         super.channelWritabilityChanged(ctx);
 
         boolean isWritable = ctx.channel().isWritable();
+
+        AdaptiveWriteBufferWaterMark adaptive = adaptiveWriteBufferWaterMark;
+        if (adaptive != null) {
+            adaptive.onWritabilityChanged(ctx.channel(), isWritable, System.nanoTime());
+        }
+
         writable.set(isWritable);
 
         synchronized (writeLock) {
@@ -237,6 +535,10 @@ public abstract class MessageHandler extends SimpleChannelInboundHandler<Message
                 ctx.flush();
             }
         }
+
+        if (isWritable) {
+            writePendingMessages();
+        }
     }
 
     @Override
@@ -265,11 +567,75 @@ public abstract class MessageHandler extends SimpleChannelInboundHandler<Message
         return DEFAULT_PROCESSOR_ID;
     }
 
+    /**
+     * Processes a received message. A message implementing {@link io.netty.util.ReferenceCounted} is released
+     * after this method returns. A subclass must retain it to use it afterwards.
+     *
+     * @param msg message
+     * @throws Exception
+     */
     protected abstract void process(Message msg) throws Exception;
 
+    /**
+     * Processes a batch of messages drained by a processor in one scheduling turn. This is called only when
+     * the processing quantum allows more than one message per turn (see {@link #setProcessingQuantum(int, long)}).
+     * The default implementation calls {@link #process(Message)} for each message. A subclass may override this
+     * to amortize per-message costs, e.g. by batching downstream writes. The list must not be retained.
+     *
+     * @param msgs messages of a processor in the order they were received
+     * @throws Exception
+     */
+    protected void processMessages(List<Message> msgs) throws Exception {
+        for (Message msg : msgs) {
+            process(msg);
+        }
+    }
+
+    /**
+     * Sets the processing quantum. A processor drains up to {@code maxMessages} messages, or until
+     * {@code maxMicros} microseconds have passed, per scheduling turn. The default is one message per turn.
+     * This affects processors created after the call, so it should be called before the channel becomes active.
+     *
+     * @param maxMessages the maximum number of messages processed in a scheduling turn
+     * @param maxMicros the maximum time in microseconds spent in a scheduling turn, no limit if not positive
+     */
+    public void setProcessingQuantum(int maxMessages, long maxMicros) {
+        if (maxMessages <= 0) {
+            throw new IllegalArgumentException("the maximum number of messages per turn must be positive");
+        }
+        this.maxMessagesPerTurn = maxMessages;
+        this.maxMicrosPerTurn = maxMicros;
+    }
+
     protected void sendHello(ChannelHandlerContext ctx) {
         logger.debug("sending Hello: message=[{}] to={}", helloMessage, ctx.channel());
-        ctx.writeAndFlush(new Hello(codecs.keySet(), helloMessage)).addListener(writeCompletionListener);
+        Set<Short> capabilities = capabilities();
+        Set<Short> versions = codecs.keySet();
+        if (!capabilities.isEmpty()) {
+            versions = new HashSet<>(versions);
+            versions.addAll(capabilities);
+        }
+        ctx.writeAndFlush(new Hello(versions, helloMessage)).addListener(writeCompletionListener);
+    }
+
+    /**
+     * Returns the optional capabilities of this end advertised in {@link Hello}.
+     */
+    private Set<Short> capabilities() {
+        Set<Short> capabilities = new HashSet<>();
+        if (compactEncodingEnabled) {
+            capabilities.add(Hello.COMPACT_ENCODING);
+        }
+        if (stringDictionaryEnabled) {
+            capabilities.add(Hello.STRING_DICTIONARY);
+        }
+        if (correlationEnabled) {
+            capabilities.add(Hello.CORRELATION);
+        }
+        for (FrameCompression algorithm : compressionEnabled) {
+            capabilities.add(algorithm.capability);
+        }
+        return capabilities;
     }
 
     protected void sendKeepAlive(ChannelHandlerContext ctx) {
@@ -286,11 +652,7 @@ public abstract class MessageHandler extends SimpleChannelInboundHandler<Message
                     return false;
                 }
 
-                if (flush) {
-                    ctx.writeAndFlush(msg).addListener(writeCompletionListener);
-                } else {
-                    ctx.write(msg).addListener(writeCompletionListener);
-                }
+                write(ctx, msg, flush);
 
                 return true;
 
@@ -302,6 +664,350 @@ public abstract class MessageHandler extends SimpleChannelInboundHandler<Message
         }
     }
 
+    /**
+     * Sends a message asynchronously. This never blocks. The message is written when the handshake is completed and
+     * the channel is writable. Messages sent by this method are written in order.
+     * <p>
+     * The returned future completes when the message is written to the socket, or completes exceptionally
+     * when the write failed or the channel is closed. At most {@link #setMaxPendingWrites(int)} messages are held.
+     * The future of a message sent beyond that completes exceptionally with {@link PendingWritesFullException},
+     * and the message is not sent. Callers can apply backpressure by limiting the number of incomplete futures.
+     *
+     * @param msg message
+     * @return a future which completes when the message is written
+     */
+    public CompletableFuture<Void> sendMessageAsync(Message msg) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+
+        synchronized (writeLock) {
+            ChannelHandlerContext ctx = this.ctx; // for safety
+            if (closed) {
+                future.completeExceptionally(new DisconnectedException("channel is disconnected"));
+
+            } else if (ctx == null || messageCodec == null || !pendingWrites.isEmpty() || !ctx.channel().isWritable()) {
+                // The channel is not ready or is not writable. Hold the message until it becomes writable.
+                if (pendingWrites.size() < maxPendingWrites) {
+                    pendingWrites.add(new PendingWrite(msg, future));
+                } else {
+                    ReferenceCountUtil.release(msg);
+                    future.completeExceptionally(
+                        new PendingWritesFullException("too many pending writes: " + pendingWrites.size())
+                    );
+                }
+
+            } else {
+                writeAsync(ctx, msg, future);
+            }
+        }
+
+        return future;
+    }
+
+    /**
+     * Sets the maximum number of messages held by {@link #sendMessageAsync(Message)} until the channel becomes
+     * writable. The default is {@link #DEFAULT_MAX_PENDING_WRITES}.
+     *
+     * @param maxPendingWrites the maximum number of held messages
+     */
+    public void setMaxPendingWrites(int maxPendingWrites) {
+        if (maxPendingWrites <= 0) {
+            throw new IllegalArgumentException("the maximum number of pending writes must be positive");
+        }
+        this.maxPendingWrites = maxPendingWrites;
+    }
+
+    /**
+     * Returns the number of messages held by {@link #sendMessageAsync(Message)} and not yet written.
+     * @return the number of pending writes
+     */
+    public int numPendingWrites() {
+        synchronized (writeLock) {
+            return pendingWrites.size();
+        }
+    }
+
+    /**
+     * Enables request/response correlation. Once enabled, {@link #sendRequest(Message)} can be used, and a response
+     * ({@link CorrelatedMessage} with {@code isResponse} set) completes the future of its request instead of being
+     * passed to {@link #process(Message)}. Requests are received by the peer as {@link CorrelatedMessage}s, and
+     * the peer replies with {@link CorrelatedMessage#reply(Message)}. This enables correlation (see
+     * {@link #enableCorrelation()}), and the peer must enable it, too. Requests fail with
+     * {@link IllegalStateException} if the peer does not.
+     * This should be called before the channel becomes active.
+     *
+     * @param defaultTimeoutMillis the default request timeout in milliseconds, no timeout if not positive
+     */
+    public void enableRequestTracking(long defaultTimeoutMillis) {
+        synchronized (writeLock) {
+            if (requestTracker != null) {
+                throw new IllegalStateException("request tracking is already enabled");
+            }
+            requestTracker = new RequestTracker(defaultTimeoutMillis);
+            enableCorrelation();
+        }
+    }
+
+    /**
+     * Sends a request with the default timeout. The returned future completes with the response payload, or
+     * completes exceptionally with {@link java.util.concurrent.TimeoutException} when the request times out, or with
+     * {@link DisconnectedException} when the channel is disconnected.
+     * <p>
+     * A response payload implementing {@link io.netty.util.ReferenceCounted} is released right after the future
+     * completes. Use it in a stage depending on the future, and retain it there to use it afterwards.
+     *
+     * @param request request payload
+     * @return a future of the response payload
+     */
+    public CompletableFuture<Message> sendRequest(Message request) {
+        RequestTracker requestTracker = this.requestTracker;
+        if (requestTracker == null) {
+            throw new IllegalStateException("request tracking is not enabled");
+        }
+        return sendRequest(request, requestTracker.defaultTimeoutMillis());
+    }
+
+    /**
+     * Sends a request with the specified timeout.
+     *
+     * @param request request payload
+     * @param timeoutMillis timeout in milliseconds, no timeout if not positive
+     * @return a future of the response payload
+     */
+    public CompletableFuture<Message> sendRequest(Message request, long timeoutMillis) {
+        RequestTracker requestTracker = this.requestTracker;
+        if (requestTracker == null) {
+            throw new IllegalStateException("request tracking is not enabled");
+        }
+
+        if (messageCodec != null && !correlation) {
+            CompletableFuture<Message> future = new CompletableFuture<>();
+            future.completeExceptionally(new IllegalStateException("correlation is not negotiated with the peer"));
+            return future;
+        }
+
+        RequestTracker.PendingRequest pendingRequest = requestTracker.register(request, timeoutMillis);
+        long requestId = pendingRequest.request().requestId;
+
+        sendMessageAsync(pendingRequest.request()).whenComplete((v, ex) -> {
+            if (ex != null) {
+                requestTracker.fail(requestId, ex);
+            }
+        });
+
+        return pendingRequest.future();
+    }
+
+    /**
+     * Returns the number of requests waiting for responses.
+     * @return the number of in-flight requests
+     */
+    public int numPendingRequests() {
+        RequestTracker requestTracker = this.requestTracker;
+        return requestTracker != null ? requestTracker.numPendingRequests() : 0;
+    }
+
+    private void writeAsync(ChannelHandlerContext ctx, Message msg, CompletableFuture<Void> future) {
+        write(ctx, msg, true).addListener(f -> {
+            if (f.isSuccess()) {
+                future.complete(null);
+            } else {
+                future.completeExceptionally(f.cause());
+            }
+        });
+    }
+
+    /**
+     * Writes messages held by {@link #sendMessageAsync(Message)} while the channel is writable.
+     */
+    private void writePendingMessages() {
+        synchronized (writeLock) {
+            ChannelHandlerContext ctx = this.ctx; // for safety
+            if (ctx != null && messageCodec != null) {
+                while (!pendingWrites.isEmpty() && ctx.channel().isWritable()) {
+                    PendingWrite pendingWrite = pendingWrites.poll();
+                    if (pendingWrite.msg.type() == MessageType.CORRELATED && !correlation) {
+                        // A request held during the handshake cannot be sent to a peer without correlation
+                        ReferenceCountUtil.release(pendingWrite.msg);
+                        pendingWrite.future.completeExceptionally(
+                            new IllegalStateException("correlation is not negotiated with the peer"));
+                    } else {
+                        writeAsync(ctx, pendingWrite.msg, pendingWrite.future);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Fails messages held by {@link #sendMessageAsync(Message)}. No more message is accepted.
+     */
+    void failPendingWrites() {
+        RequestTracker requestTracker = this.requestTracker;
+        if (requestTracker != null) {
+            requestTracker.failAll(new DisconnectedException("channel is disconnected"));
+        }
+
+        synchronized (writeLock) {
+            closed = true;
+
+            PendingWrite pendingWrite = pendingWrites.poll();
+            while (pendingWrite != null) {
+                ReferenceCountUtil.release(pendingWrite.msg);
+                pendingWrite.future.completeExceptionally(new DisconnectedException("channel is disconnected"));
+                pendingWrite = pendingWrites.poll();
+            }
+        }
+    }
+
+    // The caller must hold writeLock
+    private ChannelFuture write(ChannelHandlerContext ctx, Message msg, boolean flush) {
+        ChannelFuture channelFuture;
+
+        if (flushConsolidationMaxMessages > 0) {
+            channelFuture = ctx.write(msg).addListener(writeCompletionListener);
+
+            // The byte limit is enforced by FlushByteLimiter as messages are encoded
+            unflushedMessages++;
+
+            if (flush) {
+                if (unflushedMessages >= flushConsolidationMaxMessages) {
+                    unflushedMessages = 0;
+                    flushRequestedAfterScheduled = false;
+                    ctx.flush();
+
+                } else if (!flushScheduled) {
+                    // Flush once after all writes submitted to the event loop so far.
+                    flushScheduled = true;
+                    ctx.channel().eventLoop().execute(consolidatedFlush);
+
+                } else {
+                    // This write is queued behind the scheduled flush. Make the flush run again.
+                    flushRequestedAfterScheduled = true;
+                }
+            }
+
+        } else if (flush) {
+            channelFuture = ctx.writeAndFlush(msg).addListener(writeCompletionListener);
+        } else {
+            channelFuture = ctx.write(msg).addListener(writeCompletionListener);
+        }
+
+        return channelFuture;
+    }
+
+    // The caller must hold writeLock
+    private void addFlushByteLimiter(ChannelHandlerContext ctx) {
+        if (flushConsolidationMaxMessages > 0 && flushConsolidationMaxBytes > 0) {
+            ChannelPipeline pipeline = ctx.pipeline();
+            if (pipeline.get("encoder") != null && pipeline.get(FlushByteLimiter.class) == null) {
+                pipeline.addBefore("encoder", "flushByteLimiter", new FlushByteLimiter());
+            }
+        }
+    }
+
+    /**
+     * Enables flush consolidation. When enabled, a flush requested by {@link #sendMessage(Message, boolean)} is
+     * deferred to the end of the current event loop iteration, so that messages sent in the meantime are written
+     * by a single flush. A flush happens immediately when the number of messages or the number of bytes written
+     * since the last flush reaches the limit. The bytes are counted on the event loop as messages are encoded,
+     * so the byte limit may also flush messages written without a flush request.
+     *
+     * @param maxMessages the maximum number of messages per flush, zero or negative to disable consolidation
+     * @param maxBytes the maximum number of bytes per flush, zero or negative for no byte limit
+     */
+    public void setFlushConsolidation(int maxMessages, long maxBytes) {
+        synchronized (writeLock) {
+            this.flushConsolidationMaxMessages = maxMessages;
+            this.flushConsolidationMaxBytes = maxBytes;
+
+            ChannelHandlerContext ctx = this.ctx; // for safety
+            if (ctx != null) {
+                addFlushByteLimiter(ctx);
+            }
+        }
+    }
+
+    private void consolidatedFlush() {
+        synchronized (writeLock) {
+            ChannelHandlerContext ctx = this.ctx; // for safety
+            if (ctx != null) {
+                ctx.flush();
+            }
+
+            if (flushRequestedAfterScheduled && ctx != null) {
+                // Writes submitted after this task was scheduled are still in the event loop's task queue.
+                // Reschedule behind them.
+                flushRequestedAfterScheduled = false;
+                ctx.channel().eventLoop().execute(consolidatedFlush);
+            } else {
+                flushScheduled = false;
+                flushRequestedAfterScheduled = false;
+                unflushedMessages = 0;
+            }
+        }
+    }
+
+    /**
+     * Sets the write buffer water marks. The channel becomes unwritable, and {@link #ensureWritable()} blocks, when
+     * the bytes pending in the outbound buffer go above {@code highWaterMark}. It becomes writable again when they
+     * go below {@code lowWaterMark}. The defaults are 16KB and 32KB. A fast link with a long round trip time may need
+     * larger water marks to keep the link busy (see {@link #setAdaptiveWriteBufferWaterMark(int, int)}).
+     * This should be called before the channel becomes active.
+     *
+     * @param lowWaterMark low water mark in bytes
+     * @param highWaterMark high water mark in bytes
+     */
+    public void setWriteBufferWaterMark(int lowWaterMark, int highWaterMark) {
+        this.writeBufferWaterMark = new WriteBufferWaterMark(lowWaterMark, highWaterMark);
+        this.adaptiveWriteBufferWaterMark = null;
+    }
+
+    /**
+     * Enables adaptive write buffer water marks. The high water mark is sized to twice the bandwidth-delay product
+     * observed while the channel is unwritable, within the specified range, and the low water mark to half of it.
+     * The round trip time is obtained from the kernel on the epoll transport, otherwise 1ms is assumed.
+     * This should be called before the channel becomes active.
+     *
+     * @param minHighWaterMark the minimum high water mark in bytes, also the initial one
+     * @param maxHighWaterMark the maximum high water mark in bytes
+     */
+    public void setAdaptiveWriteBufferWaterMark(int minHighWaterMark, int maxHighWaterMark) {
+        this.adaptiveWriteBufferWaterMark =
+            new AdaptiveWriteBufferWaterMark(minHighWaterMark, maxHighWaterMark, DEFAULT_RTT_MICROS);
+    }
+
+    /**
+     * Returns the current write buffer water marks of the channel, or the configured ones if the channel is not
+     * active.
+     *
+     * @return write buffer water marks
+     */
+    public WriteBufferWaterMark writeBufferWaterMark() {
+        ChannelHandlerContext ctx = this.ctx; // for safety
+        if (ctx != null) {
+            return ctx.channel().config().getWriteBufferWaterMark();
+        }
+        AdaptiveWriteBufferWaterMark adaptive = adaptiveWriteBufferWaterMark;
+        return adaptive != null ? adaptive.waterMark() : writeBufferWaterMark;
+    }
+
+    /**
+     * Returns the number of bytes of messages sent but not yet written to the socket.
+     * This includes writes submitted to the event loop and not yet encoded.
+     *
+     * @return the number of pending bytes
+     */
+    public long pendingWriteBytes() {
+        ChannelHandlerContext ctx = this.ctx; // for safety
+        if (ctx != null) {
+            ChannelOutboundBuffer outboundBuffer = ctx.channel().unsafe().outboundBuffer();
+            if (outboundBuffer != null) {
+                return outboundBuffer.totalPendingWriteBytes();
+            }
+        }
+        return 0L;
+    }
+
     public boolean isWritable() {
         return writable.get();
     }
@@ -322,7 +1028,7 @@ public abstract class MessageHandler extends SimpleChannelInboundHandler<Message
             this.threadPool.close();
         }
 
-        for (MessageProcessor messageProcessor: inboundQueues.values()) {
+        for (MessageProcessor messageProcessor: inboundQueues.processors()) {
             messageProcessor.close();
         }
 
@@ -348,11 +1054,55 @@ public abstract class MessageHandler extends SimpleChannelInboundHandler<Message
             flush();
 
             // Wait until the channel becomes writable again
+            NetworkMetrics metrics = this.metrics;
+            long startNanos = metrics != null ? System.nanoTime() : 0L;
             try {
                 Uninterruptibly.run(awaitWritable);
             } catch (Uninterruptibly.InvocationException ex) {
                 // Ignore
             }
+            if (metrics != null) {
+                metrics.ensureWritableParked(System.nanoTime() - startNanos);
+            }
+        }
+    }
+
+    /**
+     * Flushes when the bytes encoded since the last flush reach the byte limit of flush consolidation.
+     * This is placed before the encoder, and runs on the event loop.
+     */
+    private class FlushByteLimiter extends ChannelOutboundHandlerAdapter {
+
+        private long unflushedBytes = 0L;
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            if (msg instanceof ByteBuf) {
+                unflushedBytes += ((ByteBuf) msg).readableBytes();
+            }
+            ctx.write(msg, promise);
+
+            long maxBytes = flushConsolidationMaxBytes;
+            if (maxBytes > 0 && unflushedBytes >= maxBytes) {
+                flush(ctx);
+            }
+        }
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) {
+            unflushedBytes = 0L;
+            ctx.flush();
+        }
+
+    }
+
+    private static class PendingWrite {
+        private final Message msg;
+        private final CompletableFuture<Void> future;
+
+        PendingWrite(Message msg, CompletableFuture<Void> future) {
+            this.msg = msg;
+            this.future = future;
         }
     }
 
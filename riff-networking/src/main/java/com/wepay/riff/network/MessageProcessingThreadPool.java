@@ -4,32 +4,100 @@ import com.wepay.riff.util.Logging;
 import com.wepay.riff.util.RepeatingTask;
 import org.slf4j.Logger;
 
+import java.lang.reflect.Method;
+import java.util.Deque;
 import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * MessageProcessingThreadPool is a thread pool specialized for message processing.
  * An instance of MessageProcessingThreadPool can be shared by multiple {@link MessageHandler}s.
+ * <p>
+ * The thread pool supports several schedulers (see {@link Scheduler}). In any case a {@link MessageProcessor} is
+ * submitted only when it is not already submitted or running, so messages of a processor are processed in order.
  */
 public class MessageProcessingThreadPool {
 
+    /**
+     * The scheduling strategy of the thread pool.
+     */
+    public enum Scheduler {
+        /**
+         * All threads poll processors from a single queue guarded by a monitor.
+         */
+        SHARED_QUEUE,
+        /**
+         * Each thread has its own deque of processors. An idle thread steals processors from other threads.
+         * A submission wakes up at most one idle thread.
+         */
+        WORK_STEALING,
+        /**
+         * Each processing turn of a processor runs on a new virtual thread, so a processor blocking on I/O does not
+         * starve other processors. The number of threads is ignored. If the JVM does not support virtual threads,
+         * the thread pool falls back to {@link #SHARED_QUEUE}.
+         */
+        VIRTUAL_THREAD
+    }
+
     private static final Logger logger = Logging.getLogger(MessageProcessingThreadPool.class);
 
+    // The maximum park time of an idle worker. This is a safety net, a worker is normally woken up by unpark.
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final Scheduler scheduler;
+    private final ExecutorService virtualThreadExecutor;
     private final MessageProcessingTask[] tasks;
     private final Queue<MessageProcessor> processorQueue;
+    private final ThreadLocal<MessageProcessingTask> currentTask = new ThreadLocal<>();
+    private final AtomicInteger nextTask = new AtomicInteger(0);
+    private final AtomicInteger numIdleTasks = new AtomicInteger(0);
 
-    private boolean closed = false;
+    private volatile boolean opened = false;
+    private volatile boolean closed = false;
 
     /**
      * Creates the thread pool with the specified number of threads.
      * @param numThreads number of threads in processing pool
      */
     public MessageProcessingThreadPool(int numThreads) {
+        this(numThreads, Scheduler.SHARED_QUEUE);
+    }
+
+    /**
+     * Creates the thread pool with the specified number of threads and the specified scheduler.
+     * {@link Scheduler#VIRTUAL_THREAD} does not use the number of threads unless it falls back to
+     * {@link Scheduler#SHARED_QUEUE}, so it must be positive in any case.
+     * @param numThreads number of threads in processing pool
+     * @param scheduler scheduling strategy
+     */
+    public MessageProcessingThreadPool(int numThreads, Scheduler scheduler) {
         if (numThreads <= 0) {
             throw new IllegalArgumentException("the number of thread must be positive");
         }
         this.processorQueue = new LinkedList<>();
 
+        if (scheduler == Scheduler.VIRTUAL_THREAD) {
+            this.virtualThreadExecutor = newVirtualThreadExecutor();
+            if (this.virtualThreadExecutor != null) {
+                this.scheduler = Scheduler.VIRTUAL_THREAD;
+                this.tasks = new MessageProcessingTask[0];
+                return;
+            }
+            logger.warn("virtual threads are not supported, falling back to " + Scheduler.SHARED_QUEUE);
+            scheduler = Scheduler.SHARED_QUEUE;
+        } else {
+            this.virtualThreadExecutor = null;
+        }
+        this.scheduler = scheduler;
+
         this.tasks = new MessageProcessingTask[numThreads];
         for (int i = 0; i < numThreads; i++) {
             tasks[i] = new MessageProcessingTask("MessageProcessingTask" + i);
@@ -44,6 +112,17 @@ public class MessageProcessingThreadPool {
         for (MessageProcessingTask task : tasks) {
             task.start();
         }
+
+        if (virtualThreadExecutor != null) {
+            // Start processors submitted before the thread pool is opened.
+            synchronized (processorQueue) {
+                opened = true;
+                for (MessageProcessor processor : processorQueue) {
+                    execute(processor);
+                }
+                processorQueue.clear();
+            }
+        }
         return this;
     }
 
@@ -65,6 +144,24 @@ public class MessageProcessingThreadPool {
             }
             processorQueue.notifyAll();
         }
+
+        for (MessageProcessingTask task : tasks) {
+            task.deque.clear();
+            task.unpark();
+        }
+
+        if (virtualThreadExecutor != null) {
+            virtualThreadExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Returns the scheduling strategy of this thread pool. This may differ from the requested one
+     * if {@link Scheduler#VIRTUAL_THREAD} is not supported by the JVM.
+     * @return scheduler
+     */
+    public Scheduler scheduler() {
+        return scheduler;
     }
 
     /**
@@ -73,28 +170,117 @@ public class MessageProcessingThreadPool {
      * @param messageProcessor
      */
     void submit(MessageProcessor messageProcessor) {
-        synchronized (processorQueue) {
+        if (scheduler == Scheduler.VIRTUAL_THREAD) {
+            if (!opened) {
+                synchronized (processorQueue) {
+                    if (closed) {
+                        throw new MessageProcessingThreadPoolClosedException();
+                    }
+                    if (!opened) {
+                        // Hold the processor until the thread pool is opened.
+                        processorQueue.offer(messageProcessor);
+                        return;
+                    }
+                }
+            }
+
             if (closed) {
                 throw new MessageProcessingThreadPoolClosedException();
             }
-            processorQueue.offer(messageProcessor);
-            processorQueue.notifyAll();
+            execute(messageProcessor);
+
+        } else if (scheduler == Scheduler.WORK_STEALING) {
+            if (closed) {
+                throw new MessageProcessingThreadPoolClosedException();
+            }
+
+            // A worker resubmits to its own deque. Others distribute processors in round robin.
+            MessageProcessingTask task = currentTask.get();
+            if (task == null) {
+                task = tasks[(nextTask.getAndIncrement() & Integer.MAX_VALUE) % tasks.length];
+            }
+            task.deque.offerLast(messageProcessor);
+
+            if (!task.unpark() && numIdleTasks.get() > 0) {
+                // The owner is busy. Wake up an idle worker to steal the processor.
+                for (MessageProcessingTask idleTask : tasks) {
+                    if (idleTask.unpark()) {
+                        break;
+                    }
+                }
+            }
+
+        } else {
+            synchronized (processorQueue) {
+                if (closed) {
+                    throw new MessageProcessingThreadPoolClosedException();
+                }
+                processorQueue.offer(messageProcessor);
+                processorQueue.notifyAll();
+            }
+        }
+    }
+
+    private void execute(MessageProcessor messageProcessor) {
+        try {
+            virtualThreadExecutor.execute(() -> {
+                try {
+                    messageProcessor.processMessage();
+                } catch (Throwable ex) {
+                    logger.error("exception caught", ex);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            throw new MessageProcessingThreadPoolClosedException();
+        }
+    }
+
+    /**
+     * Creates an executor which starts a new virtual thread for each task. Virtual threads are looked up
+     * reflectively since this library is compiled for Java 8.
+     * @return the executor, or null if virtual threads are not supported
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            // Not supported. Virtual threads are not available or are a preview feature not enabled.
+            return null;
         }
     }
 
     private class MessageProcessingTask extends RepeatingTask {
 
+        private final Deque<MessageProcessor> deque = new ConcurrentLinkedDeque<>();
+
+        private volatile Thread thread = null;
+        private volatile boolean parked = false;
+
         MessageProcessingTask(String taskName) {
             super(taskName);
         }
 
+        @Override
+        protected void init() {
+            thread = Thread.currentThread();
+            currentTask.set(this);
+        }
+
         protected void task() {
-            MessageProcessor processor = pollNextProcessor();
+            MessageProcessor processor;
+            if (scheduler == Scheduler.WORK_STEALING) {
+                processor = pollOrStealNextProcessor();
+            } else {
+                processor = pollNextProcessor();
+            }
+
             if (processor != null) {
-                // Process one message. The processor will submits itself if it has more messages to process.
+                // Process messages up to the quantum of the processor. It submits itself again if it has more.
                 processor.processMessage();
             }
-            // else the thread pool is shutting down
+            // else the thread pool is shutting down, or there was no processor to run
         }
 
         private MessageProcessor pollNextProcessor() {
@@ -115,6 +301,64 @@ public class MessageProcessingThreadPool {
             }
         }
 
+        private MessageProcessor pollOrStealNextProcessor() {
+            MessageProcessor processor = pollOrSteal();
+            if (processor != null || closed) {
+                return processor;
+            }
+
+            // Declare this worker idle before checking the deques again, so that a submitter either sees
+            // the idle flag and unparks this worker, or this worker sees the submitted processor.
+            parked = true;
+            numIdleTasks.incrementAndGet();
+            try {
+                processor = pollOrSteal();
+                if (processor == null && !closed) {
+                    LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                }
+            } finally {
+                numIdleTasks.decrementAndGet();
+                parked = false;
+            }
+
+            return processor;
+        }
+
+        private MessageProcessor pollOrSteal() {
+            MessageProcessor processor = deque.pollFirst();
+            if (processor != null) {
+                return processor;
+            }
+
+            // Steal from the tail of other workers' deques, starting from a random victim.
+            int offset = ThreadLocalRandom.current().nextInt(tasks.length);
+            for (int i = 0; i < tasks.length; i++) {
+                MessageProcessingTask victim = tasks[(offset + i) % tasks.length];
+                if (victim != this) {
+                    processor = victim.deque.pollLast();
+                    if (processor != null) {
+                        return processor;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Unparks this worker if it is idle.
+         * @return true if this worker was idle
+         */
+        private boolean unpark() {
+            if (parked) {
+                Thread thread = this.thread;
+                if (thread != null) {
+                    LockSupport.unpark(thread);
+                    return true;
+                }
+            }
+            return false;
+        }
+
         @Override
         protected void exceptionCaught(Throwable ex) {
             logger.error("exception caught", ex);
@@ -1,16 +1,33 @@
 package com.wepay.riff.network;
 
 import com.wepay.riff.util.Logging;
+import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 
-import java.util.LinkedList;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * MessageProcessor maintains a queue of messages. It accepts a new message ({@link #offer(Message)}) and append it
  * to the queue. An instance of MessageProcessor submits itself to {@link MessageProcessingThreadPool} when there are
  * messages to process. {@link MessageProcessingThreadPool} calls {@link #processMessage()} to process a next
  * available message.
+ * <p>
+ * The message queue is a lock-free linked queue, and the processor state is a CAS-based state machine
+ * (DEQUEUED -&gt; ENQUEUED -&gt; RUNNING -&gt; DEQUEUED). No monitor is taken on the offering thread (the netty event
+ * loop) or on the processing thread. Only the thread that moves the state from DEQUEUED to ENQUEUED submits the
+ * processor, which guarantees that at most one thread processes messages of this processor at a time.
+ * <p>
+ * A processor may drain more than one message per scheduling turn. The quantum is bounded by the maximum number of
+ * messages and optionally by the time spent. Messages drained in a turn are handed to
+ * {@link #processMessages(List)} in batches of available messages.
+ * <p>
+ * A processor owns offered messages. A message implementing {@link io.netty.util.ReferenceCounted} is released
+ * after it is processed, or when it is discarded because the processor is closed.
  */
 public abstract class MessageProcessor {
 
@@ -21,28 +38,91 @@ public abstract class MessageProcessor {
     private static final int PROCESSOR_RUNNING = 2;
     private static final int PROCESSOR_CLOSED = -1;
 
-    private final ReentrantLock lock = new ReentrantLock();
     private final Throttling throttling;
     private final MessageProcessingThreadPool threadPool;
-    private final LinkedList<Message> messageQueue;
+    private final Queue<Message> messageQueue;
+    private final AtomicInteger state;
+    private final int maxMessagesPerTurn;
+    private final long maxNanosPerTurn;
+    private final ArrayList<Message> batch;
+    private final NetworkMetrics metrics;
+    private final AtomicInteger queueDepth = new AtomicInteger(0); // Maintained only when metrics are enabled
 
-    private int state;
+    // Set when a message is offered, cleared by closeIfIdle. Accessed only by the offering thread (the event loop).
+    private boolean touched = false;
 
     MessageProcessor(Throttling throttling, MessageProcessingThreadPool threadPool) {
+        this(throttling, threadPool, 1, 0L);
+    }
+
+    /**
+     * Creates a processor which drains up to {@code maxMessagesPerTurn} messages per scheduling turn.
+     *
+     * @param throttling throttling
+     * @param threadPool thread pool
+     * @param maxMessagesPerTurn the maximum number of messages processed in a scheduling turn
+     * @param maxMicrosPerTurn the maximum time in microseconds spent in a scheduling turn, no limit if not positive.
+     *                         The limit is checked between batches, so a turn processes at least one batch.
+     */
+    MessageProcessor(
+        Throttling throttling,
+        MessageProcessingThreadPool threadPool,
+        int maxMessagesPerTurn,
+        long maxMicrosPerTurn
+    ) {
+        this(throttling, threadPool, maxMessagesPerTurn, maxMicrosPerTurn, null);
+    }
+
+    /**
+     * Creates a processor which records queue metrics.
+     *
+     * @param throttling throttling
+     * @param threadPool thread pool
+     * @param maxMessagesPerTurn the maximum number of messages processed in a scheduling turn
+     * @param maxMicrosPerTurn the maximum time in microseconds spent in a scheduling turn, no limit if not positive.
+     * @param metrics metrics, or null to disable
+     */
+    MessageProcessor(
+        Throttling throttling,
+        MessageProcessingThreadPool threadPool,
+        int maxMessagesPerTurn,
+        long maxMicrosPerTurn,
+        NetworkMetrics metrics
+    ) {
+        if (maxMessagesPerTurn <= 0) {
+            throw new IllegalArgumentException("the maximum number of messages per turn must be positive");
+        }
         this.throttling = throttling;
         this.threadPool = threadPool;
-        this.messageQueue = new LinkedList<>();
-        this.state = PROCESSOR_DEQUEUED;
+        this.messageQueue = new ConcurrentLinkedQueue<>();
+        this.state = new AtomicInteger(PROCESSOR_DEQUEUED);
+        this.maxMessagesPerTurn = maxMessagesPerTurn;
+        this.maxNanosPerTurn = maxMicrosPerTurn > 0 ? TimeUnit.MICROSECONDS.toNanos(maxMicrosPerTurn) : 0L;
+        this.batch = maxMessagesPerTurn > 1 ? new ArrayList<>() : null;
+        this.metrics = metrics;
     }
 
     /**
      * Closes the processor. Messages in the message queue will be cleared, and no message processing will take place.
      */
     void close() {
-        synchronized (messageQueue) {
-            messageQueue.clear();
-            state = PROCESSOR_CLOSED;
+        state.set(PROCESSOR_CLOSED);
+        releaseAll();
+    }
+
+    /**
+     * Closes this processor if no message was offered since the last call, and no message is queued or being
+     * processed. This must be called by the thread that offers messages.
+     *
+     * @return true if the processor is closed
+     */
+    boolean closeIfIdle() {
+        if (touched) {
+            touched = false;
+            return false;
         }
+        // No message can be offered concurrently since this is called by the offering thread.
+        return messageQueue.isEmpty() && state.compareAndSet(PROCESSOR_DEQUEUED, PROCESSOR_CLOSED);
     }
 
     /**
@@ -52,75 +132,164 @@ public abstract class MessageProcessor {
      * @param msg message
      */
     void offer(Message msg) {
-        synchronized (messageQueue) {
-            if (state != PROCESSOR_CLOSED) {
-                throttling.increment();
-                messageQueue.offer(msg);
-
-                // There are more message to process. Enqueue the processor iff dequeued.
-                if (state == PROCESSOR_DEQUEUED) {
-                    threadPool.submit(this);
-                    state = PROCESSOR_ENQUEUED;
-                }
+        if (state.get() != PROCESSOR_CLOSED) {
+            touched = true;
+            throttling.increment(msg);
+            if (metrics != null) {
+                msg.queuedNanos(System.nanoTime());
+                metrics.messageQueued(queueDepth.incrementAndGet());
+            }
+            messageQueue.offer(msg);
+
+            if (state.get() == PROCESSOR_CLOSED) {
+                // The processor was closed concurrently. Make sure the message does not leak.
+                releaseAll();
+                return;
             }
+
+            // There are more message to process. Enqueue the processor iff dequeued.
+            trySubmit();
+        } else {
+            ReferenceCountUtil.release(msg);
         }
     }
 
     /**
-     * Processes a message in the message queue. This method ensures that this processor is resubmitted to
-     * {@link MessageProcessingThreadPool} if there are more messages to process.
+     * Processes messages in the message queue up to the quantum of this processor. This method ensures that this
+     * processor is resubmitted to {@link MessageProcessingThreadPool} if there are more messages to process.
      */
     void processMessage() {
         // Makes sure that there is no concurrent processing.
-        lock.lock();
-        try {
-            Message msg;
-
-            synchronized (messageQueue) {
-                if (state == PROCESSOR_CLOSED) {
-                    // Do nothing because the processor is already closed.
-                    return;
-                }
-
-                if (state != PROCESSOR_ENQUEUED) {
-                    logger.error("invalid processor state in processMessage:" + state);
-                }
-
-                msg = messageQueue.poll();
-                state = PROCESSOR_RUNNING;
+        if (!state.compareAndSet(PROCESSOR_ENQUEUED, PROCESSOR_RUNNING)) {
+            int currentState = state.get();
+            if (currentState != PROCESSOR_CLOSED) {
+                logger.error("invalid processor state in processMessage:" + currentState);
             }
+            // Do nothing because the processor is already closed or is being processed by another thread.
+            return;
+        }
+
+        if (batch == null) {
+            Message msg = messageQueue.poll();
 
             if (msg != null) {
+                dequeued(msg);
                 try {
                     processMessage(msg);
                 } finally {
-                    throttling.decrement();
+                    throttling.decrement(msg);
+                    ReferenceCountUtil.release(msg);
                     tryEnqueue();
                 }
             } else {
                 tryEnqueue();
             }
-        } finally {
-            lock.unlock();
+        } else {
+            try {
+                drain();
+            } finally {
+                tryEnqueue();
+            }
         }
     }
 
-    private void tryEnqueue() {
-        synchronized (messageQueue) {
-            if (messageQueue.isEmpty()) {
-                // There is no message to process.
-                state = PROCESSOR_DEQUEUED;
+    private void drain() {
+        long startTime = maxNanosPerTurn > 0 ? System.nanoTime() : 0L;
+        int remaining = maxMessagesPerTurn;
 
-            } else {
-                // There are more message to process. Enqueue the processor if it is not closed yet.
-                if (state != PROCESSOR_CLOSED) {
-                    threadPool.submit(this);
-                    state = PROCESSOR_ENQUEUED;
+        while (remaining > 0 && state.get() != PROCESSOR_CLOSED) {
+            // Take all available messages up to the remaining quantum.
+            Message msg = messageQueue.poll();
+            while (msg != null) {
+                dequeued(msg);
+                batch.add(msg);
+                if (--remaining > 0) {
+                    msg = messageQueue.poll();
+                } else {
+                    msg = null;
                 }
             }
+
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            try {
+                processMessages(batch);
+            } finally {
+                for (Message processed : batch) {
+                    throttling.decrement(processed);
+                    ReferenceCountUtil.release(processed);
+                }
+                batch.clear();
+            }
+
+            if (maxNanosPerTurn > 0 && System.nanoTime() - startTime >= maxNanosPerTurn) {
+                return;
+            }
+        }
+    }
+
+    private void releaseAll() {
+        Message msg = messageQueue.poll();
+        while (msg != null) {
+            if (metrics != null) {
+                queueDepth.decrementAndGet();
+                metrics.messageDiscarded();
+            }
+            throttling.decrement(msg);
+            ReferenceCountUtil.release(msg);
+            msg = messageQueue.poll();
+        }
+    }
+
+    private void dequeued(Message msg) {
+        if (metrics != null) {
+            queueDepth.decrementAndGet();
+            metrics.messageDequeued(System.nanoTime() - msg.queuedNanos());
+        }
+    }
+
+    private void tryEnqueue() {
+        // Release the processor. If the processor was closed while running, leave it closed.
+        if (state.compareAndSet(PROCESSOR_RUNNING, PROCESSOR_DEQUEUED)) {
+            // A message may have been offered after we polled. The offering thread could not submit the processor
+            // since it was running, so we must check the queue again after the state change.
+            if (!messageQueue.isEmpty()) {
+                trySubmit();
+            }
+        }
+    }
+
+    private void trySubmit() {
+        if (state.compareAndSet(PROCESSOR_DEQUEUED, PROCESSOR_ENQUEUED)) {
+            try {
+                threadPool.submit(this);
+            } catch (MessageProcessingThreadPoolClosedException ex) {
+                state.compareAndSet(PROCESSOR_ENQUEUED, PROCESSOR_DEQUEUED);
+                throw ex;
+            }
         }
     }
 
     protected abstract void processMessage(Message msg);
 
+    /**
+     * Processes a batch of messages drained in a scheduling turn. The default implementation calls
+     * {@link #processMessage(Message)} for each message. A message which fails is logged, and the rest of the batch
+     * is still processed. The list is reused by the processor, so it must not be retained after the call.
+     * If an overriding implementation throws, the whole batch is released as processed.
+     *
+     * @param msgs messages in the order they were offered
+     */
+    protected void processMessages(List<Message> msgs) {
+        for (Message msg : msgs) {
+            try {
+                processMessage(msg);
+            } catch (RuntimeException ex) {
+                logger.error("failed to process message: " + msg, ex);
+            }
+        }
+    }
+
 }
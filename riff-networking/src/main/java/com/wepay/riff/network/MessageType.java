@@ -8,5 +8,6 @@ public final class MessageType {
     //Non-negative message type ids are reserved
     public static final byte HELLO = -1;
     public static final byte KEEP_ALIVE = -2;
+    public static final byte CORRELATED = -3;
 
 }
@@ -1,6 +1,6 @@
 package com.wepay.riff.network;
 
-import com.wepay.riff.util.RequestQueue;
+import com.wepay.riff.util.BoundedRequestQueue;
 import com.wepay.zktools.util.State;
 import com.wepay.zktools.util.StateChangeFuture;
 import com.wepay.zktools.util.Uninterruptibly;
@@ -12,14 +12,13 @@ import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.timeout.IdleStateHandler;
 
 import java.io.Closeable;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -35,22 +34,73 @@ public abstract class NetworkClient implements Closeable {
     public final int port;
 
     private final SslContext sslCtx;
+    private final TransportConfig transportConfig;
+    private final EventLoopGroup sharedGroup;
     private final Object sendBatchLock = new Object();
-    private final RequestQueue<Message> requestQueue = new RequestQueue<>(new ArrayBlockingQueue<>(100));
+    private final BoundedRequestQueue<QueuedMessage> requestQueue = new BoundedRequestQueue<>(REQUEST_QUEUE_CAPACITY);
+    // Messages dequeued and not yet handed to the channel, in order, guarded by sendBatchLock
+    private final ArrayList<QueuedMessage> sendBatch = new ArrayList<>(REQUEST_QUEUE_CAPACITY);
     private final AtomicLong totalMessagesEnq = new AtomicLong(0L);
     private final AtomicLong totalMessagesDeq = new AtomicLong(0L);
 
-    private MessageHandler messageHandler;
+    private volatile MessageHandler messageHandler;
     private EventLoopGroup group;
     private ChannelFuture channelFuture;
     private volatile boolean openFailed = false;
 
     private static final int keepAliveWriteTimeout = 600;
+    private static final int REQUEST_QUEUE_CAPACITY = 100;
 
     public NetworkClient(String host, int port, SslContext sslCtx) {
+        this(host, port, sslCtx, TransportConfig.DEFAULT);
+    }
+
+    public NetworkClient(String host, int port, SslContext sslCtx, TransportConfig transportConfig) {
+        this(host, port, sslCtx, transportConfig, null);
+    }
+
+    /**
+     * Creates a client which uses the specified event loop group. The group may be shared by multiple clients,
+     * and it is not shut down when this client is closed. The transport is determined by the type of the group.
+     * To share a message processing thread pool as well, pass it to the {@link MessageHandler}
+     * returned by {@link #getMessageHandler()}.
+     *
+     * @param host host
+     * @param port port
+     * @param sslCtx ssl context, or null
+     * @param group a shared event loop group
+     */
+    public NetworkClient(String host, int port, SslContext sslCtx, EventLoopGroup group) {
+        this(host, port, sslCtx, new TransportConfig(Transport.of(group)), group);
+    }
+
+    /**
+     * Creates a client with the specified transport config which uses the specified event loop group.
+     * The group must be of the transport of the config.
+     *
+     * @param host host
+     * @param port port
+     * @param sslCtx ssl context, or null
+     * @param transportConfig transport config
+     * @param group a shared event loop group, or null to create a private event loop group
+     */
+    public NetworkClient(
+        String host,
+        int port,
+        SslContext sslCtx,
+        TransportConfig transportConfig,
+        EventLoopGroup group
+    ) {
+        if (group != null && Transport.of(group) != transportConfig.transport.resolve()) {
+            throw new IllegalArgumentException(
+                "event loop group does not match the transport: " + transportConfig.transport.resolve()
+            );
+        }
         this.host = host;
         this.port = port;
         this.sslCtx = sslCtx;
+        this.transportConfig = transportConfig;
+        this.sharedGroup = group;
         this.messageHandler = null;
     }
 
@@ -63,13 +113,13 @@ public abstract class NetworkClient implements Closeable {
             }
             state.set(ClientState.STARTED);
             messageHandler = getMessageHandler();
-            group = new NioEventLoopGroup();
+            group = sharedGroup != null ? sharedGroup : transportConfig.transport.newEventLoopGroup(0);
             Bootstrap b = new Bootstrap();
             b.group(group)
                 .option(ChannelOption.SO_KEEPALIVE, true)
                 .option(ChannelOption.TCP_NODELAY, true)
-                .channel(NioSocketChannel.class)
                 .handler(new ClientInitializer());
+            transportConfig.configure(b);
 
             // Make a new connection asynchronously
             channelFuture = b.connect(host, port);
@@ -150,52 +200,114 @@ public abstract class NetworkClient implements Closeable {
         return state.is(ClientState.DISCONNECTED);
     }
 
+    /**
+     * Returns the number of messages accepted by {@link #sendMessage(Message)} and not yet handed to the channel.
+     * @return the number of queued messages
+     */
+    public long queuedMessages() {
+        return totalMessagesEnq.get() - totalMessagesDeq.get();
+    }
+
+    /**
+     * Returns the number of bytes handed to the channel and not yet written to the socket.
+     * @return the number of pending bytes
+     */
+    public long pendingWriteBytes() {
+        MessageHandler handler = messageHandler;
+        return handler != null ? handler.pendingWriteBytes() : 0L;
+    }
+
+    /**
+     * Returns the number of messages accepted by {@link #sendMessageAsync(Message)} and not yet handed to the channel.
+     * @return the number of pending messages
+     */
+    public int pendingAsyncMessages() {
+        MessageHandler handler = messageHandler;
+        return handler != null ? handler.numPendingWrites() : 0;
+    }
+
     protected void shutdown() {
         synchronized (this) {
             if (!state.is(ClientState.DISCONNECTED)) {
                 state.set(ClientState.DISCONNECTED);
-                if (group != null) {
+                if (group != null && group != sharedGroup) {
                     group.shutdownGracefully();
                 }
+                if (messageHandler != null) {
+                    messageHandler.failPendingWrites();
+                }
             }
         }
         requestQueue.close();
     }
 
+    /**
+     * Sends a message. Messages queued by concurrent calls are written in one batch with a single flush.
+     * Returns false if the message was not handed to the channel, i.e., the client is not connected or the handshake
+     * has not been completed. In that case the message is not released.
+     *
+     * @param msg message
+     * @return true if the message is handed to the channel, otherwise false
+     */
     public boolean sendMessage(Message msg) {
-        if (requestQueue.enqueue(msg)) {
-            long position = totalMessagesEnq.incrementAndGet();
+        QueuedMessage queued = new QueuedMessage(msg);
 
+        if (requestQueue.enqueue(queued)) {
+            totalMessagesEnq.incrementAndGet();
+
+            boolean connected;
             try {
                 ensureOpen();
+                connected = true;
 
             } catch (ConnectFailedException ex) {
-                return false;
+                connected = false;
             }
 
             synchronized (sendBatchLock) {
-                if (totalMessagesDeq.get() < position) {
-                    // Batch up requests in one flush
-                    int numMessagesToSend = requestQueue.size();
+                // Messages of other calls may be left over by a failed send or a disconnect
+                requestQueue.drainTo(sendBatch, REQUEST_QUEUE_CAPACITY);
 
-                    while (numMessagesToSend > 0) {
-                        numMessagesToSend--;
-                        Message message = requestQueue.dequeue();
-                        if (message != null) {
-                            totalMessagesDeq.incrementAndGet();
+                if (isDisconnected()) {
+                    // No one will send them. Fail all of them.
+                    for (QueuedMessage m : sendBatch) {
+                        m.done();
+                    }
+                    for (QueuedMessage m : requestQueue.toList()) {
+                        m.done();
+                    }
+                    sendBatch.clear();
+
+                } else if (connected && !queued.done) {
+                    // Batch up requests in one flush
+                    int numMessagesToSend = sendBatch.size();
+                    int numMessagesSent = 0;
+                    try {
+                        while (numMessagesSent < numMessagesToSend) {
                             messageHandler.ensureWritable();
-                            if (!messageHandler.sendMessage(message, numMessagesToSend == 0)) {
-                                return false;
+                            QueuedMessage message = sendBatch.get(numMessagesSent);
+                            if (!messageHandler.sendMessage(message.msg, numMessagesSent == numMessagesToSend - 1)) {
+                                // Nothing is sent while the handshake is pending or after the channel is closed.
+                                // The rest stays in order for the calls which queued them.
+                                break;
                             }
-                        } else {
-                            // The queue is closed. It means the network client is disconnected.
-                            return false;
+                            message.sent = true;
+                            message.done();
+                            numMessagesSent++;
                         }
+                    } finally {
+                        sendBatch.subList(0, numMessagesSent).clear();
                     }
                 }
-            }
 
-            return true;
+                if (!queued.done) {
+                    // This call fails with its own message
+                    sendBatch.remove(queued);
+                    queued.done();
+                }
+
+                return queued.sent;
+            }
 
         } else {
             // The queue is closed. It means the network client is disconnected.
@@ -203,6 +315,46 @@ public abstract class NetworkClient implements Closeable {
         }
     }
 
+    /**
+     * Sends a message asynchronously. Unlike {@link #sendMessage(Message)}, this never blocks.
+     * The message is held until the connection is established and the channel is writable.
+     * The returned future completes when the message is written to the socket. It completes exceptionally with
+     * {@link DisconnectedException} if the client is not opened or is disconnected, with
+     * {@link PendingWritesFullException} if too many messages are held
+     * (see {@link MessageHandler#setMaxPendingWrites(int)}), or with the cause of the failure if the write failed.
+     *
+     * @param msg message
+     * @return a future which completes when the message is written
+     */
+    public CompletableFuture<Void> sendMessageAsync(Message msg) {
+        MessageHandler handler = messageHandler;
+        if (handler == null || !isValid()) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(new DisconnectedException("not connected: " + host + ":" + port));
+            return future;
+        }
+
+        return handler.sendMessageAsync(msg);
+    }
+
+    /**
+     * Sends a request and returns a future of the response payload.
+     * Request tracking must be enabled on the message handler (see {@link MessageHandler#enableRequestTracking(long)}).
+     *
+     * @param request request payload
+     * @return a future of the response payload
+     */
+    public CompletableFuture<Message> sendRequest(Message request) {
+        MessageHandler handler = messageHandler;
+        if (handler == null || !isValid()) {
+            CompletableFuture<Message> future = new CompletableFuture<>();
+            future.completeExceptionally(new DisconnectedException("not connected: " + host + ":" + port));
+            return future;
+        }
+
+        return handler.sendRequest(request);
+    }
+
     private class ClientInitializer extends ChannelInitializer<SocketChannel> {
         @Override
         public void initChannel(SocketChannel ch) {
@@ -224,4 +376,27 @@ public abstract class NetworkClient implements Closeable {
         }
     }
 
+    /**
+     * A message queued by {@link #sendMessage(Message)}. Each call checks the outcome of its own message.
+     * The fields are guarded by sendBatchLock.
+     */
+    private final class QueuedMessage {
+
+        private final Message msg;
+        private boolean sent = false;
+        private boolean done = false;
+
+        QueuedMessage(Message msg) {
+            this.msg = msg;
+        }
+
+        void done() {
+            if (!done) {
+                done = true;
+                totalMessagesDeq.incrementAndGet();
+            }
+        }
+
+    }
+
 }
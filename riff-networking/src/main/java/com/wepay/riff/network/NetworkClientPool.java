@@ -0,0 +1,216 @@
+package com.wepay.riff.network;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * NetworkClientPool maintains a fixed number of {@link NetworkClient}s connected to the same server, and spreads
+ * messages over them. A client is selected for each message by {@link NetworkClientSelector}.
+ * <p>
+ * Messages sent through the same client are sent in order. To keep the order of messages of a processor,
+ * use {@link NetworkClientSelector#sticky(NetworkClientSelector)} and override {@link #extractProcessorId(Message)}.
+ * <p>
+ * A client which is disconnected after the pool is opened is replaced by a new client when a message is sent.
+ * A client is not replaced more often than once in the reconnect interval, so an unreachable server is not retried
+ * for every message. While a client is being replaced, the selector may fail over to other clients. Messages
+ * of a processor sent through a failover client and through the replacement may then be received out of order.
+ */
+public abstract class NetworkClientPool implements Closeable {
+
+    public static final long DEFAULT_RECONNECT_INTERVAL_MS = 1000L;
+
+    private final int size;
+    private final NetworkClientSelector selector;
+    private final long reconnectIntervalMs;
+    // The time each client was created. Guarded by this.
+    private final long[] createdAt;
+
+    private volatile List<NetworkClient> clients = null;
+
+    /**
+     * Creates a pool with the default reconnect interval.
+     * @param size the number of clients
+     * @param selector client selector
+     */
+    public NetworkClientPool(int size, NetworkClientSelector selector) {
+        this(size, selector, DEFAULT_RECONNECT_INTERVAL_MS);
+    }
+
+    /**
+     * Creates a pool.
+     * @param size the number of clients
+     * @param selector client selector
+     * @param reconnectIntervalMs the minimum interval in milliseconds between creations of clients at the same index
+     */
+    public NetworkClientPool(int size, NetworkClientSelector selector, long reconnectIntervalMs) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("the pool size must be positive");
+        }
+        if (reconnectIntervalMs < 0) {
+            throw new IllegalArgumentException("the reconnect interval must not be negative");
+        }
+        this.size = size;
+        this.selector = selector;
+        this.reconnectIntervalMs = reconnectIntervalMs;
+        this.createdAt = new long[size];
+    }
+
+    /**
+     * Creates a new client. This is called for each client when the pool is opened, and when a disconnected client
+     * is replaced.
+     * @param index the index of the client in the pool
+     * @return a new client
+     */
+    protected abstract NetworkClient newClient(int index);
+
+    /**
+     * Returns the processor id of the message, which is passed to {@link NetworkClientSelector}.
+     * The default implementation returns null.
+     * @param msg message
+     * @return processor id, or null
+     */
+    protected Integer extractProcessorId(Message msg) {
+        return null;
+    }
+
+    public void openAsync() {
+        synchronized (this) {
+            if (clients == null) {
+                long now = System.currentTimeMillis();
+                List<NetworkClient> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    NetworkClient client = newClient(i);
+                    client.openAsync();
+                    list.add(client);
+                    createdAt[i] = now;
+                }
+                clients = Collections.unmodifiableList(list);
+            }
+        }
+    }
+
+    /**
+     * Opens the pool. This waits until all clients are connected.
+     * It throws {@link ConnectFailedException} if any client failed to connect. Then all clients are closed,
+     * and the pool may be opened again.
+     */
+    public void open() {
+        openAsync();
+        List<NetworkClient> clients = this.clients;
+        try {
+            for (NetworkClient client : clients) {
+                client.open();
+            }
+        } catch (ConnectFailedException ex) {
+            // Close the clients already connected, and the ones still connecting
+            close(clients);
+            synchronized (this) {
+                if (this.clients == clients) {
+                    this.clients = null;
+                }
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Closes all clients. The pool may be opened again.
+     */
+    @Override
+    public void close() {
+        List<NetworkClient> clients;
+        synchronized (this) {
+            // No client is replaced after this
+            clients = this.clients;
+            this.clients = null;
+        }
+        if (clients != null) {
+            close(clients);
+        }
+    }
+
+    private static void close(List<NetworkClient> clients) {
+        for (NetworkClient client : clients) {
+            client.closeAsync();
+        }
+        for (NetworkClient client : clients) {
+            client.close();
+        }
+    }
+
+    /**
+     * Returns the clients of this pool. It is empty if the pool is not opened.
+     * @return clients
+     */
+    public List<NetworkClient> clients() {
+        List<NetworkClient> clients = this.clients;
+        return clients != null ? clients : Collections.emptyList();
+    }
+
+    /**
+     * Sends a message through a client selected by {@link NetworkClientSelector}.
+     * @param msg message
+     * @return true if the message is sent, false if the pool is not opened or there is no valid client,
+     *     or the selected client failed to send the message
+     */
+    public boolean sendMessage(Message msg) {
+        List<NetworkClient> clients = replaceDisconnectedClients(this.clients);
+        if (clients == null) {
+            return false;
+        }
+
+        NetworkClient client = selector.select(clients, extractProcessorId(msg));
+        if (client == null) {
+            return false;
+        }
+
+        return client.sendMessage(msg);
+    }
+
+    /**
+     * Replaces disconnected clients with new clients, unless they were created within the reconnect interval.
+     * @param clients the current clients
+     * @return the clients after replacement, or null if the pool is not opened
+     */
+    private List<NetworkClient> replaceDisconnectedClients(List<NetworkClient> clients) {
+        if (clients == null || !hasDisconnectedClient(clients)) {
+            return clients;
+        }
+
+        synchronized (this) {
+            if (this.clients != clients) {
+                // Already replaced or closed
+                return this.clients;
+            }
+
+            long now = System.currentTimeMillis();
+            List<NetworkClient> list = new ArrayList<>(clients);
+            boolean replaced = false;
+            for (int i = 0; i < size; i++) {
+                if (list.get(i).isDisconnected() && now - createdAt[i] >= reconnectIntervalMs) {
+                    NetworkClient client = newClient(i);
+                    client.openAsync();
+                    list.set(i, client);
+                    createdAt[i] = now;
+                    replaced = true;
+                }
+            }
+            if (replaced) {
+                this.clients = Collections.unmodifiableList(list);
+            }
+            return this.clients;
+        }
+    }
+
+    private static boolean hasDisconnectedClient(List<NetworkClient> clients) {
+        for (NetworkClient client : clients) {
+            if (client.isDisconnected()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
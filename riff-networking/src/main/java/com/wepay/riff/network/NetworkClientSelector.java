@@ -0,0 +1,97 @@
+package com.wepay.riff.network;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NetworkClientSelector selects a client of {@link NetworkClientPool} to send a message.
+ */
+public interface NetworkClientSelector {
+
+    /**
+     * Selects a client.
+     *
+     * @param clients clients of the pool
+     * @param processorId the processor id of the message, or null if the message has no processor id
+     * @return a client, or null if there is no valid client
+     */
+    NetworkClient select(List<NetworkClient> clients, Integer processorId);
+
+    /**
+     * Returns a selector which selects valid clients in turn.
+     * @return a new selector
+     */
+    static NetworkClientSelector roundRobin() {
+        AtomicInteger next = new AtomicInteger(0);
+
+        return (clients, processorId) -> {
+            int size = clients.size();
+            int offset = next.getAndIncrement() & Integer.MAX_VALUE;
+            for (int i = 0; i < size; i++) {
+                NetworkClient client = clients.get((offset + i) % size);
+                if (client.isValid()) {
+                    return client;
+                }
+            }
+            return null;
+        };
+    }
+
+    /**
+     * Returns a selector which selects the valid client with the least queued messages.
+     * Ties are broken by the number of bytes pending in the channel.
+     * @return a new selector
+     */
+    static NetworkClientSelector leastPending() {
+        return (clients, processorId) -> {
+            NetworkClient selected = null;
+            long selectedQueued = Long.MAX_VALUE;
+            long selectedBytes = Long.MAX_VALUE;
+
+            for (NetworkClient client : clients) {
+                if (client.isValid()) {
+                    long queued = client.queuedMessages();
+                    if (queued <= selectedQueued) {
+                        long bytes = client.pendingWriteBytes();
+                        if (queued < selectedQueued || bytes < selectedBytes) {
+                            selected = client;
+                            selectedQueued = queued;
+                            selectedBytes = bytes;
+                        }
+                    }
+                }
+            }
+            return selected;
+        };
+    }
+
+    /**
+     * Returns a selector which always selects the same client for the same processor id, so that messages
+     * of a processor are sent through the same connection in order. If the client for the processor id is not
+     * valid, the next valid client is selected. Messages without a processor id are sent by the fallback selector.
+     * <p>
+     * The order is kept only while the client for the processor id is valid. Messages sent through the next client
+     * during a failover may be received after messages sent later through a replacement of the failed client.
+     *
+     * @param fallback the selector for messages without a processor id
+     * @return a new selector
+     */
+    static NetworkClientSelector sticky(NetworkClientSelector fallback) {
+        return (clients, processorId) -> {
+            if (processorId == null) {
+                return fallback.select(clients, null);
+            }
+
+            int size = clients.size();
+            int offset = (processorId.hashCode() & Integer.MAX_VALUE) % size;
+            for (int i = 0; i < size; i++) {
+                NetworkClient client = clients.get((offset + i) % size);
+                if (client.isValid()) {
+                    return client;
+                }
+            }
+            return null;
+        };
+    }
+
+}
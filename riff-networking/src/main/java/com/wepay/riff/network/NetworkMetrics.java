@@ -0,0 +1,145 @@
+package com.wepay.riff.network;
+
+import com.wepay.riff.metrics.core.Counter;
+import com.wepay.riff.metrics.core.Histogram;
+import com.wepay.riff.metrics.core.Meter;
+import com.wepay.riff.metrics.core.MetricRegistry;
+import com.wepay.riff.metrics.core.Timer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * NetworkMetrics holds the instruments of riff-networking. Metrics are opt-in. They are recorded only by
+ * {@link MessageHandler}s configured with an instance (see {@link MessageHandler#setMetrics(NetworkMetrics)}).
+ * An instance may be shared by many handlers, then the instruments aggregate all connections.
+ * <p>
+ * The following metrics are registered in the specified group.
+ * <ul>
+ *     <li>{@code <codec>.messages-in}, {@code <codec>.messages-out}: meters of received and sent messages</li>
+ *     <li>{@code <codec>.bytes-in}, {@code <codec>.bytes-out}: meters of received and sent bytes including the
+ *     frame header</li>
+ *     <li>{@code <codec>.decode-time}, {@code <codec>.encode-time}: timers of decoding and encoding</li>
+ *     <li>{@code inbound-queued-messages}: a counter of received messages waiting in processor queues</li>
+ *     <li>{@code processor-queue-depth}: a histogram of the processor queue depth when a message is queued</li>
+ *     <li>{@code processor-queue-time}: a timer of the time a message spends in a processor queue, including the
+ *     wait for a thread of {@link MessageProcessingThreadPool}</li>
+ *     <li>{@code throttle-on}, {@code throttle-off}: meters of throttling events</li>
+ *     <li>{@code throttled-channels}: a counter of channels currently throttled</li>
+ *     <li>{@code ensure-writable-park-time}: a timer of the time a sender is parked in
+ *     {@link MessageHandler#ensureWritable()}</li>
+ * </ul>
+ * {@code <codec>} is the simple class name of the codec followed by the version, e.g. {@code MyCodec-v2}.
+ */
+public final class NetworkMetrics {
+
+    private final MetricRegistry registry;
+    private final String group;
+    private final ConcurrentMap<MessageCodec, CodecMetrics> codecMetrics = new ConcurrentHashMap<>();
+
+    private final Counter inboundQueuedMessages;
+    private final Histogram processorQueueDepth;
+    private final Timer processorQueueTime;
+    private final Meter throttleOn;
+    private final Meter throttleOff;
+    private final Counter throttledChannels;
+    private final Timer ensureWritableParkTime;
+
+    /**
+     * Creates the instruments in the registry. Existing instruments of the same names are reused.
+     * @param registry metric registry
+     * @param group metric group
+     */
+    public NetworkMetrics(MetricRegistry registry, String group) {
+        this.registry = registry;
+        this.group = group;
+
+        this.inboundQueuedMessages = registry.counter(group, "inbound-queued-messages");
+        this.processorQueueDepth = registry.histogram(group, "processor-queue-depth");
+        this.processorQueueTime = registry.timer(group, "processor-queue-time");
+        this.throttleOn = registry.meter(group, "throttle-on");
+        this.throttleOff = registry.meter(group, "throttle-off");
+        this.throttledChannels = registry.counter(group, "throttled-channels");
+        this.ensureWritableParkTime = registry.timer(group, "ensure-writable-park-time");
+    }
+
+    /**
+     * Returns the instruments of the codec.
+     */
+    CodecMetrics codec(MessageCodec codec) {
+        return codecMetrics.computeIfAbsent(codec, c -> new CodecMetrics(registry, group, codecName(c)));
+    }
+
+    void messageQueued(int queueDepth) {
+        inboundQueuedMessages.inc();
+        processorQueueDepth.update(queueDepth);
+    }
+
+    void messageDequeued(long queuedNanos) {
+        inboundQueuedMessages.dec();
+        processorQueueTime.update(queuedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void messageDiscarded() {
+        inboundQueuedMessages.dec();
+    }
+
+    void throttled(boolean throttled) {
+        if (throttled) {
+            throttleOn.mark();
+            throttledChannels.inc();
+        } else {
+            throttleOff.mark();
+            throttledChannels.dec();
+        }
+    }
+
+    void ensureWritableParked(long parkedNanos) {
+        ensureWritableParkTime.update(parkedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static String codecName(MessageCodec codec) {
+        String name = codec.getClass().getSimpleName();
+        if (name.isEmpty()) {
+            name = codec.getClass().getName();
+        }
+        return name + "-v" + codec.version();
+    }
+
+    /**
+     * The instruments of a codec.
+     */
+    static final class CodecMetrics {
+
+        private final Meter messagesIn;
+        private final Meter messagesOut;
+        private final Meter bytesIn;
+        private final Meter bytesOut;
+        private final Timer decodeTime;
+        private final Timer encodeTime;
+
+        private CodecMetrics(MetricRegistry registry, String group, String codecName) {
+            this.messagesIn = registry.meter(group, MetricRegistry.name(codecName, "messages-in"));
+            this.messagesOut = registry.meter(group, MetricRegistry.name(codecName, "messages-out"));
+            this.bytesIn = registry.meter(group, MetricRegistry.name(codecName, "bytes-in"));
+            this.bytesOut = registry.meter(group, MetricRegistry.name(codecName, "bytes-out"));
+            this.decodeTime = registry.timer(group, MetricRegistry.name(codecName, "decode-time"));
+            this.encodeTime = registry.timer(group, MetricRegistry.name(codecName, "encode-time"));
+        }
+
+        void decoded(int bytes, long nanos) {
+            messagesIn.mark();
+            bytesIn.mark(bytes);
+            decodeTime.update(nanos, TimeUnit.NANOSECONDS);
+        }
+
+        void encoded(int bytes, long nanos) {
+            messagesOut.mark();
+            bytesOut.mark(bytes);
+            encodeTime.update(nanos, TimeUnit.NANOSECONDS);
+        }
+
+    }
+
+}
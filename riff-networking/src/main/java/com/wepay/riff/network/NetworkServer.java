@@ -9,9 +9,7 @@ import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
 import io.netty.handler.ssl.SslContext;
@@ -33,18 +31,24 @@ public abstract class NetworkServer implements Closeable {
     private final EventLoopGroup childGroup;
     private final ChannelFuture channelFuture;
 
+    private volatile InboundMemoryBudget inboundMemoryBudget = null;
+
     public NetworkServer(int port, SslContext sslCtx) throws UnknownHostException {
+        this(port, sslCtx, TransportConfig.DEFAULT);
+    }
+
+    public NetworkServer(int port, SslContext sslCtx, TransportConfig transportConfig) throws UnknownHostException {
         this.sslCtx = sslCtx;
-        this.parentGroup = new NioEventLoopGroup(1);
-        this.childGroup = new NioEventLoopGroup();
+        this.parentGroup = transportConfig.transport.newEventLoopGroup(1);
+        this.childGroup = transportConfig.transport.newEventLoopGroup(0);
 
         ServerBootstrap b = new ServerBootstrap();
         b.group(parentGroup, childGroup)
             .option(ChannelOption.SO_KEEPALIVE, true)
             .option(ChannelOption.TCP_NODELAY, true)
-            .channel(NioServerSocketChannel.class)
             .handler(new LoggingHandler(LogLevel.INFO))
             .childHandler(new ServerInitializer());
+        transportConfig.configure(b);
         this.channelFuture = b.bind(InetAddress.getLocalHost(), port);
         this.channelFuture.addListener(f -> {
             if (!f.isSuccess()) {
@@ -57,6 +61,15 @@ public abstract class NetworkServer implements Closeable {
 
     protected abstract MessageHandler getMessageHandler();
 
+    /**
+     * Sets the inbound memory budget. The budget is shared by connections accepted after this call, and may also be
+     * shared with other servers to bound the memory used by received messages in the process.
+     * @param budget inbound memory budget, or null to disable
+     */
+    public void setInboundMemoryBudget(InboundMemoryBudget budget) {
+        this.inboundMemoryBudget = budget;
+    }
+
     @Override
     public void close() {
         if (state.compareAndSet(ServerState.STARTED, ServerState.CLOSING)) {
@@ -102,7 +115,12 @@ public abstract class NetworkServer implements Closeable {
             pipeline.addLast("helloEncoder", new MessageEncoder(HelloCodec.INSTANCE));
 
             // and then the message handler
-            pipeline.addLast(getMessageHandler());
+            MessageHandler messageHandler = getMessageHandler();
+            InboundMemoryBudget budget = inboundMemoryBudget;
+            if (budget != null) {
+                messageHandler.setInboundMemoryBudget(budget);
+            }
+            pipeline.addLast(messageHandler);
         }
 
     }
@@ -0,0 +1,9 @@
+package com.wepay.riff.network;
+
+public class PendingWritesFullException extends RuntimeException {
+
+    public PendingWritesFullException(String msg) {
+        super(msg);
+    }
+
+}
@@ -0,0 +1,170 @@
+package com.wepay.riff.network;
+
+/**
+ * ProcessorTable maps int processor ids to {@link MessageProcessor}s. It is an open addressing hash table with
+ * int keys, so a lookup does not box the id.
+ * <p>
+ * The table is copy-on-write. A lookup reads the current immutable snapshot without locking. Updates are
+ * serialized and publish a new snapshot. Updates are expected to be rare compared to lookups, they happen only
+ * when a processor is created or evicted.
+ */
+final class ProcessorTable {
+
+    private static final int MIN_CAPACITY = 8;
+    private static final int HASH_MULTIPLIER = 0x9E3779B9;
+
+    private volatile Snapshot snapshot = new Snapshot(MIN_CAPACITY);
+
+    /**
+     * Returns the processor of the specified id.
+     * @param processorId processor id
+     * @return the processor, or null if not found
+     */
+    MessageProcessor get(int processorId) {
+        return snapshot.get(processorId);
+    }
+
+    /**
+     * Adds or replaces the processor of the specified id.
+     * @param processorId processor id
+     * @param processor processor
+     */
+    void put(int processorId, MessageProcessor processor) {
+        synchronized (this) {
+            Snapshot current = snapshot;
+            int size = current.size + (current.get(processorId) == null ? 1 : 0);
+
+            Snapshot next = new Snapshot(capacityFor(size));
+            current.copyTo(next, processorId, false);
+            next.insert(processorId, processor);
+            snapshot = next;
+        }
+    }
+
+    /**
+     * Removes the processor of the specified id if it is mapped to the specified processor.
+     * @param processorId processor id
+     * @param processor processor
+     * @return true if removed
+     */
+    boolean remove(int processorId, MessageProcessor processor) {
+        synchronized (this) {
+            Snapshot current = snapshot;
+            if (current.get(processorId) != processor) {
+                return false;
+            }
+
+            Snapshot next = new Snapshot(capacityFor(current.size - 1));
+            current.copyTo(next, processorId, true);
+            snapshot = next;
+            return true;
+        }
+    }
+
+    /**
+     * Returns the processor ids in the table.
+     * @return processor ids
+     */
+    int[] processorIds() {
+        return snapshot.keys();
+    }
+
+    /**
+     * Returns the processors in the table.
+     * @return processors
+     */
+    MessageProcessor[] processors() {
+        return snapshot.values();
+    }
+
+    int size() {
+        return snapshot.size;
+    }
+
+    private static int capacityFor(int size) {
+        // Keep the load factor at or below 0.5
+        int capacity = MIN_CAPACITY;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static int hash(int processorId) {
+        int h = processorId * HASH_MULTIPLIER;
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Snapshot {
+
+        private final int[] keys;
+        private final MessageProcessor[] values;
+        private final int mask;
+        private int size;
+
+        Snapshot(int capacity) {
+            this.keys = new int[capacity];
+            this.values = new MessageProcessor[capacity];
+            this.mask = capacity - 1;
+            this.size = 0;
+        }
+
+        MessageProcessor get(int processorId) {
+            int index = hash(processorId) & mask;
+            while (true) {
+                MessageProcessor value = values[index];
+                if (value == null || keys[index] == processorId) {
+                    return value;
+                }
+                index = (index + 1) & mask;
+            }
+        }
+
+        // Only for a snapshot under construction
+        void insert(int processorId, MessageProcessor processor) {
+            int index = hash(processorId) & mask;
+            while (values[index] != null) {
+                if (keys[index] == processorId) {
+                    values[index] = processor;
+                    return;
+                }
+                index = (index + 1) & mask;
+            }
+            keys[index] = processorId;
+            values[index] = processor;
+            size++;
+        }
+
+        void copyTo(Snapshot other, int processorId, boolean exclude) {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null && !(exclude && keys[i] == processorId)) {
+                    other.insert(keys[i], values[i]);
+                }
+            }
+        }
+
+        int[] keys() {
+            int[] result = new int[size];
+            int n = 0;
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    result[n++] = keys[i];
+                }
+            }
+            return result;
+        }
+
+        MessageProcessor[] values() {
+            MessageProcessor[] result = new MessageProcessor[size];
+            int n = 0;
+            for (MessageProcessor value : values) {
+                if (value != null) {
+                    result[n++] = value;
+                }
+            }
+            return result;
+        }
+
+    }
+
+}
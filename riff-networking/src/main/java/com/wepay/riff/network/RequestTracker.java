@@ -0,0 +1,149 @@
+package com.wepay.riff.network;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RequestTracker keeps track of in-flight requests of a {@link MessageHandler}. It assigns request ids, and completes
+ * the future of a request when the response arrives or the request times out.
+ * <p>
+ * Pending requests are kept in a concurrent hash map keyed by the request id. Timeouts are scheduled on a hashed
+ * wheel timer shared by all trackers, so a timeout costs a bucket insertion and no thread wake up.
+ */
+final class RequestTracker {
+
+    private static final long TIMER_TICK_MILLIS = 10L;
+
+    private static final Timer TIMER = new HashedWheelTimer(
+        new DefaultThreadFactory("riff-request-timer", true), TIMER_TICK_MILLIS, TimeUnit.MILLISECONDS
+    );
+
+    private final long defaultTimeoutMillis;
+    private final AtomicLong nextRequestId = new AtomicLong(0L);
+    private final Map<Long, PendingRequest> pendingRequests = new ConcurrentHashMap<>();
+
+    private volatile Throwable failure = null;
+
+    /**
+     * Creates a tracker.
+     * @param defaultTimeoutMillis the default request timeout in milliseconds, no timeout if not positive
+     */
+    RequestTracker(long defaultTimeoutMillis) {
+        this.defaultTimeoutMillis = defaultTimeoutMillis;
+    }
+
+    long defaultTimeoutMillis() {
+        return defaultTimeoutMillis;
+    }
+
+    /**
+     * Registers a new request.
+     * @param payload the request payload
+     * @param timeoutMillis the timeout in milliseconds, no timeout if not positive
+     * @return the pending request
+     */
+    PendingRequest register(Message payload, long timeoutMillis) {
+        long requestId = nextRequestId.incrementAndGet();
+        PendingRequest pendingRequest = new PendingRequest(new CorrelatedMessage(requestId, false, payload));
+        pendingRequests.put(requestId, pendingRequest);
+
+        if (timeoutMillis > 0) {
+            pendingRequest.timeout = TIMER.newTimeout(t -> {
+                if (pendingRequests.remove(requestId, pendingRequest)) {
+                    pendingRequest.future.completeExceptionally(
+                        new TimeoutException("request timed out: requestId=" + requestId)
+                    );
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        // The tracker may have been failed concurrently.
+        Throwable failure = this.failure;
+        if (failure != null) {
+            fail(requestId, failure);
+        }
+
+        return pendingRequest;
+    }
+
+    /**
+     * Completes the request of the response.
+     * @param response response
+     * @return true if there was a pending request
+     */
+    boolean complete(CorrelatedMessage response) {
+        PendingRequest pendingRequest = pendingRequests.remove(response.requestId);
+        if (pendingRequest != null) {
+            pendingRequest.cancelTimeout();
+            pendingRequest.future.complete(response.payload);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Fails the request.
+     * @param requestId request id
+     * @param cause the cause
+     */
+    void fail(long requestId, Throwable cause) {
+        PendingRequest pendingRequest = pendingRequests.remove(requestId);
+        if (pendingRequest != null) {
+            pendingRequest.cancelTimeout();
+            pendingRequest.future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Fails all pending requests and all requests registered after this call.
+     * @param cause the cause
+     */
+    void failAll(Throwable cause) {
+        failure = cause;
+        for (Long requestId : pendingRequests.keySet()) {
+            fail(requestId, cause);
+        }
+    }
+
+    int numPendingRequests() {
+        return pendingRequests.size();
+    }
+
+    static final class PendingRequest {
+
+        private final CorrelatedMessage request;
+        private final CompletableFuture<Message> future = new CompletableFuture<>();
+
+        private volatile Timeout timeout = null;
+
+        private PendingRequest(CorrelatedMessage request) {
+            this.request = request;
+        }
+
+        CorrelatedMessage request() {
+            return request;
+        }
+
+        CompletableFuture<Message> future() {
+            return future;
+        }
+
+        private void cancelTimeout() {
+            Timeout timeout = this.timeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+
+    }
+
+}
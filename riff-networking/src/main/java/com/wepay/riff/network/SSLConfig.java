@@ -1,12 +1,42 @@
 package com.wepay.riff.network;
 
 import com.wepay.riff.config.AbstractConfig;
+import com.wepay.riff.util.Logging;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.OpenSslSessionContext;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import org.slf4j.Logger;
 
+import javax.net.ssl.SSLException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+/**
+ * SSLConfig specifies the key store, the trust store, and the options of SSL contexts built by {@link ServerSSL} and
+ * {@link ClientSSL}.
+ * <p>
+ * The provider is {@code openssl}, {@code jdk}, or {@code auto}. {@code auto} uses OpenSSL if netty-tcnative (e.g.
+ * netty-tcnative-boringssl-static) is in the class path, otherwise the JDK. OpenSSL is much cheaper on bulk traffic.
+ * Sessions are resumed with the session cache of a server. A JDK client resumes a session with the same host and port.
+ * The OpenSSL client of this netty version does not resume sessions, so {@code jdk} may be preferable for clients
+ * which reconnect often. Session tickets are issued only by OpenSSL servers, with keys generated for each context.
+ * <p>
+ * Ciphers and protocols are comma separated lists in the order of preference. They are the defaults of the provider
+ * if not specified.
+ */
 public class SSLConfig extends AbstractConfig {
 
+    private static final Logger logger = Logging.getLogger(SSLConfig.class);
+
     public static final String KEY_STORE_LOCATION = "keyStore.location";
     public static final String KEY_STORE_PASSWORD = "keyStore.password";
     public static final String KEY_STORE_TYPE = "keyStore.type";
@@ -23,6 +53,30 @@ public class SSLConfig extends AbstractConfig {
     public static final String TRUST_MANAGER_ALGORITHM = "trustManager.algorithm";
     public static final String DEFAULT_TRUST_MANAGER_ALGORITHM = "SunX509";
 
+    public static final String PROVIDER = "provider";
+    public static final String PROVIDER_AUTO = "auto";
+    public static final String PROVIDER_JDK = "jdk";
+    public static final String PROVIDER_OPENSSL = "openssl";
+    public static final String DEFAULT_PROVIDER = PROVIDER_AUTO;
+
+    public static final String CIPHERS = "ciphers";
+    public static final String PROTOCOLS = "protocols";
+
+    // Zero uses the default of the provider
+    public static final String SESSION_CACHE_SIZE = "session.cacheSize";
+    public static final long DEFAULT_SESSION_CACHE_SIZE = 0L;
+
+    // In seconds, zero uses the default of the provider
+    public static final String SESSION_TIMEOUT = "session.timeout";
+    public static final long DEFAULT_SESSION_TIMEOUT = 0L;
+
+    public static final String SESSION_TICKETS = "session.tickets";
+    public static final boolean DEFAULT_SESSION_TICKETS = false;
+
+    private static final Set<String> PROVIDERS = new HashSet<>(Arrays.asList(PROVIDER_AUTO, PROVIDER_JDK, PROVIDER_OPENSSL));
+
+    private static final Parser listParser = new Parser(SSLConfig::parseList);
+
     private static final HashMap<String, Parser> parsers = new HashMap<>();
     static {
         parsers.put(KEY_STORE_LOCATION, stringParser);
@@ -33,10 +87,89 @@ public class SSLConfig extends AbstractConfig {
         parsers.put(TRUST_STORE_TYPE, stringParser.withDefault(SSLConfig.DEFAULT_TRUST_STORE_TYPE));
         parsers.put(KEY_MANAGER_ALGORITHM, stringParser.withDefault(SSLConfig.DEFAULT_KEY_MANAGER_ALGORITHM));
         parsers.put(TRUST_MANAGER_ALGORITHM, stringParser.withDefault(SSLConfig.DEFAULT_TRUST_MANAGER_ALGORITHM));
+        parsers.put(PROVIDER, stringParser.withDefault(SSLConfig.DEFAULT_PROVIDER)
+            .withValidator(PROVIDERS::contains, "provider must be one of " + PROVIDERS));
+        parsers.put(CIPHERS, listParser);
+        parsers.put(PROTOCOLS, listParser);
+        parsers.put(SESSION_CACHE_SIZE, longParser.withDefault(SSLConfig.DEFAULT_SESSION_CACHE_SIZE)
+            .withValidator(value -> (Long) value >= 0L, "session cache size must be non-negative"));
+        parsers.put(SESSION_TIMEOUT, longParser.withDefault(SSLConfig.DEFAULT_SESSION_TIMEOUT)
+            .withValidator(value -> (Long) value >= 0L, "session timeout must be non-negative"));
+        parsers.put(SESSION_TICKETS, booleanParser.withDefault(SSLConfig.DEFAULT_SESSION_TICKETS));
     }
 
     public SSLConfig(String configPrefix, Map<Object, Object> configValues) {
         super(configPrefix, configValues, parsers);
     }
 
+    /**
+     * Resolves the provider.
+     * @return the provider to use
+     * @throws SSLException if OpenSSL is required but not available
+     */
+    SslProvider sslProvider() throws SSLException {
+        String provider = (String) get(PROVIDER);
+
+        if (PROVIDER_JDK.equals(provider)) {
+            return SslProvider.JDK;
+
+        } else if (PROVIDER_OPENSSL.equals(provider)) {
+            if (!OpenSsl.isAvailable()) {
+                throw new SSLException("OpenSSL provider not available", OpenSsl.unavailabilityCause());
+            }
+            return SslProvider.OPENSSL;
+
+        } else {
+            return OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    void configure(SslContextBuilder builder) throws SSLException {
+        builder.sslProvider(sslProvider());
+
+        getOpt(CIPHERS).ifPresent(ciphers -> builder.ciphers((List<String>) ciphers));
+        getOpt(PROTOCOLS).ifPresent(protocols -> builder.protocols((List<String>) protocols));
+
+        builder.sessionCacheSize((Long) get(SESSION_CACHE_SIZE));
+        builder.sessionTimeout((Long) get(SESSION_TIMEOUT));
+    }
+
+    /**
+     * Enables session tickets of a server context if configured.
+     * @param sslCtx server context
+     */
+    void configureSessionTickets(SslContext sslCtx) {
+        if (!(Boolean) get(SESSION_TICKETS)) {
+            return;
+        }
+
+        if (sslCtx.sessionContext() instanceof OpenSslSessionContext) {
+            SecureRandom random = new SecureRandom();
+            byte[] name = new byte[OpenSslSessionTicketKey.NAME_SIZE];
+            byte[] hmacKey = new byte[OpenSslSessionTicketKey.HMAC_KEY_SIZE];
+            byte[] aesKey = new byte[OpenSslSessionTicketKey.AES_KEY_SIZE];
+            random.nextBytes(name);
+            random.nextBytes(hmacKey);
+            random.nextBytes(aesKey);
+
+            ((OpenSslSessionContext) sslCtx.sessionContext())
+                .setTicketKeys(new OpenSslSessionTicketKey(name, hmacKey, aesKey));
+
+        } else {
+            logger.warn("session tickets are supported only by the OpenSSL provider, ignored");
+        }
+    }
+
+    private static Object parseList(String spec) {
+        List<String> list = new ArrayList<>();
+        for (String element : spec.split(",")) {
+            String trimmed = element.trim();
+            if (!trimmed.isEmpty()) {
+                list.add(trimmed);
+            }
+        }
+        return list;
+    }
+
 }
@@ -75,7 +75,12 @@ public final class ServerSSL {
                 logger.error("TrustStoreLocation was not specified. Building SSL context without client auth. This is not suitable for PRODUCTION.");
             }
 
-            return builder.build();
+            config.configure(builder);
+
+            SslContext sslCtx = builder.build();
+            config.configureSessionTickets(sslCtx);
+
+            return sslCtx;
 
         } catch (GeneralSecurityException | IOException e) {
             logger.error("Failed to create SslContext", e);
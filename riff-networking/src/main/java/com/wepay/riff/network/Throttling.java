@@ -2,78 +2,276 @@ package com.wepay.riff.network;
 
 import io.netty.channel.ChannelConfig;
 
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Throttling is used by MessageProcessor to control network traffic according to the number of messages in a buffer.
+ * Throttling is used by MessageProcessor to control network traffic according to the amount of messages in a buffer.
  * An instance of Throttling is created for each MessageHandler and shared by all MessageProcessor associated with it.
  * It toggles the auto read flag through {@link ChannelConfig}. When the auto read is off, netty won't read next message.
- * Throttling keep the message count, and MessageProcessor
- * increments the count by calling {@link #increment()} when a new message is added
- * and decrements the count by calling {@link #decrement()} when a message is processed.
+ * Throttling keep the buffered amount, and MessageProcessor
+ * increments the amount by calling {@link #increment(Message)} when a new message is added
+ * and decrements the amount by calling {@link #decrement(Message)} when a message is processed.
+ * <p>
+ * How much a message counts is determined by {@link ThrottlingPolicy}. The buffered amount is a lock-free counter.
+ * The monitor is taken only when an update may change the throttling state.
+ * <p>
+ * Optionally, each processor may have its own thresholds (see {@link #newProcessorThrottling()}). The channel is
+ * throttled while the total amount is over the channel thresholds or any processor is over the processor thresholds.
+ * This allows a high channel threshold for many moderately loaded processors while bounding a hot processor.
+ * <p>
+ * Optionally, the channel may be registered to an {@link InboundMemoryBudget} shared by many channels
+ * (see {@link #setInboundMemoryBudget(InboundMemoryBudget)}). The channel is also throttled while the budget pauses it.
  */
 public class Throttling {
 
-    private final int lowThreshold;
-    private final int highThreshold;
-    private final AtomicBoolean throttled = new AtomicBoolean(false);
+    private final Throttling parent;
+    private final AtomicLong bufferedAmount = new AtomicLong(0L);
 
-    private int bufferedMessageCount;
+    private volatile ThrottlingPolicy policy;
+    private volatile long lowThreshold;
+    private volatile long highThreshold;
+    private volatile long processorLowThreshold = 0L;
+    private volatile long processorHighThreshold = 0L;
+
+    // Modified only while holding the monitor
+    private volatile boolean overThreshold = false;
+    private boolean autoReadOff = false;
+    private int numThrottledProcessors = 0;
+    private boolean pausedByBudget = false;
     private ChannelConfig channelConfig;
+    private NetworkMetrics metrics = null;
+
+    // Set only for the channel throttling
+    private volatile InboundMemoryBudget.Registration budgetRegistration = null;
 
     Throttling(int lowThreshold, int highThreshold) {
+        this(null, ThrottlingPolicy.MESSAGE_COUNT, lowThreshold, highThreshold);
+    }
+
+    private Throttling(Throttling parent, ThrottlingPolicy policy, long lowThreshold, long highThreshold) {
+        this.parent = parent;
+        this.policy = policy;
+        this.lowThreshold = lowThreshold;
+        this.highThreshold = highThreshold;
+    }
+
+    /**
+     * Sets the throttling policy and the thresholds. This must be called before messages are buffered.
+     * @param policy throttling policy
+     * @param lowThreshold the channel is unthrottled when the buffered amount goes below this
+     * @param highThreshold the channel is throttled when the buffered amount goes above this
+     */
+    void setPolicy(ThrottlingPolicy policy, long lowThreshold, long highThreshold) {
+        this.policy = policy;
         this.lowThreshold = lowThreshold;
         this.highThreshold = highThreshold;
-        this.bufferedMessageCount = 0;
     }
 
     /**
-     * Sets the ChannelConfig. ChannelConfig is used to toggle the auto read flag according to the buffered message count
+     * Sets the thresholds of each processor. This affects processors created after the call.
+     * @param lowThreshold the low threshold of a processor
+     * @param highThreshold the high threshold of a processor, zero or negative to disable per-processor throttling
+     */
+    void setProcessorThresholds(long lowThreshold, long highThreshold) {
+        this.processorLowThreshold = lowThreshold;
+        this.processorHighThreshold = highThreshold;
+    }
+
+    /**
+     * Returns a Throttling for a new processor. If per-processor thresholds are set, this returns a new Throttling
+     * which reports to this Throttling. Otherwise, this returns this Throttling itself.
+     * @return throttling for a processor
+     */
+    Throttling newProcessorThrottling() {
+        long high = processorHighThreshold;
+        if (parent == null && high > 0) {
+            return new Throttling(this, policy, processorLowThreshold, high);
+        } else {
+            return this;
+        }
+    }
+
+    /**
+     * Registers this throttling to the budget. The encoded sizes of messages are charged to the budget.
+     * This must be called before messages are buffered.
+     * @param budget inbound memory budget
+     */
+    void setInboundMemoryBudget(InboundMemoryBudget budget) {
+        budgetRegistration = budget.register(this);
+    }
+
+    /**
+     * Unregisters this throttling from the budget. Messages released after this call are still credited to the budget.
+     */
+    void unregisterInboundMemoryBudget() {
+        InboundMemoryBudget.Registration registration = budgetRegistration;
+        if (registration != null) {
+            registration.budget().unregister(registration);
+        }
+    }
+
+    /**
+     * Sets the metrics. Throttling events of the channel are recorded.
+     * @param metrics metrics
+     */
+    void setMetrics(NetworkMetrics metrics) {
+        synchronized (this) {
+            this.metrics = metrics;
+        }
+    }
+
+    /**
+     * Sets the ChannelConfig. ChannelConfig is used to toggle the auto read flag according to the buffered amount
      * @param channelConfig
      */
     void setChannelConfig(ChannelConfig channelConfig) {
         synchronized (this) {
             this.channelConfig = channelConfig;
             this.channelConfig.setAutoRead(true);
-            this.throttled.set(false);
+            this.autoReadOff = false;
+            updateAutoRead();
         }
     }
 
     /**
-     * Increments the buffered message count.
+     * Increments the buffered amount by one.
      */
     void increment() {
-        synchronized (this) {
-            if (++bufferedMessageCount > highThreshold) {
-                throttle(true);
-            }
-        }
+        add(1L);
     }
 
     /**
-     * Increments the buffered message count.
+     * Decrements the buffered amount by one.
      */
     void decrement() {
+        add(-1L);
+    }
+
+    /**
+     * Increments the buffered amount by the weight of the message.
+     * @param msg message
+     */
+    void increment(Message msg) {
+        add(policy.weight(msg));
+        chargeBudget(ThrottlingPolicy.BYTES.weight(msg));
+    }
+
+    /**
+     * Decrements the buffered amount by the weight of the message.
+     * @param msg message
+     */
+    void decrement(Message msg) {
+        add(-policy.weight(msg));
+        chargeBudget(-ThrottlingPolicy.BYTES.weight(msg));
+    }
+
+    /**
+     * Returns the buffered amount. The amount is consistent with the throttling state.
+     */
+    long size() {
         synchronized (this) {
-            if (--bufferedMessageCount < lowThreshold) {
-                throttle(false);
+            return bufferedAmount.get();
+        }
+    }
+
+    private void add(long delta) {
+        // Fast path. Update the counter without the monitor unless the update may change the throttling state.
+        while (true) {
+            boolean over = overThreshold;
+            long current = bufferedAmount.get();
+            long next = current + delta;
+
+            if (over ? next < lowThreshold : next > highThreshold) {
+                break;
+            }
+
+            if (bufferedAmount.compareAndSet(current, next)) {
+                // The state was changed concurrently. Re-evaluate it with the new amount.
+                if (over != overThreshold) {
+                    updateThreshold();
+                }
+                propagate(delta);
+                return;
             }
         }
+
+        // Slow path. Update the counter and the state atomically.
+        synchronized (this) {
+            bufferedAmount.addAndGet(delta);
+            updateThreshold();
+        }
+        propagate(delta);
     }
 
-    /**
-     * Returns the buffered message count.
-     */
-    int size() {
+    private void chargeBudget(long bytes) {
+        InboundMemoryBudget.Registration registration = (parent != null ? parent : this).budgetRegistration;
+        if (registration != null) {
+            registration.add(bytes);
+        }
+    }
+
+    private void propagate(long delta) {
+        if (parent != null) {
+            parent.add(delta);
+        }
+    }
+
+    private void updateThreshold() {
+        synchronized (this) {
+            // Re-read the amount until the state is stable. A fast path update which happened before the state
+            // change is seen here, and one which happens after the state change sees the new state by itself.
+            while (true) {
+                long amount = bufferedAmount.get();
+
+                boolean over;
+                if (overThreshold) {
+                    over = amount >= lowThreshold;
+                } else {
+                    over = amount > highThreshold;
+                }
+
+                if (over == overThreshold) {
+                    return;
+                }
+
+                overThreshold = over;
+                if (parent != null) {
+                    parent.processorThrottled(over);
+                } else {
+                    updateAutoRead();
+                }
+            }
+        }
+    }
+
+    private void processorThrottled(boolean throttled) {
+        synchronized (this) {
+            if (throttled) {
+                numThrottledProcessors++;
+            } else {
+                numThrottledProcessors--;
+            }
+            updateAutoRead();
+        }
+    }
+
+    void pausedByBudget(boolean paused) {
         synchronized (this) {
-            return bufferedMessageCount;
+            pausedByBudget = paused;
+            updateAutoRead();
         }
     }
 
-    private void throttle(boolean throttle) {
+    // The caller must hold the monitor
+    private void updateAutoRead() {
         if (channelConfig != null) {
-            if (throttled.compareAndSet(!throttle, throttle)) {
-                channelConfig.setAutoRead(!throttle);
+            boolean off = overThreshold || numThrottledProcessors > 0 || pausedByBudget;
+            if (off != autoReadOff) {
+                autoReadOff = off;
+                channelConfig.setAutoRead(!off);
+                if (metrics != null) {
+                    metrics.throttled(off);
+                }
             }
         }
     }
@@ -0,0 +1,27 @@
+package com.wepay.riff.network;
+
+/**
+ * ThrottlingPolicy determines how much a buffered message counts toward the throttling thresholds of
+ * {@link MessageHandler}.
+ */
+public interface ThrottlingPolicy {
+
+    /**
+     * Each message counts as one. This is the default.
+     */
+    ThrottlingPolicy MESSAGE_COUNT = msg -> 1L;
+
+    /**
+     * Each message counts as its encoded size in bytes (see {@link Message#encodedSize()}).
+     * A message whose size is unknown counts as one byte.
+     */
+    ThrottlingPolicy BYTES = msg -> Math.max(msg.encodedSize(), 1);
+
+    /**
+     * Returns the weight of the message. The weight of a message must not change while it is buffered.
+     * @param msg message
+     * @return weight
+     */
+    long weight(Message msg);
+
+}
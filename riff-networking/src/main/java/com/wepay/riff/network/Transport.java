@@ -0,0 +1,99 @@
+package com.wepay.riff.network;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+/**
+ * The netty transport used by {@link NetworkClient} and {@link NetworkServer}.
+ */
+public enum Transport {
+
+    /**
+     * Uses {@link #EPOLL} if the native epoll transport is available, otherwise {@link #NIO}.
+     */
+    AUTO,
+    /**
+     * The java NIO transport. This is available on all platforms.
+     */
+    NIO,
+    /**
+     * The native epoll transport. This is available on Linux when the netty-transport-native-epoll library
+     * for the platform is in the class path.
+     */
+    EPOLL;
+
+    /**
+     * Resolves {@link #AUTO} to the actual transport.
+     * @return the transport to use
+     */
+    public Transport resolve() {
+        if (this == AUTO) {
+            return Epoll.isAvailable() ? EPOLL : NIO;
+        }
+        return this;
+    }
+
+    /**
+     * Returns true if this transport is available on this platform.
+     * @return true if available
+     */
+    public boolean isAvailable() {
+        return this != EPOLL || Epoll.isAvailable();
+    }
+
+    /**
+     * Creates a new event loop group of this transport. The group may be shared by multiple {@link NetworkClient}s.
+     * @param numThreads the number of threads, zero to use the netty default
+     * @return a new event loop group
+     */
+    public EventLoopGroup newEventLoopGroup(int numThreads) {
+        switch (resolve()) {
+            case EPOLL:
+                return new EpollEventLoopGroup(numThreads);
+            default:
+                return new NioEventLoopGroup(numThreads);
+        }
+    }
+
+    /**
+     * Returns the transport of the specified event loop group.
+     * @param group event loop group
+     * @return {@link #EPOLL} or {@link #NIO}
+     */
+    static Transport of(EventLoopGroup group) {
+        if (group instanceof EpollEventLoopGroup) {
+            return EPOLL;
+        } else if (group instanceof NioEventLoopGroup) {
+            return NIO;
+        } else {
+            throw new IllegalArgumentException("unsupported event loop group: " + group.getClass().getName());
+        }
+    }
+
+    Class<? extends SocketChannel> socketChannelClass() {
+        switch (resolve()) {
+            case EPOLL:
+                return EpollSocketChannel.class;
+            default:
+                return NioSocketChannel.class;
+        }
+    }
+
+    Class<? extends ServerSocketChannel> serverSocketChannelClass() {
+        switch (resolve()) {
+            case EPOLL:
+                return EpollServerSocketChannel.class;
+            default:
+                return NioServerSocketChannel.class;
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+package com.wepay.riff.network;
+
+import com.wepay.riff.util.Logging;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import org.slf4j.Logger;
+
+/**
+ * TransportConfig specifies the netty transport and transport specific socket options
+ * for {@link NetworkClient} and {@link NetworkServer}.
+ * <p>
+ * {@code SO_REUSEPORT} and {@code TCP_QUICKACK} are supported only by the epoll transport.
+ * They are ignored with a warning when the resolved transport is NIO.
+ */
+public final class TransportConfig {
+
+    private static final Logger logger = Logging.getLogger(TransportConfig.class);
+
+    /**
+     * The default config. It uses the native epoll transport if available without any transport specific options.
+     */
+    public static final TransportConfig DEFAULT = new TransportConfig(Transport.AUTO, false, false);
+
+    public final Transport transport;
+    public final boolean reusePort;
+    public final boolean quickAck;
+
+    /**
+     * Creates a config for the specified transport without transport specific options.
+     * @param transport transport
+     */
+    public TransportConfig(Transport transport) {
+        this(transport, false, false);
+    }
+
+    /**
+     * Creates a config.
+     * @param transport transport
+     * @param reusePort if true, sets {@code SO_REUSEPORT} on server sockets so that multiple servers can bind
+     *                  the same port (epoll only)
+     * @param quickAck if true, sets {@code TCP_QUICKACK} on connections (epoll only)
+     */
+    public TransportConfig(Transport transport, boolean reusePort, boolean quickAck) {
+        if (transport == null) {
+            throw new NullPointerException("transport");
+        }
+        if (!transport.isAvailable()) {
+            throw new IllegalArgumentException("transport not available: " + transport, Epoll.unavailabilityCause());
+        }
+        this.transport = transport;
+        this.reusePort = reusePort;
+        this.quickAck = quickAck;
+    }
+
+    void configure(ServerBootstrap b) {
+        b.channel(transport.serverSocketChannelClass());
+
+        if (transport.resolve() == Transport.EPOLL) {
+            if (reusePort) {
+                b.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
+            if (quickAck) {
+                b.childOption(EpollChannelOption.TCP_QUICKACK, true);
+            }
+        } else {
+            warnIfEpollOptions();
+        }
+    }
+
+    void configure(Bootstrap b) {
+        b.channel(transport.socketChannelClass());
+
+        if (transport.resolve() == Transport.EPOLL) {
+            if (quickAck) {
+                b.option(EpollChannelOption.TCP_QUICKACK, true);
+            }
+        } else {
+            warnIfEpollOptions();
+        }
+    }
+
+    private void warnIfEpollOptions() {
+        if (reusePort || quickAck) {
+            logger.warn("SO_REUSEPORT and TCP_QUICKACK are ignored by transport " + transport.resolve());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TransportConfig(transport=" + transport + ", reusePort=" + reusePort + ", quickAck=" + quickAck + ")";
+    }
+
+}
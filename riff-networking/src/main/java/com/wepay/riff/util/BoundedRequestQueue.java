@@ -0,0 +1,314 @@
+package com.wepay.riff.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free bounded multi-producer multi-consumer queue with blocking enqueue and dequeue.
+ * This has the same semantics as {@link RequestQueue}, but it does not serialize threads on a monitor.
+ * <p>
+ * The queue is a ring buffer of slots with sequence numbers. A producer or a consumer claims a slot with a CAS on its
+ * position and publishes the slot by advancing the sequence number. The number of slots is the capacity rounded up to
+ * a power of two, and a producer does not claim a slot while the queue holds {@code capacity} requests. A thread that
+ * cannot proceed spins briefly, then parks in a wait queue. A successful enqueue wakes up one waiting consumer, and a
+ * successful dequeue wakes up one waiting producer, so threads are not woken up all at once.
+ *
+ * @param <T> the element type
+ */
+public class BoundedRequestQueue<T> {
+
+    private static final int MAX_SPINS = 100;
+    // The maximum park time of a waiting thread. This is a safety net, a thread is normally woken up by unpark.
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final int capacity;
+    private final int numSlots;
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final AtomicReferenceArray<T> elements;
+    private final AtomicLong enqueuePosition = new AtomicLong(0L);
+    private final AtomicLong dequeuePosition = new AtomicLong(0L);
+    private final Queue<Thread> waitingProducers = new ConcurrentLinkedQueue<>();
+    private final Queue<Thread> waitingConsumers = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a queue.
+     * @param capacity the capacity
+     */
+    public BoundedRequestQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("the capacity must be positive");
+        }
+
+        // The sequence numbers of a published slot and a free slot must differ, so there are at least two slots
+        int size = 2;
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        this.capacity = capacity;
+        this.numSlots = size;
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        this.elements = new AtomicReferenceArray<>(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Returns the capacity of this queue.
+     * @return capacity
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Adds the request to the queue, waiting if necessary for space to become available.
+     * @param request request
+     * @return true if added, false if the queue is closed
+     */
+    public boolean enqueue(T request) {
+        int spins = 0;
+        while (!closed) {
+            if (offer(request)) {
+                wakeUpOne(waitingConsumers);
+                return true;
+            }
+
+            if (spins < MAX_SPINS) {
+                spins++;
+                Thread.yield();
+            } else if (await(waitingProducers, () -> offer(request))) {
+                wakeUpOne(waitingConsumers);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Retrieves and removes the head of the queue, waiting if necessary until a request becomes available.
+     * @return the request, or null if the queue is closed
+     */
+    public T dequeue() {
+        int spins = 0;
+        while (!closed) {
+            T request = poll();
+            if (request != null) {
+                wakeUpOne(waitingProducers);
+                return request;
+            }
+
+            if (spins < MAX_SPINS) {
+                spins++;
+                Thread.yield();
+            } else {
+                await(waitingConsumers, () -> !isEmpty());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Retrieves and removes up to {@code maxSize} requests, waiting if necessary until a request becomes available.
+     * @param maxSize the maximum number of requests to retrieve
+     * @return the list of requests, or null if the queue is closed
+     */
+    public List<T> dequeue(int maxSize) {
+        int spins = 0;
+        while (!closed) {
+            if (!isEmpty()) {
+                ArrayList<T> batch = new ArrayList<>(Math.min(maxSize, capacity));
+                if (drainTo(batch, maxSize) > 0) {
+                    return batch;
+                }
+            }
+
+            if (spins < MAX_SPINS) {
+                spins++;
+                Thread.yield();
+            } else {
+                await(waitingConsumers, () -> !isEmpty());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes up to {@code maxSize} available requests and adds them to the collection without waiting.
+     * @param collection the collection to add requests to
+     * @param maxSize the maximum number of requests to remove
+     * @return the number of requests removed, zero if the queue is empty or closed
+     */
+    public int drainTo(Collection<? super T> collection, int maxSize) {
+        if (closed) {
+            return 0;
+        }
+
+        int count = 0;
+        while (count < maxSize) {
+            T request = poll();
+            if (request == null) {
+                break;
+            }
+            collection.add(request);
+            count++;
+        }
+
+        // Each freed slot may unblock a producer
+        for (int i = 0; i < count && !waitingProducers.isEmpty(); i++) {
+            wakeUpOne(waitingProducers);
+        }
+
+        return count;
+    }
+
+    /**
+     * Removes all available requests.
+     * @return the list of requests
+     */
+    public List<T> toList() {
+        ArrayList<T> list = new ArrayList<>();
+        T request = poll();
+        while (request != null) {
+            list.add(request);
+            request = poll();
+        }
+        wakeUpAll(waitingProducers);
+        return list;
+    }
+
+    /**
+     * Returns the number of requests in the queue. The value is approximate while the queue is modified.
+     * @return the number of requests
+     */
+    public int size() {
+        long size = enqueuePosition.get() - dequeuePosition.get();
+        return (int) Math.max(0L, Math.min(size, capacity));
+    }
+
+    /**
+     * Closes the queue. All waiting threads return.
+     */
+    public void close() {
+        closed = true;
+        wakeUpAll(waitingProducers);
+        wakeUpAll(waitingConsumers);
+    }
+
+    private boolean isEmpty() {
+        long position = dequeuePosition.get();
+        return sequences.get((int) position & mask) != position + 1;
+    }
+
+    private boolean offer(T request) {
+        long position = enqueuePosition.get();
+        while (true) {
+            int index = (int) position & mask;
+            long diff = sequences.get(index) - position;
+
+            if (diff == 0) {
+                if (position - dequeuePosition.get() >= capacity) {
+                    // The queue holds as many requests as the capacity, but the ring has more slots
+                    return false;
+                }
+                if (enqueuePosition.compareAndSet(position, position + 1)) {
+                    elements.lazySet(index, request);
+                    sequences.set(index, position + 1); // publish
+                    return true;
+                }
+                position = enqueuePosition.get();
+
+            } else if (diff < 0) {
+                // The slot is not consumed yet. The queue is full.
+                return false;
+
+            } else {
+                // Another producer took the slot
+                position = enqueuePosition.get();
+            }
+        }
+    }
+
+    private T poll() {
+        long position = dequeuePosition.get();
+        while (true) {
+            int index = (int) position & mask;
+            long diff = sequences.get(index) - (position + 1);
+
+            if (diff == 0) {
+                if (dequeuePosition.compareAndSet(position, position + 1)) {
+                    T request = elements.get(index);
+                    elements.lazySet(index, null);
+                    sequences.set(index, position + numSlots); // release the slot for the next round
+                    return request;
+                }
+                position = dequeuePosition.get();
+
+            } else if (diff < 0) {
+                // The slot is not published yet. The queue is empty.
+                return null;
+
+            } else {
+                // Another consumer took the slot
+                position = dequeuePosition.get();
+            }
+        }
+    }
+
+    /**
+     * Parks the current thread in the wait queue unless the condition is met after joining the queue.
+     * If the thread leaves without being woken up, a wake-up directed to it is passed on to another waiting thread.
+     *
+     * @return the result of the condition checked after joining the wait queue
+     */
+    private boolean await(Queue<Thread> waiters, Condition condition) {
+        Thread thread = Thread.currentThread();
+        waiters.offer(thread);
+
+        boolean met = closed || condition.check();
+        if (!met) {
+            LockSupport.parkNanos(this, MAX_PARK_NANOS);
+        }
+
+        if (!waiters.remove(thread)) {
+            // This thread was chosen by wakeUpOne. If it did not need the wake-up, pass it on.
+            if (met) {
+                wakeUpOne(waiters);
+            }
+        }
+
+        return met && !closed;
+    }
+
+    private static void wakeUpOne(Queue<Thread> waiters) {
+        Thread thread = waiters.poll();
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private static void wakeUpAll(Queue<Thread> waiters) {
+        for (Thread thread : waiters) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Condition {
+        boolean check();
+    }
+
+}
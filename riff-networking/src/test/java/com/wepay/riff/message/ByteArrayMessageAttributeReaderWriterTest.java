@@ -1,5 +1,6 @@
 package com.wepay.riff.message;
 
+import com.wepay.riff.network.MessageAttributeWriter;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import org.junit.Test;
@@ -12,6 +13,7 @@ import java.util.Random;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class ByteArrayMessageAttributeReaderWriterTest {
 
@@ -207,4 +209,111 @@ public class ByteArrayMessageAttributeReaderWriterTest {
         reader.ensureReadCompletely();
     }
 
+    @Test
+    public void testSameBytesAsByteBuf() {
+        Random rand = new Random();
+
+        byte[] byteArrayVal = new byte[rand.nextInt(1000)];
+        rand.nextBytes(byteArrayVal);
+        short[] shortArrayVal = {Short.MIN_VALUE, -1, 0, 1, Short.MAX_VALUE};
+        int[] intArrayVal = {Integer.MIN_VALUE, -1, 0, 1, Integer.MAX_VALUE};
+        ByteBuf byteBufVal = Unpooled.wrappedBuffer(byteArrayVal);
+
+        // Start with one byte to make the array grow many times
+        ByteArrayMessageAttributeWriter arrayWriter = new ByteArrayMessageAttributeWriter(1);
+        ByteBuf byteBuf = Unpooled.buffer(15000);
+        ByteBufMessageAttributeWriter byteBufWriter = new ByteBufMessageAttributeWriter(byteBuf);
+
+        for (MessageAttributeWriter writer : Arrays.asList(arrayWriter, byteBufWriter)) {
+            writer.writeBoolean(true);
+            writer.writeByte((byte) -1);
+            writer.writeByteArray(byteArrayVal);
+            writer.writeByteArray(null);
+            writer.writeByteBuf(byteBufVal);
+            writer.writeByteBuf(null);
+            writer.writeShort(Short.MIN_VALUE);
+            writer.writeShortArray(shortArrayVal);
+            writer.writeInt(Integer.MIN_VALUE);
+            writer.writeIntArray(intArrayVal);
+            writer.writeIntList(Arrays.asList(1, -1));
+            writer.writeLong(Long.MIN_VALUE);
+            writer.writeDouble(-0.5);
+            writer.writeString("\u00e9t\u00e9");
+            writer.writeLongArray(new long[] {Long.MIN_VALUE, -1L, 0L, 1L, Long.MAX_VALUE});
+            writer.writeDoubleArray(new double[] {-0.5, Double.MAX_VALUE});
+            writer.writeFloatArray(new float[] {-0.5f, Float.MAX_VALUE});
+            writer.writeBooleanArray(new boolean[] {true, false, true, true, false, false, false, false, true, true});
+            writer.writeLongArray(null);
+        }
+
+        assertEquals(byteBufWriter.bytesWritten(), arrayWriter.bytesWritten());
+        byte[] expected = new byte[byteBuf.readableBytes()];
+        byteBuf.readBytes(expected);
+        assertTrue(Arrays.equals(expected, arrayWriter.toByteArray()));
+
+        // The reader index of the buffer is not modified
+        assertEquals(byteArrayVal.length, byteBufVal.readableBytes());
+    }
+
+    @Test
+    public void testReset() {
+        ByteArrayMessageAttributeWriter writer = new ByteArrayMessageAttributeWriter();
+        writer.writeString("first message");
+        writer.writeLong(1L);
+
+        writer.reset();
+        assertEquals(0, writer.bytesWritten());
+        assertEquals(0, writer.toByteArray().length);
+
+        writer.writeInt(2);
+        writer.writeString("second");
+        assertEquals(4 + 4 + 6, writer.bytesWritten());
+
+        ByteArrayMessageAttributeReader reader = new ByteArrayMessageAttributeReader(writer.toByteArray());
+        assertEquals(2, reader.readInt());
+        assertEquals("second", reader.readString());
+        reader.ensureReadCompletely();
+    }
+
+    @Test
+    public void testPrimitiveArrays() {
+        long[] longArrayVal = {Long.MIN_VALUE, -1L, 0L, 1L, Long.MAX_VALUE};
+        double[] doubleArrayVal = {-0.5, Double.MAX_VALUE, Double.NaN};
+        float[] floatArrayVal = {-0.5f, Float.MAX_VALUE, Float.NaN};
+        boolean[] booleanArrayVal = {true, false, true, true, false, false, false, false, true, true};
+
+        ByteArrayMessageAttributeWriter writer = new ByteArrayMessageAttributeWriter();
+        writer.writeLongArray(longArrayVal);
+        writer.writeLongArray(null);
+        writer.writeDoubleArray(doubleArrayVal);
+        writer.writeDoubleArray(null);
+        writer.writeFloatArray(floatArrayVal);
+        writer.writeFloatArray(null);
+        writer.writeBooleanArray(booleanArrayVal);
+        writer.writeBooleanArray(null);
+
+        ByteArrayMessageAttributeReader reader = new ByteArrayMessageAttributeReader(writer.toByteArray());
+        assertTrue(Arrays.equals(longArrayVal, reader.readLongArray()));
+        assertNull(reader.readLongArray());
+        assertTrue(Arrays.equals(doubleArrayVal, reader.readDoubleArray()));
+        assertNull(reader.readDoubleArray());
+        assertTrue(Arrays.equals(floatArrayVal, reader.readFloatArray()));
+        assertNull(reader.readFloatArray());
+        assertTrue(Arrays.equals(booleanArrayVal, reader.readBooleanArray()));
+        assertNull(reader.readBooleanArray());
+        reader.ensureReadCompletely();
+
+        // The array length is larger than the remaining data
+        writer.reset();
+        writer.writeInt(2);
+        writer.writeLong(1L);
+        reader = new ByteArrayMessageAttributeReader(writer.toByteArray());
+        try {
+            reader.readLongArray();
+            fail();
+        } catch (IllegalStateException ex) {
+            // OK
+        }
+    }
+
 }
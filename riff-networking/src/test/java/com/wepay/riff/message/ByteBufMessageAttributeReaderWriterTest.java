@@ -1,6 +1,10 @@
 package com.wepay.riff.message;
 
+import com.wepay.riff.network.MessageAttributeReader;
+import com.wepay.riff.network.MessageAttributeWriter;
+import com.wepay.riff.util.IntArrayList;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.Unpooled;
 import org.junit.Test;
 
@@ -10,8 +14,10 @@ import java.util.List;
 import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class ByteBufMessageAttributeReaderWriterTest {
 
@@ -113,6 +119,69 @@ public class ByteBufMessageAttributeReaderWriterTest {
         reader.ensureReadCompletely();
     }
 
+    @Test
+    public void testReadByteBufSlice() {
+        Random rand = new Random();
+
+        ByteBuf byteBuf = Unpooled.buffer(1000);
+        ByteBufMessageAttributeWriter writer = new ByteBufMessageAttributeWriter(byteBuf);
+
+        byte[] byteArrayVal = new byte[rand.nextInt(500)];
+        rand.nextBytes(byteArrayVal);
+
+        ByteBuf byteBufVal = Unpooled.wrappedBuffer(byteArrayVal);
+
+        writer.writeByteArray(byteArrayVal);
+        writer.writeByteBuf(byteBufVal);
+        writer.writeByteBuf(null);
+
+        // The source buffer is not consumed
+        assertEquals(byteArrayVal.length, byteBufVal.readableBytes());
+
+        ByteBufMessageAttributeReader reader = new ByteBufMessageAttributeReader(byteBuf, writer.bytesWritten());
+
+        ByteBuf slice = reader.readByteBufSlice();
+        assertNotNull(slice);
+        assertEquals(2, byteBuf.refCnt());
+        assertEquals(byteBufVal, slice);
+
+        // The slice shares the memory with the original buffer
+        byteBuf.setByte(4, byteBuf.getByte(4) + 1);
+        assertEquals(byteBuf.getByte(4), slice.getByte(0));
+
+        assertTrue(Arrays.equals(byteArrayVal, reader.readByteArray()));
+        assertNull(reader.readByteBufSlice());
+
+        reader.ensureReadCompletely();
+
+        slice.release();
+        assertEquals(1, byteBuf.refCnt());
+    }
+
+    @Test
+    public void testDefaultByteBufMethods() {
+        Random rand = new Random();
+
+        byte[] byteArrayVal = new byte[rand.nextInt(500)];
+        rand.nextBytes(byteArrayVal);
+        ByteBuf byteBufVal = Unpooled.wrappedBuffer(byteArrayVal);
+
+        // The default methods write the same format as ByteBufMessageAttributeWriter
+        ByteBuf byteBuf = Unpooled.buffer(1000);
+        MessageAttributeWriter writer = new ScalarOnlyWriter(new ByteBufMessageAttributeWriter(byteBuf));
+        writer.writeByteBuf(byteBufVal);
+        writer.writeByteBuf(null);
+        assertEquals(byteArrayVal.length, byteBufVal.readableBytes());
+
+        MessageAttributeReader reader =
+            new ScalarOnlyReader(new ByteBufMessageAttributeReader(byteBuf, writer.bytesWritten()));
+        ByteBuf slice = reader.readByteBufSlice();
+        assertEquals(byteBufVal, slice);
+        assertNull(reader.readByteBufSlice());
+        reader.ensureReadCompletely();
+        slice.release();
+    }
+
     @Test
     public void testReadFromByteArray() {
         Random rand = new Random();
@@ -209,4 +278,307 @@ public class ByteBufMessageAttributeReaderWriterTest {
         reader.ensureReadCompletely();
     }
 
+    @Test
+    public void testReset() {
+        ByteBufMessageAttributeWriter writer = new ByteBufMessageAttributeWriter(Unpooled.EMPTY_BUFFER);
+        ByteBufMessageAttributeReader reader = new ByteBufMessageAttributeReader(Unpooled.EMPTY_BUFFER, 0);
+
+        // The same instances are used for every frame
+        for (int i = 0; i < 3; i++) {
+            ByteBuf byteBuf = Unpooled.buffer(100);
+            writer.reset(byteBuf);
+            writer.writeInt(i);
+            writer.writeString("frame-" + i);
+            assertEquals(4 + 4 + 7, writer.bytesWritten());
+
+            reader.reset(byteBuf, writer.bytesWritten());
+            assertEquals(i, reader.readInt());
+            assertEquals("frame-" + i, reader.readString());
+            reader.ensureReadCompletely();
+        }
+
+        // A reset reader only reads the given length
+        ByteBuf byteBuf = Unpooled.buffer(100);
+        writer.reset(byteBuf);
+        writer.writeLong(1L);
+        reader.reset(byteBuf, 4);
+        try {
+            reader.readLong();
+            fail();
+        } catch (IllegalStateException ex) {
+            // OK
+        }
+    }
+
+    @Test
+    public void testPrimitiveArrays() {
+        Random rand = new Random();
+        // Long enough to be copied in bulk
+        int[] intArrayVal = new int[300 + rand.nextInt(1000)];
+        long[] longArrayVal = new long[300 + rand.nextInt(1000)];
+        double[] doubleArrayVal = new double[300 + rand.nextInt(1000)];
+        float[] floatArrayVal = new float[300 + rand.nextInt(1000)];
+        // Not a multiple of eight, so the last byte of the bitset is partially used
+        boolean[] booleanArrayVal = new boolean[rand.nextInt(1000) * 8 + 3];
+        IntArrayList intListVal = new IntArrayList();
+        for (int i = 0; i < intArrayVal.length; i++) {
+            intArrayVal[i] = rand.nextInt();
+            intListVal.addInt(rand.nextInt());
+        }
+        for (int i = 0; i < longArrayVal.length; i++) {
+            longArrayVal[i] = rand.nextLong();
+        }
+        for (int i = 0; i < doubleArrayVal.length; i++) {
+            doubleArrayVal[i] = rand.nextDouble();
+        }
+        for (int i = 0; i < floatArrayVal.length; i++) {
+            floatArrayVal[i] = rand.nextFloat();
+        }
+        for (int i = 0; i < booleanArrayVal.length; i++) {
+            booleanArrayVal[i] = rand.nextBoolean();
+        }
+
+        // Large arrays in heap and direct buffers are copied in bulk, and those in composite buffers element by element
+        ByteBuf[] byteBufs = {
+            Unpooled.buffer(100),
+            Unpooled.directBuffer(100),
+            PooledByteBufAllocator.DEFAULT.directBuffer(100),
+            Unpooled.wrappedBuffer(Unpooled.directBuffer(2).writeShort(0), Unpooled.directBuffer(100000)).writerIndex(2)
+        };
+        for (ByteBuf byteBuf : byteBufs) {
+            int start = byteBuf.writerIndex();
+            ByteBufMessageAttributeWriter writer = new ByteBufMessageAttributeWriter(byteBuf);
+            writer.writeByte((byte) 1);
+            writer.writeIntArray(intArrayVal);
+            writer.writeIntList(intListVal);
+            writer.writeLongArray(longArrayVal);
+            writer.writeLongArray(null);
+            writer.writeDoubleArray(doubleArrayVal);
+            writer.writeDoubleArray(null);
+            writer.writeFloatArray(floatArrayVal);
+            writer.writeFloatArray(null);
+            writer.writeBooleanArray(booleanArrayVal);
+            writer.writeBooleanArray(null);
+            writer.writeBooleanArray(new boolean[0]);
+            assertEquals(writer.bytesWritten(), byteBuf.readableBytes() - start);
+
+            byteBuf.readerIndex(start);
+            ByteBufMessageAttributeReader reader = new ByteBufMessageAttributeReader(byteBuf, writer.bytesWritten());
+            assertEquals(1, reader.readByte());
+            assertTrue(Arrays.equals(intArrayVal, reader.readIntArray()));
+            List<Integer> intList = reader.readIntList();
+            assertTrue(intList instanceof IntArrayList);
+            assertEquals(intListVal, intList);
+            assertTrue(Arrays.equals(longArrayVal, reader.readLongArray()));
+            assertNull(reader.readLongArray());
+            assertTrue(Arrays.equals(doubleArrayVal, reader.readDoubleArray()));
+            assertNull(reader.readDoubleArray());
+            assertTrue(Arrays.equals(floatArrayVal, reader.readFloatArray()));
+            assertNull(reader.readFloatArray());
+            assertTrue(Arrays.equals(booleanArrayVal, reader.readBooleanArray()));
+            assertNull(reader.readBooleanArray());
+            assertEquals(0, reader.readBooleanArray().length);
+            reader.ensureReadCompletely();
+
+            byteBuf.release();
+        }
+    }
+
+    @Test
+    public void testDefaultPrimitiveArrays() {
+        Random rand = new Random();
+        long[] longArrayVal = new long[rand.nextInt(100)];
+        double[] doubleArrayVal = new double[rand.nextInt(100)];
+        float[] floatArrayVal = new float[rand.nextInt(100)];
+        boolean[] booleanArrayVal = new boolean[rand.nextInt(100) * 8 + 3];
+        for (int i = 0; i < longArrayVal.length; i++) {
+            longArrayVal[i] = rand.nextLong();
+        }
+        for (int i = 0; i < doubleArrayVal.length; i++) {
+            doubleArrayVal[i] = rand.nextDouble();
+        }
+        for (int i = 0; i < floatArrayVal.length; i++) {
+            floatArrayVal[i] = rand.nextFloat();
+        }
+        for (int i = 0; i < booleanArrayVal.length; i++) {
+            booleanArrayVal[i] = rand.nextBoolean();
+        }
+
+        // The default methods and ByteBufMessageAttributeWriter write the same format
+        ByteBuf[] byteBufs = {Unpooled.buffer(100), Unpooled.buffer(100)};
+        MessageAttributeWriter[] writers = {
+            new ScalarOnlyWriter(new ByteBufMessageAttributeWriter(byteBufs[0])),
+            new ByteBufMessageAttributeWriter(byteBufs[1])
+        };
+        for (MessageAttributeWriter writer : writers) {
+            writer.writeLongArray(longArrayVal);
+            writer.writeLongArray(null);
+            writer.writeDoubleArray(doubleArrayVal);
+            writer.writeDoubleArray(null);
+            writer.writeFloatArray(floatArrayVal);
+            writer.writeFloatArray(null);
+            writer.writeBooleanArray(booleanArrayVal);
+            writer.writeBooleanArray(null);
+            writer.writeBooleanArray(new boolean[0]);
+        }
+        assertEquals(byteBufs[1], byteBufs[0]);
+        assertEquals(writers[1].bytesWritten(), writers[0].bytesWritten());
+
+        // Read what ByteBufMessageAttributeWriter wrote with the default methods
+        MessageAttributeReader reader =
+            new ScalarOnlyReader(new ByteBufMessageAttributeReader(byteBufs[1], writers[1].bytesWritten()));
+        assertTrue(Arrays.equals(longArrayVal, reader.readLongArray()));
+        assertNull(reader.readLongArray());
+        assertTrue(Arrays.equals(doubleArrayVal, reader.readDoubleArray()));
+        assertNull(reader.readDoubleArray());
+        assertTrue(Arrays.equals(floatArrayVal, reader.readFloatArray()));
+        assertNull(reader.readFloatArray());
+        assertTrue(Arrays.equals(booleanArrayVal, reader.readBooleanArray()));
+        assertNull(reader.readBooleanArray());
+        assertEquals(0, reader.readBooleanArray().length);
+        reader.ensureReadCompletely();
+    }
+
+    @Test
+    public void testCorruptedArrayLength() {
+        ByteBuf byteBuf = Unpooled.buffer(100);
+        ByteBufMessageAttributeWriter writer = new ByteBufMessageAttributeWriter(byteBuf);
+        // The length overflows if it is multiplied by the element size
+        writer.writeInt(Integer.MAX_VALUE / 4 + 2);
+        writer.writeLong(1L);
+
+        ByteBufMessageAttributeReader reader = new ByteBufMessageAttributeReader(byteBuf, writer.bytesWritten());
+        try {
+            reader.readLongArray();
+            fail();
+        } catch (IllegalStateException ex) {
+            // OK
+        }
+
+        // The rest of the message is skipped
+        assertEquals(0, byteBuf.readableBytes());
+    }
+
+    /**
+     * A writer which implements only the abstract methods, and uses the default implementations of the others.
+     */
+    private static class ScalarOnlyWriter extends MessageAttributeWriter {
+
+        private final MessageAttributeWriter writer;
+
+        ScalarOnlyWriter(MessageAttributeWriter writer) {
+            this.writer = writer;
+        }
+
+        public void writeByte(byte b) {
+            writer.writeByte(b);
+        }
+
+        public void writeShort(short s) {
+            writer.writeShort(s);
+        }
+
+        public void writeInt(int v) {
+            writer.writeInt(v);
+        }
+
+        public void writeLong(long v) {
+            writer.writeLong(v);
+        }
+
+        public void writeDouble(double v) {
+            writer.writeDouble(v);
+        }
+
+        public void writeByteArray(byte[] array) {
+            writer.writeByteArray(array);
+        }
+
+        public void writeShortArray(short[] array) {
+            writer.writeShortArray(array);
+        }
+
+        public void writeIntArray(int[] array) {
+            writer.writeIntArray(array);
+        }
+
+        public void writeIntList(List<Integer> list) {
+            writer.writeIntList(list);
+        }
+
+        public void writeBoolean(boolean b) {
+            writer.writeBoolean(b);
+        }
+
+        public void writeString(String text) {
+            writer.writeString(text);
+        }
+
+        public int bytesWritten() {
+            return writer.bytesWritten();
+        }
+
+    }
+
+    /**
+     * A reader which implements only the abstract methods, and uses the default implementations of the others.
+     */
+    private static class ScalarOnlyReader extends MessageAttributeReader {
+
+        private final MessageAttributeReader reader;
+
+        ScalarOnlyReader(MessageAttributeReader reader) {
+            this.reader = reader;
+        }
+
+        public byte readByte() {
+            return reader.readByte();
+        }
+
+        public short readShort() {
+            return reader.readShort();
+        }
+
+        public int readInt() {
+            return reader.readInt();
+        }
+
+        public long readLong() {
+            return reader.readLong();
+        }
+
+        public double readDouble() {
+            return reader.readDouble();
+        }
+
+        public byte[] readByteArray() {
+            return reader.readByteArray();
+        }
+
+        public short[] readShortArray() {
+            return reader.readShortArray();
+        }
+
+        public int[] readIntArray() {
+            return reader.readIntArray();
+        }
+
+        public List<Integer> readIntList() {
+            return reader.readIntList();
+        }
+
+        public boolean readBoolean() {
+            return reader.readBoolean();
+        }
+
+        public String readString() {
+            return reader.readString();
+        }
+
+        public void ensureReadCompletely() {
+            reader.ensureReadCompletely();
+        }
+
+    }
+
 }
@@ -0,0 +1,268 @@
+package com.wepay.riff.message;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CompactByteBufMessageAttributeReaderWriterTest {
+
+    @Test
+    public void testReadWrite() {
+        Random rand = new Random();
+
+        ByteBuf byteBuf = Unpooled.buffer(15000);
+        CompactByteBufMessageAttributeWriter writer = new CompactByteBufMessageAttributeWriter(byteBuf);
+
+        boolean booleanVal = rand.nextBoolean();
+
+        byte byteVal = (byte) rand.nextInt();
+
+        byte[] byteArrayVal = new byte[rand.nextInt(1000)];
+        rand.nextBytes(byteArrayVal);
+
+        short shortVal = (short) rand.nextInt();
+
+        short[] shortArrayVal = new short[rand.nextInt(1000)];
+        for (int i = 0; i < shortArrayVal.length; i++) {
+            shortArrayVal[i] = (short) rand.nextInt();
+        }
+
+        int intVal = rand.nextInt();
+
+        int[] intArrayVal = new int[rand.nextInt(1000)];
+        for (int i = 0; i < intArrayVal.length; i++) {
+            intArrayVal[i] = rand.nextInt() >> rand.nextInt(32);
+        }
+
+        int size = rand.nextInt(1000);
+        List<Integer> intListVal = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            intListVal.add(rand.nextInt() >> rand.nextInt(32));
+        }
+
+        long longVal = rand.nextLong();
+
+        double doubleVal = rand.nextDouble();
+
+        StringBuilder sb = new StringBuilder();
+        int count = rand.nextInt(1000);
+        for (int i = 0; i < count; i++) {
+            sb.append(Integer.toHexString(rand.nextInt(16)));
+        }
+        String stringVal = sb.toString();
+
+        writer.writeBoolean(booleanVal);
+
+        writer.writeByte(byteVal);
+        writer.writeByteArray(byteArrayVal);
+        writer.writeByteArray(null);
+
+        writer.writeShort(shortVal);
+        writer.writeShortArray(shortArrayVal);
+        writer.writeShortArray(null);
+
+        writer.writeInt(intVal);
+        writer.writeIntArray(intArrayVal);
+        writer.writeIntArray(null);
+        writer.writeIntList(intListVal);
+        writer.writeIntList(null);
+
+        writer.writeLong(longVal);
+
+        writer.writeDouble(doubleVal);
+
+        writer.writeString(stringVal);
+        writer.writeString(null);
+
+        assertEquals(byteBuf.readableBytes(), writer.bytesWritten());
+
+        CompactByteBufMessageAttributeReader reader =
+            new CompactByteBufMessageAttributeReader(byteBuf, writer.bytesWritten());
+
+        assertEquals(booleanVal, reader.readBoolean());
+
+        assertEquals(byteVal, reader.readByte());
+        assertTrue(Arrays.equals(byteArrayVal, reader.readByteArray()));
+        assertNull(reader.readByteArray());
+
+        assertEquals(shortVal, reader.readShort());
+        assertTrue(Arrays.equals(shortArrayVal, reader.readShortArray()));
+        assertNull(reader.readShortArray());
+
+        assertEquals(intVal, reader.readInt());
+        assertTrue(Arrays.equals(intArrayVal, reader.readIntArray()));
+        assertNull(reader.readIntArray());
+        assertTrue(intListVal.equals(reader.readIntList()));
+        assertNull(reader.readIntList());
+
+        assertEquals(longVal, reader.readLong());
+
+        assertTrue(Math.abs(doubleVal - reader.readDouble()) < Double.MIN_VALUE);
+
+        assertEquals(stringVal, reader.readString());
+        assertNull(reader.readString());
+
+        reader.ensureReadCompletely();
+    }
+
+    @Test
+    public void testVarintBoundaries() {
+        int[] intVals = {0, 1, -1, 63, -64, 64, -65, 8191, 8192, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        long[] longVals = {0L, 1L, -1L, 63L, -64L, 64L, Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+
+        ByteBuf byteBuf = Unpooled.buffer(1000);
+        CompactByteBufMessageAttributeWriter writer = new CompactByteBufMessageAttributeWriter(byteBuf);
+
+        for (int v : intVals) {
+            writer.writeInt(v);
+        }
+        for (long v : longVals) {
+            writer.writeLong(v);
+        }
+
+        CompactByteBufMessageAttributeReader reader =
+            new CompactByteBufMessageAttributeReader(byteBuf, writer.bytesWritten());
+
+        for (int v : intVals) {
+            assertEquals(v, reader.readInt());
+        }
+        for (long v : longVals) {
+            assertEquals(v, reader.readLong());
+        }
+
+        reader.ensureReadCompletely();
+    }
+
+    @Test
+    public void testEncodedSize() {
+        ByteBuf byteBuf = Unpooled.buffer(1000);
+
+        assertEquals(1, bytesWritten(byteBuf, w -> w.writeInt(0)));
+        assertEquals(1, bytesWritten(byteBuf, w -> w.writeInt(-1)));
+        assertEquals(1, bytesWritten(byteBuf, w -> w.writeInt(63)));
+        assertEquals(2, bytesWritten(byteBuf, w -> w.writeInt(64)));
+        assertEquals(5, bytesWritten(byteBuf, w -> w.writeInt(Integer.MIN_VALUE)));
+        assertEquals(1, bytesWritten(byteBuf, w -> w.writeLong(-1L)));
+        assertEquals(10, bytesWritten(byteBuf, w -> w.writeLong(Long.MIN_VALUE)));
+
+        // A null array takes one byte, and the length of a short array takes one byte
+        assertEquals(1, bytesWritten(byteBuf, w -> w.writeByteArray(null)));
+        assertEquals(4, bytesWritten(byteBuf, w -> w.writeByteArray(new byte[3])));
+        assertEquals(4, bytesWritten(byteBuf, w -> w.writeIntArray(new int[] {1, 2, 3})));
+    }
+
+    @Test
+    public void testReadByteBufSlice() {
+        Random rand = new Random();
+
+        ByteBuf byteBuf = Unpooled.buffer(1000);
+        CompactByteBufMessageAttributeWriter writer = new CompactByteBufMessageAttributeWriter(byteBuf);
+
+        byte[] byteArrayVal = new byte[rand.nextInt(100)];
+        rand.nextBytes(byteArrayVal);
+
+        writer.writeByteBuf(Unpooled.wrappedBuffer(byteArrayVal));
+        writer.writeByteBuf(null);
+
+        CompactByteBufMessageAttributeReader reader =
+            new CompactByteBufMessageAttributeReader(byteBuf, writer.bytesWritten());
+
+        ByteBuf slice = reader.readByteBufSlice();
+        assertNotNull(slice);
+        assertEquals(Unpooled.wrappedBuffer(byteArrayVal), slice);
+        assertNull(reader.readByteBufSlice());
+
+        reader.ensureReadCompletely();
+
+        slice.release();
+        assertEquals(1, byteBuf.refCnt());
+    }
+
+    @Test
+    public void testCorruptedVarint() {
+        // Six bytes with the continuation bit set is longer than any int varint
+        ByteBuf byteBuf = Unpooled.wrappedBuffer(new byte[] {-1, -1, -1, -1, -1, -1, 0});
+        CompactByteBufMessageAttributeReader reader = new CompactByteBufMessageAttributeReader(byteBuf, 7);
+
+        try {
+            reader.readInt();
+            fail();
+        } catch (IllegalStateException ex) {
+            // OK
+        }
+        assertEquals(0, byteBuf.readableBytes());
+
+        // The array length is larger than the remaining data
+        byteBuf = Unpooled.buffer(10);
+        CompactByteBufMessageAttributeWriter writer = new CompactByteBufMessageAttributeWriter(byteBuf);
+        writer.writeInt(100);
+        byteBuf.setByte(0, 100);
+        reader = new CompactByteBufMessageAttributeReader(byteBuf, writer.bytesWritten());
+
+        try {
+            reader.readIntArray();
+            fail();
+        } catch (IllegalStateException ex) {
+            // OK
+        }
+    }
+
+    private int bytesWritten(ByteBuf byteBuf, Consumer<CompactByteBufMessageAttributeWriter> write) {
+        byteBuf.clear();
+        CompactByteBufMessageAttributeWriter writer = new CompactByteBufMessageAttributeWriter(byteBuf);
+        write.accept(writer);
+        assertEquals(byteBuf.readableBytes(), writer.bytesWritten());
+        return writer.bytesWritten();
+    }
+
+    @Test
+    public void testPrimitiveArrays() {
+        long[] longArrayVal = {0L, 1L, -1L, 1000L, Long.MAX_VALUE, Long.MIN_VALUE};
+        double[] doubleArrayVal = {0.0, -1.5, Double.MAX_VALUE, Double.NaN, Double.NEGATIVE_INFINITY};
+        float[] floatArrayVal = {0.0f, -1.5f, Float.MIN_VALUE, Float.NaN};
+        boolean[] booleanArrayVal = {true, false, false, true, true, true, false, true, true};
+
+        for (ByteBuf byteBuf : new ByteBuf[] {Unpooled.buffer(100), Unpooled.directBuffer(100)}) {
+            CompactByteBufMessageAttributeWriter writer = new CompactByteBufMessageAttributeWriter(byteBuf);
+            writer.writeLongArray(longArrayVal);
+            writer.writeLongArray(null);
+            writer.writeDoubleArray(doubleArrayVal);
+            writer.writeDoubleArray(null);
+            writer.writeFloatArray(floatArrayVal);
+            writer.writeFloatArray(null);
+            writer.writeBooleanArray(booleanArrayVal);
+            writer.writeBooleanArray(null);
+            assertEquals(writer.bytesWritten(), byteBuf.readableBytes());
+            // Small longs are varints, and nine booleans take two bytes
+            assertEquals(1 + 1 + 1 + 1 + 2 + 10 + 10 + 1 + 1 + 5 * 8 + 1 + 1 + 4 * 4 + 1 + 1 + 2 + 1,
+                writer.bytesWritten());
+
+            CompactByteBufMessageAttributeReader reader =
+                new CompactByteBufMessageAttributeReader(byteBuf, writer.bytesWritten());
+            assertTrue(Arrays.equals(longArrayVal, reader.readLongArray()));
+            assertNull(reader.readLongArray());
+            assertTrue(Arrays.equals(doubleArrayVal, reader.readDoubleArray()));
+            assertNull(reader.readDoubleArray());
+            assertTrue(Arrays.equals(floatArrayVal, reader.readFloatArray()));
+            assertNull(reader.readFloatArray());
+            assertTrue(Arrays.equals(booleanArrayVal, reader.readBooleanArray()));
+            assertNull(reader.readBooleanArray());
+            reader.ensureReadCompletely();
+
+            byteBuf.release();
+        }
+    }
+
+}
@@ -0,0 +1,228 @@
+package com.wepay.riff.message;
+
+import com.wepay.riff.network.MessageAttributeReader;
+import com.wepay.riff.network.MessageAttributeWriter;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DictionaryMessageAttributeReaderWriterTest {
+
+    private static final String[] TOPICS = {"topic-a", "topic-b", "tenant-1"};
+
+    @Test
+    public void testRepeatedStrings() {
+        testRepeatedStrings(ByteBufMessageAttributeWriter::new, false);
+        testRepeatedStrings(CompactByteBufMessageAttributeWriter::new, true);
+    }
+
+    private void testRepeatedStrings(Function<ByteBuf, MessageAttributeWriter> newWriter, boolean compact) {
+        DictionaryMessageAttributeWriter.Dictionary writerDictionary = new DictionaryMessageAttributeWriter.Dictionary();
+        DictionaryMessageAttributeReader.Dictionary readerDictionary = new DictionaryMessageAttributeReader.Dictionary();
+
+        String[] previous = new String[TOPICS.length];
+        int firstFrameSize = 0;
+        int idFrameSize = 0;
+
+        // Each frame has its own writer and reader, the dictionaries are shared like on a connection
+        for (int frame = 0; frame < 10; frame++) {
+            ByteBuf byteBuf = Unpooled.buffer(1000);
+            MessageAttributeWriter writer = new DictionaryMessageAttributeWriter(newWriter.apply(byteBuf), writerDictionary);
+
+            writer.writeInt(frame);
+            for (String topic : TOPICS) {
+                // A new instance each time, like a string decoded from somewhere else
+                writer.writeString(new String(topic));
+            }
+            writer.writeString(null);
+            writer.writeByteArray(new byte[] {1, 2, 3});
+
+            // Strings are added to the dictionaries when they are seen the second time
+            if (frame == 0) {
+                firstFrameSize = writer.bytesWritten();
+            } else if (frame == 1) {
+                assertEquals(firstFrameSize, writer.bytesWritten());
+            } else if (frame == 2) {
+                idFrameSize = writer.bytesWritten();
+                assertTrue(idFrameSize < firstFrameSize);
+            } else {
+                assertEquals(idFrameSize, writer.bytesWritten());
+            }
+
+            MessageAttributeReader reader = new DictionaryMessageAttributeReader(
+                compact
+                    ? new CompactByteBufMessageAttributeReader(byteBuf, writer.bytesWritten())
+                    : new ByteBufMessageAttributeReader(byteBuf, writer.bytesWritten()),
+                readerDictionary
+            );
+
+            assertEquals(frame, reader.readInt());
+            for (int i = 0; i < TOPICS.length; i++) {
+                String topic = reader.readString();
+                assertEquals(TOPICS[i], topic);
+                if (frame > 1) {
+                    // The cached instance is returned
+                    assertSame(previous[i], topic);
+                }
+                previous[i] = topic;
+            }
+            assertNull(reader.readString());
+            assertEquals(3, reader.readByteArray().length);
+            reader.ensureReadCompletely();
+        }
+
+        assertEquals(TOPICS.length, writerDictionary.size());
+        assertEquals(TOPICS.length, readerDictionary.size());
+    }
+
+    @Test
+    public void testTagSize() {
+        DictionaryMessageAttributeWriter.Dictionary writerDictionary = new DictionaryMessageAttributeWriter.Dictionary();
+        ByteBuf byteBuf = Unpooled.buffer(100000);
+        MessageAttributeWriter writer =
+            new DictionaryMessageAttributeWriter(new ByteBufMessageAttributeWriter(byteBuf), writerDictionary);
+
+        for (int i = 0; i < 200; i++) {
+            writer.writeString("s" + i);
+            writer.writeString("s" + i);
+        }
+
+        // A tag of an id takes one byte for the first 127 ids, and two bytes for the rest
+        for (int i = 0; i < 200; i++) {
+            int start = writer.bytesWritten();
+            writer.writeString("s" + i);
+            assertEquals(i < 127 ? 1 : 2, writer.bytesWritten() - start);
+        }
+
+        MessageAttributeReader reader = new DictionaryMessageAttributeReader(
+            new ByteBufMessageAttributeReader(byteBuf, writer.bytesWritten()),
+            new DictionaryMessageAttributeReader.Dictionary()
+        );
+        for (int i = 0; i < 200; i++) {
+            assertEquals("s" + i, reader.readString());
+            assertEquals("s" + i, reader.readString());
+        }
+        for (int i = 0; i < 200; i++) {
+            assertEquals("s" + i, reader.readString());
+        }
+        reader.ensureReadCompletely();
+    }
+
+    @Test
+    public void testOneOffStrings() {
+        DictionaryMessageAttributeWriter.Dictionary writerDictionary = new DictionaryMessageAttributeWriter.Dictionary();
+        DictionaryMessageAttributeReader.Dictionary readerDictionary = new DictionaryMessageAttributeReader.Dictionary();
+
+        int numStrings = DictionaryMessageAttributeWriter.MAX_ENTRIES * 4;
+
+        ByteBuf byteBuf = Unpooled.buffer(100000);
+        MessageAttributeWriter writer =
+            new DictionaryMessageAttributeWriter(new CompactByteBufMessageAttributeWriter(byteBuf), writerDictionary);
+
+        // Strings seen once do not fill the dictionary, and the oldest candidates are forgotten
+        for (int i = 0; i < numStrings; i++) {
+            writer.writeString("once" + i);
+            writer.writeString(TOPICS[i % TOPICS.length]);
+        }
+        writer.writeString("once0");
+        writer.writeString("once" + (numStrings - 1));
+
+        assertEquals(TOPICS.length + 1, writerDictionary.size());
+
+        MessageAttributeReader reader = new DictionaryMessageAttributeReader(
+            new CompactByteBufMessageAttributeReader(byteBuf, writer.bytesWritten()), readerDictionary
+        );
+        for (int i = 0; i < numStrings; i++) {
+            assertEquals("once" + i, reader.readString());
+            assertEquals(TOPICS[i % TOPICS.length], reader.readString());
+        }
+        assertEquals("once0", reader.readString());
+        assertEquals("once" + (numStrings - 1), reader.readString());
+        reader.ensureReadCompletely();
+
+        assertEquals(TOPICS.length + 1, readerDictionary.size());
+    }
+
+    @Test
+    public void testLimits() {
+        DictionaryMessageAttributeWriter.Dictionary writerDictionary = new DictionaryMessageAttributeWriter.Dictionary();
+        DictionaryMessageAttributeReader.Dictionary readerDictionary = new DictionaryMessageAttributeReader.Dictionary();
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i <= DictionaryMessageAttributeWriter.MAX_STRING_LENGTH; i++) {
+            sb.append('x');
+        }
+        String longText = sb.toString();
+
+        int numStrings = DictionaryMessageAttributeWriter.MAX_ENTRIES + 10;
+
+        ByteBuf byteBuf = Unpooled.buffer(100000);
+        MessageAttributeWriter writer =
+            new DictionaryMessageAttributeWriter(new CompactByteBufMessageAttributeWriter(byteBuf), writerDictionary);
+        writer.writeString(longText);
+        writer.writeString(longText);
+        writer.writeString(longText);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < numStrings; i++) {
+                writer.writeString("s" + i);
+                writer.writeString("s" + i);
+            }
+        }
+
+        // Long strings are not added, and strings are not added to the full dictionary
+        assertEquals(DictionaryMessageAttributeWriter.MAX_ENTRIES, writerDictionary.size());
+
+        MessageAttributeReader reader = new DictionaryMessageAttributeReader(
+            new CompactByteBufMessageAttributeReader(byteBuf, writer.bytesWritten()), readerDictionary
+        );
+        String first = reader.readString();
+        String second = reader.readString();
+        String third = reader.readString();
+        assertEquals(longText, first);
+        assertEquals(longText, second);
+        assertEquals(longText, third);
+        assertNotSame(second, third);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < numStrings; i++) {
+                assertEquals("s" + i, reader.readString());
+                assertEquals("s" + i, reader.readString());
+            }
+        }
+        reader.ensureReadCompletely();
+
+        assertEquals(DictionaryMessageAttributeWriter.MAX_ENTRIES, readerDictionary.size());
+    }
+
+    @Test
+    public void testUnknownId() {
+        ByteBuf byteBuf = Unpooled.buffer(100);
+        ByteBufMessageAttributeWriter writer = new ByteBufMessageAttributeWriter(byteBuf);
+        writer.writeByte((byte) 5);
+        writer.writeInt(0);
+
+        MessageAttributeReader reader = new DictionaryMessageAttributeReader(
+            new ByteBufMessageAttributeReader(byteBuf, writer.bytesWritten()),
+            new DictionaryMessageAttributeReader.Dictionary()
+        );
+
+        try {
+            reader.readString();
+            fail();
+        } catch (IllegalStateException ex) {
+            // OK
+        }
+
+        // The rest of the message is skipped
+        assertEquals(0, byteBuf.readableBytes());
+    }
+
+}
@@ -0,0 +1,79 @@
+package com.wepay.riff.network;
+
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveWriteBufferWaterMarkTest {
+
+    private static final int MIN_HIGH_WATER_MARK = 32 * 1024;
+    private static final int MAX_HIGH_WATER_MARK = 1024 * 1024;
+    private static final long RTT_MICROS = 1000L;
+
+    @Test
+    public void testAdapt() {
+        AdaptiveWriteBufferWaterMark adaptive =
+            new AdaptiveWriteBufferWaterMark(MIN_HIGH_WATER_MARK, MAX_HIGH_WATER_MARK, RTT_MICROS);
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.config().setWriteBufferWaterMark(adaptive.waterMark());
+
+        assertEquals(MIN_HIGH_WATER_MARK, channel.config().getWriteBufferWaterMark().high());
+        assertEquals(MIN_HIGH_WATER_MARK / 2, channel.config().getWriteBufferWaterMark().low());
+
+        // 16KB per 100us, bdp = 160KB
+        long expectedHighWaterMark = 2 * 160 * 1024;
+        int prev = MIN_HIGH_WATER_MARK;
+        for (int i = 0; i < 50; i++) {
+            drain(adaptive, channel, 16 * 1024, 100_000L);
+
+            int high = channel.config().getWriteBufferWaterMark().high();
+            assertTrue(high >= prev);
+            assertTrue(high <= expectedHighWaterMark);
+            prev = high;
+        }
+        assertTrue(prev > expectedHighWaterMark * 9 / 10);
+
+        // Slow drain, shrinks to the minimum
+        for (int i = 0; i < 50; i++) {
+            drain(adaptive, channel, 1, 1_000_000_000L);
+        }
+        assertEquals(MIN_HIGH_WATER_MARK, channel.config().getWriteBufferWaterMark().high());
+
+        // Very fast drain, grows up to the maximum
+        for (int i = 0; i < 100; i++) {
+            drain(adaptive, channel, 1024 * 1024, 1_000L);
+        }
+        assertEquals(MAX_HIGH_WATER_MARK, channel.config().getWriteBufferWaterMark().high());
+        assertEquals(MAX_HIGH_WATER_MARK / 2, channel.config().getWriteBufferWaterMark().low());
+
+        channel.close();
+    }
+
+    @Test
+    public void testNoChangeWhileWritable() {
+        AdaptiveWriteBufferWaterMark adaptive =
+            new AdaptiveWriteBufferWaterMark(MIN_HIGH_WATER_MARK, MAX_HIGH_WATER_MARK, RTT_MICROS);
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.config().setWriteBufferWaterMark(adaptive.waterMark());
+
+        // Writable without being unwritable first
+        adaptive.onWritabilityChanged(channel, true, 1_000L);
+        WriteBufferWaterMark waterMark = channel.config().getWriteBufferWaterMark();
+        assertEquals(MIN_HIGH_WATER_MARK, waterMark.high());
+
+        channel.close();
+    }
+
+    // Simulates the channel draining at the specified rate from the high water mark to the low water mark
+    private static void drain(AdaptiveWriteBufferWaterMark adaptive, EmbeddedChannel channel, long bytes, long nanos) {
+        WriteBufferWaterMark waterMark = channel.config().getWriteBufferWaterMark();
+        long elapsed = (waterMark.high() - waterMark.low()) * nanos / bytes;
+
+        adaptive.onWritabilityChanged(channel, false, 0L);
+        adaptive.onWritabilityChanged(channel, true, elapsed);
+    }
+
+}
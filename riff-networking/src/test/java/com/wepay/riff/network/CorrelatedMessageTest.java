@@ -0,0 +1,253 @@
+package com.wepay.riff.network;
+
+import com.wepay.zktools.util.Uninterruptibly;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.util.ReferenceCounted;
+import io.netty.util.ResourceLeakDetector;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CorrelatedMessageTest {
+
+    private static final int NUM_REQUESTS = 100;
+
+    @Test
+    public void testPayloadRelease() throws Exception {
+        ResourceLeakDetector.Level level = ResourceLeakDetector.getLevel();
+        ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.PARANOID);
+
+        SliceMessageCodec sliceCodec = new SliceMessageCodec();
+        Map<Short, MessageCodec> codecs = new HashMap<>();
+        codecs.put(sliceCodec.version(), sliceCodec);
+
+        MessageHandler clientHandler = new MessageHandler(codecs, "Hello from Client", null, 10, 20) {
+            @Override
+            protected void process(Message msg) {
+                // Do nothing
+            }
+        };
+        clientHandler.enableRequestTracking(1000L);
+
+        EventLoopGroup group = new DefaultEventLoopGroup(1);
+        try {
+            LocalAddress address = new LocalAddress(CorrelatedMessageTest.class.getSimpleName());
+            Channel server = new ServerBootstrap()
+                .group(group)
+                .channel(LocalServerChannel.class)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast("helloDecoder", new MessageDecoder(HelloCodec.INSTANCE));
+                        ch.pipeline().addLast("helloEncoder", new MessageEncoder(HelloCodec.INSTANCE));
+                        ch.pipeline().addLast(new ReplyingMessageHandler(codecs));
+                    }
+                })
+                .bind(address).sync().channel();
+
+            Channel client = new Bootstrap()
+                .group(group)
+                .channel(LocalChannel.class)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast("helloDecoder", new MessageDecoder(HelloCodec.INSTANCE));
+                        ch.pipeline().addLast("helloEncoder", new MessageEncoder(HelloCodec.INSTANCE));
+                        ch.pipeline().addLast(clientHandler);
+                    }
+                })
+                .connect(address).sync().channel();
+
+            while (clientHandler.getMessageCodec() == null) {
+                Uninterruptibly.sleep(10);
+            }
+
+            List<SliceMessage> requests = new ArrayList<>();
+            List<CompletableFuture<String>> futures = new ArrayList<>();
+            for (int i = 0; i < NUM_REQUESTS; i++) {
+                SliceMessage request = new SliceMessage(Unpooled.copiedBuffer("request" + i, StandardCharsets.UTF_8));
+                requests.add(request);
+                // The response payload is used in a dependent stage, before it is released
+                futures.add(clientHandler.sendRequest(request).thenApply(response -> ((SliceMessage) response).text()));
+            }
+            for (int i = 0; i < NUM_REQUESTS; i++) {
+                assertEquals("request" + i, futures.get(i).get(1000, TimeUnit.MILLISECONDS));
+            }
+
+            // Sent requests and responses are released when written, received requests after processed,
+            // and received responses after their futures complete
+            assertReleased(requests);
+            assertEquals(NUM_REQUESTS * 2, sliceCodec.decoded.size());
+            assertReleased(sliceCodec.decoded);
+
+            client.close().sync();
+            server.close().sync();
+
+        } finally {
+            group.shutdownGracefully().sync();
+            ResourceLeakDetector.setLevel(level);
+        }
+    }
+
+    private static void assertReleased(Iterable<SliceMessage> messages) {
+        long deadline = System.currentTimeMillis() + 1000L;
+        for (SliceMessage message : messages) {
+            while (!message.freed && System.currentTimeMillis() < deadline) {
+                Uninterruptibly.sleep(10);
+            }
+            assertTrue(message.freed);
+        }
+    }
+
+    private static class ReplyingMessageHandler extends MessageHandler {
+
+        ReplyingMessageHandler(Map<Short, MessageCodec> codecs) {
+            super(codecs, "Hello from Server", null, 10, 20);
+            enableCorrelation();
+        }
+
+        @Override
+        protected void process(Message msg) {
+            assertTrue(msg instanceof CorrelatedMessage);
+            CorrelatedMessage request = (CorrelatedMessage) msg;
+
+            // The payload is shared by the request and the response
+            sendMessage(request.reply(((SliceMessage) request.payload).retain()), true);
+        }
+
+    }
+
+    /**
+     * A message holding a slice of a received frame.
+     */
+    private static class SliceMessage extends Message implements ReferenceCounted {
+
+        private static final byte MESSAGE_TYPE = 20;
+
+        private final ByteBuf buf;
+        // A released pooled buffer may be reused, so the reference count is not read after it goes to zero
+        private volatile boolean freed = false;
+
+        SliceMessage(ByteBuf buf) {
+            this.buf = buf;
+        }
+
+        String text() {
+            return buf.toString(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public byte type() {
+            return MESSAGE_TYPE;
+        }
+
+        @Override
+        public int refCnt() {
+            return buf.refCnt();
+        }
+
+        @Override
+        public SliceMessage retain() {
+            buf.retain();
+            return this;
+        }
+
+        @Override
+        public SliceMessage retain(int increment) {
+            buf.retain(increment);
+            return this;
+        }
+
+        @Override
+        public SliceMessage touch() {
+            buf.touch();
+            return this;
+        }
+
+        @Override
+        public SliceMessage touch(Object hint) {
+            buf.touch(hint);
+            return this;
+        }
+
+        @Override
+        public boolean release() {
+            return freed(buf.release());
+        }
+
+        @Override
+        public boolean release(int decrement) {
+            return freed(buf.release(decrement));
+        }
+
+        private boolean freed(boolean deallocated) {
+            if (deallocated) {
+                freed = true;
+            }
+            return deallocated;
+        }
+
+    }
+
+    private static class SliceMessageCodec implements MessageCodec {
+
+        // Received messages
+        private final Queue<SliceMessage> decoded = new ConcurrentLinkedQueue<>();
+
+        @Override
+        public byte magicByte() {
+            return 'S';
+        }
+
+        @Override
+        public short version() {
+            return 0;
+        }
+
+        @Override
+        public Message decode(MessageAttributeReader reader) {
+            byte messageType = reader.readByte();
+            if (messageType != SliceMessage.MESSAGE_TYPE) {
+                throw new IllegalStateException("unknown message type: " + messageType);
+            }
+
+            SliceMessage message = new SliceMessage(reader.readByteBufSlice());
+            decoded.add(message);
+            return message;
+        }
+
+        @Override
+        public void encode(Message message, MessageAttributeWriter writer) {
+            writer.writeByte(message.type());
+            writer.writeByteBuf(((SliceMessage) message).buf);
+        }
+
+        @Override
+        public int estimateSize(Message message) {
+            return -1;
+        }
+
+    }
+
+}
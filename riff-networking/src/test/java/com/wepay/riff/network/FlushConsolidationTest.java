@@ -0,0 +1,129 @@
+package com.wepay.riff.network;
+
+import com.wepay.zktools.util.Uninterruptibly;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FlushConsolidationTest {
+
+    private static final short VERSION = 0;
+    // type (1) + length prefix (4) + text (30)
+    private static final String TEXT = "012345678901234567890123456789";
+
+    @Test
+    public void testNoByteLimit() throws Exception {
+        // A non-positive byte limit means no byte limit, so messages are flushed by the count
+        MockMessageCodec codec = new MockMessageCodec((byte) 'T', VERSION);
+
+        assertEquals(2, sendInOneTask(codec, 10, 0L, 25));
+    }
+
+    @Test
+    public void testUnknownSize() throws Exception {
+        // The codec does not estimate sizes. The bytes are counted on the event loop as they are encoded.
+        MockMessageCodec codec = new MockMessageCodec((byte) 'T', VERSION) {
+            @Override
+            public int estimateSize(Message message) {
+                return -1;
+            }
+        };
+
+        // 42 bytes per frame, a flush per three messages
+        assertEquals(10, sendInOneTask(codec, 1000, 100L, 30));
+    }
+
+    /**
+     * Sends messages in a single event loop task, and returns the number of flushes during the task.
+     */
+    private static int sendInOneTask(MessageCodec codec, int maxMessages, long maxBytes, int numMessages)
+        throws Exception {
+        Map<Short, MessageCodec> codecs = new HashMap<>();
+        codecs.put(codec.version(), codec);
+
+        MessageHandler handler = new MessageHandler(codecs, "Hello", null, 10, 20) {
+            @Override
+            protected void process(Message msg) {
+                // Do nothing
+            }
+        };
+        handler.setFlushConsolidation(maxMessages, maxBytes);
+
+        FlushCounter counter = new FlushCounter();
+        EventLoopGroup group = new DefaultEventLoopGroup(1);
+        try {
+            LocalAddress address = new LocalAddress(FlushConsolidationTest.class.getSimpleName());
+            Channel server = new ServerBootstrap()
+                .group(group)
+                .channel(LocalServerChannel.class)
+                .childHandler(new HelloPeer(codec))
+                .bind(address).sync().channel();
+
+            Channel client = new Bootstrap()
+                .group(group)
+                .channel(LocalChannel.class)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(counter);
+                        ch.pipeline().addLast("helloDecoder", new MessageDecoder(HelloCodec.INSTANCE));
+                        ch.pipeline().addLast("helloEncoder", new MessageEncoder(HelloCodec.INSTANCE));
+                        ch.pipeline().addLast(handler);
+                    }
+                })
+                .connect(address).sync().channel();
+
+            while (handler.getMessageCodec() == null) {
+                Uninterruptibly.sleep(10);
+            }
+
+            int numFlushes = client.eventLoop().submit(() -> {
+                int start = counter.flushes.get();
+                for (int i = 0; i < numMessages; i++) {
+                    handler.sendMessage(new MockMessage(TEXT), true);
+                }
+                return counter.flushes.get() - start;
+            }).get();
+
+            // The rest is flushed by a task after the writes
+            int flushesAfterTask = client.eventLoop().submit(counter.flushes::get).get();
+            assertTrue(flushesAfterTask > numFlushes);
+
+            client.close().sync();
+            server.close().sync();
+            return numFlushes;
+
+        } finally {
+            group.shutdownGracefully().sync();
+        }
+    }
+
+    private static class FlushCounter extends ChannelOutboundHandlerAdapter {
+
+        private final AtomicInteger flushes = new AtomicInteger(0);
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) throws Exception {
+            flushes.incrementAndGet();
+            super.flush(ctx);
+        }
+
+    }
+
+}
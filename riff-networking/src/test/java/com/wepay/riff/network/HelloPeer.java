@@ -0,0 +1,35 @@
+package com.wepay.riff.network;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.Collections;
+
+/**
+ * A peer which sends Hello, and discards received data.
+ */
+class HelloPeer extends ChannelInboundHandlerAdapter {
+
+    private final MessageCodec codec;
+
+    HelloPeer(MessageCodec codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        ByteBuf hello = Unpooled.buffer();
+        new MessageEncoder(HelloCodec.INSTANCE)
+            .encode(null, new Hello(Collections.singleton(codec.version()), "Hello from peer"), hello);
+        ctx.writeAndFlush(hello);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        ReferenceCountUtil.release(msg);
+    }
+
+}
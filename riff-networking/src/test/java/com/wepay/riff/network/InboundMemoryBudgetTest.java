@@ -0,0 +1,144 @@
+package com.wepay.riff.network;
+
+import io.netty.channel.ChannelConfig;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InboundMemoryBudgetTest {
+
+    private static final int LOW_WATERMARK = 1000;
+    private static final int HIGH_WATERMARK = 2000;
+
+    @Test
+    public void testPauseHeaviest() {
+        InboundMemoryBudget budget = new InboundMemoryBudget(LOW_WATERMARK, HIGH_WATERMARK);
+
+        AtomicBoolean heavyAutoRead = new AtomicBoolean();
+        AtomicBoolean mediumAutoRead = new AtomicBoolean();
+        AtomicBoolean lightAutoRead = new AtomicBoolean();
+        Throttling heavy = mkThrottling(budget, heavyAutoRead);
+        Throttling medium = mkThrottling(budget, mediumAutoRead);
+        Throttling light = mkThrottling(budget, lightAutoRead);
+
+        Message heavyMessage = mkMessage(1500);
+        Message mediumMessage = mkMessage(400);
+        Message lightMessage = mkMessage(200);
+
+        heavy.increment(heavyMessage);
+        medium.increment(mediumMessage);
+        assertEquals(1900, budget.bufferedBytes());
+        assertEquals(0, budget.numPausedConnections());
+
+        // Over the high watermark. Pausing the heaviest connection is enough.
+        light.increment(lightMessage);
+        assertEquals(2100, budget.bufferedBytes());
+        assertEquals(1, budget.numPausedConnections());
+        assertFalse(heavyAutoRead.get());
+        assertTrue(mediumAutoRead.get());
+        assertTrue(lightAutoRead.get());
+
+        // Still over the low watermark
+        light.decrement(lightMessage);
+        assertEquals(1, budget.numPausedConnections());
+        assertFalse(heavyAutoRead.get());
+
+        // Below the low watermark
+        heavy.decrement(heavyMessage);
+        assertEquals(400, budget.bufferedBytes());
+        assertEquals(0, budget.numPausedConnections());
+        assertTrue(heavyAutoRead.get());
+        assertTrue(mediumAutoRead.get());
+        assertTrue(lightAutoRead.get());
+    }
+
+    @Test
+    public void testPauseMany() {
+        InboundMemoryBudget budget = new InboundMemoryBudget(LOW_WATERMARK, HIGH_WATERMARK);
+
+        int numConnections = 10;
+        Throttling[] throttlings = new Throttling[numConnections];
+        AtomicBoolean[] autoReads = new AtomicBoolean[numConnections];
+        Message[] messages = new Message[numConnections];
+        for (int i = 0; i < numConnections; i++) {
+            autoReads[i] = new AtomicBoolean();
+            throttlings[i] = mkThrottling(budget, autoReads[i]);
+            messages[i] = mkMessage((i + 1) * 40);
+        }
+
+        // 40 + 80 + ... + 400 = 2200
+        for (int i = 0; i < numConnections; i++) {
+            throttlings[i].increment(messages[i]);
+        }
+        assertEquals(2200, budget.bufferedBytes());
+
+        // The heaviest connections holding at least 1200 bytes (400 + 360 + 320 + 280) are paused
+        assertEquals(4, budget.numPausedConnections());
+        for (int i = 0; i < numConnections; i++) {
+            assertEquals(i < 6, autoReads[i].get());
+        }
+
+        for (int i = numConnections - 1; i >= 0; i--) {
+            throttlings[i].decrement(messages[i]);
+        }
+        assertEquals(0, budget.bufferedBytes());
+        assertEquals(0, budget.numPausedConnections());
+        for (int i = 0; i < numConnections; i++) {
+            assertTrue(autoReads[i].get());
+        }
+    }
+
+    @Test
+    public void testUnregister() {
+        InboundMemoryBudget budget = new InboundMemoryBudget(LOW_WATERMARK, HIGH_WATERMARK);
+
+        AtomicBoolean autoRead = new AtomicBoolean();
+        Throttling throttling = mkThrottling(budget, autoRead);
+        Message message = mkMessage(3000);
+
+        throttling.increment(message);
+        assertEquals(1, budget.numPausedConnections());
+        assertFalse(autoRead.get());
+
+        // Buffered messages are still credited after unregistration
+        throttling.unregisterInboundMemoryBudget();
+        assertEquals(0, budget.numPausedConnections());
+        assertEquals(3000, budget.bufferedBytes());
+
+        throttling.decrement(message);
+        assertEquals(0, budget.bufferedBytes());
+    }
+
+    private static Throttling mkThrottling(InboundMemoryBudget budget, AtomicBoolean autoRead) {
+        Throttling throttling = new Throttling(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        throttling.setChannelConfig(mockChannelConfig(autoRead));
+        throttling.setInboundMemoryBudget(budget);
+        return throttling;
+    }
+
+    private static Message mkMessage(int encodedSize) {
+        Message msg = new MockMessage("");
+        msg.encodedSize(encodedSize);
+        return msg;
+    }
+
+    private static ChannelConfig mockChannelConfig(final AtomicBoolean autoRead) {
+        return (ChannelConfig) Proxy.newProxyInstance(InboundMemoryBudgetTest.class.getClassLoader(),
+            new Class[] {
+                ChannelConfig.class
+            },
+            (proxy, method, args) -> {
+                if (method.getName().equals("setAutoRead")) {
+                    autoRead.set((boolean) args[0]);
+                }
+                return null;
+            }
+        );
+    }
+
+}
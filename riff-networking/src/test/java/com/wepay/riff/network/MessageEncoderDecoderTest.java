@@ -1,7 +1,11 @@
 package com.wepay.riff.network;
 
+import io.netty.buffer.AbstractByteBufAllocator;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.buffer.UnpooledHeapByteBuf;
+import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.CorruptedFrameException;
 import org.junit.Test;
 
@@ -12,6 +16,8 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class MessageEncoderDecoderTest {
 
@@ -39,6 +45,36 @@ public class MessageEncoderDecoderTest {
         assertEquals(text, ((MockMessage) out.get(0)).message);
     }
 
+    @Test
+    public void testEstimatedSizeAllocation() {
+        Random rand = new Random();
+
+        MessageEncoder encoder = new MessageEncoder(new MockMessageCodec((byte) 'A', (short) 0));
+        MessageDecoder decoder = new MessageDecoder(new MockMessageCodec((byte) 'A', (short) 0));
+
+        ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+        when(ctx.alloc()).thenReturn(UnpooledByteBufAllocator.DEFAULT);
+
+        String text = "mock message: " + rand.nextInt();
+        MockMessage message = new MockMessage(text);
+        LinkedList<Object> out = new LinkedList<>();
+
+        ByteBuf byteBuf = encoder.allocateBuffer(ctx, message, true);
+        int capacity = byteBuf.capacity();
+        encoder.encode(null, message, byteBuf);
+
+        // The buffer was allocated with the exact size.
+        assertEquals(capacity, byteBuf.writerIndex());
+        assertEquals(capacity, byteBuf.capacity());
+
+        decoder.decode(null, byteBuf, out);
+
+        assertFalse(out.isEmpty());
+        assertEquals(text, ((MockMessage) out.get(0)).message);
+
+        byteBuf.release();
+    }
+
     @Test
     public void testMagicByteMismatch() {
         Random rand = new Random();
@@ -95,4 +131,243 @@ public class MessageEncoderDecoderTest {
         }
     }
 
+    @Test
+    public void testCompression() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("compressible ");
+        }
+        String largeText = sb.toString();
+
+        for (FrameCompression compression : FrameCompression.values()) {
+            for (boolean compact : new boolean[] {false, true}) {
+                MockMessageCodec codec = new MockMessageCodec((byte) 'A', (short) 0);
+                MessageEncoder encoder = new MessageEncoder(codec, null, compact, compression, 100);
+                MessageDecoder decoder = new MessageDecoder(codec, null, compact, compression);
+
+                ByteBuf byteBuf = Unpooled.buffer(100);
+                LinkedList<Object> out = new LinkedList<>();
+
+                // A large message is compressed
+                encoder.encode(null, new MockMessage(largeText), byteBuf);
+                assertTrue(byteBuf.readableBytes() < largeText.length() / 2);
+
+                // A small message is not compressed
+                int index = byteBuf.writerIndex();
+                encoder.encode(null, new MockMessage("small"), byteBuf);
+                assertTrue(byteBuf.writerIndex() - index < 100);
+                assertTrue(byteBuf.getInt(index + 3) > 0);
+
+                decoder.decode(null, byteBuf, out);
+                decoder.decode(null, byteBuf, out);
+
+                assertEquals(2, out.size());
+                assertEquals(largeText, ((MockMessage) out.get(0)).message);
+                assertEquals("small", ((MockMessage) out.get(1)).message);
+                assertEquals(0, byteBuf.readableBytes());
+            }
+        }
+    }
+
+    @Test
+    public void testLargeCompressedPayload() {
+        // Larger than the chunk size of Snappy, with a part which does not compress well
+        Random random = new Random();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            sb.append("compressible ").append(i);
+        }
+        for (int i = 0; i < 50000; i++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        String hugeText = sb.toString();
+
+        for (FrameCompression compression : FrameCompression.values()) {
+            MockMessageCodec codec = new MockMessageCodec((byte) 'A', (short) 0);
+            MessageEncoder encoder = new MessageEncoder(codec, null, false, compression, 100);
+            MessageDecoder decoder = new MessageDecoder(codec, null, false, compression);
+
+            ByteBuf byteBuf = Unpooled.buffer(100);
+            encoder.encode(null, new MockMessage(hugeText), byteBuf);
+            assertTrue(byteBuf.readableBytes() < hugeText.length());
+            assertTrue(byteBuf.getInt(3) < 0);
+
+            LinkedList<Object> out = new LinkedList<>();
+            decoder.decode(null, byteBuf, out);
+            assertEquals(hugeText, ((MockMessage) out.get(0)).message);
+            assertEquals(0, byteBuf.readableBytes());
+        }
+    }
+
+    @Test
+    public void testForgedUncompressedLength() {
+        MockMessageCodec codec = new MockMessageCodec((byte) 'A', (short) 0);
+
+        for (int uncompressedLength : new int[] {0, -1, 1025, Integer.MAX_VALUE}) {
+            MessageDecoder decoder = new MessageDecoder(codec, null, false, false, FrameCompression.SNAPPY, 1024);
+
+            // A compressed frame with a small payload which claims a huge uncompressed length
+            ByteBuf byteBuf = Unpooled.buffer(100);
+            byteBuf.writeByte('A');
+            byteBuf.writeShort(0);
+            byteBuf.writeInt(Integer.MIN_VALUE | 8);
+            byteBuf.writeInt(uncompressedLength);
+            byteBuf.writeInt(0);
+
+            try {
+                decoder.decode(null, byteBuf, new LinkedList<>());
+                fail();
+            } catch (CorruptedFrameException ex) {
+                // OK
+            }
+            assertEquals(0, byteBuf.readableBytes());
+        }
+    }
+
+    @Test
+    public void testForgedSnappyPreamble() {
+        MockMessageCodec codec = new MockMessageCodec((byte) 'A', (short) 0);
+
+        // Varints of the uncompressed length of a Snappy block, 1000 and 2^28 - 1 (the largest Snappy accepts)
+        byte[][] preambles = {
+            {(byte) 0xE8, 0x07},
+            {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x7F},
+        };
+        for (byte[] preamble : preambles) {
+            MessageDecoder decoder = new MessageDecoder(codec, null, false, FrameCompression.SNAPPY);
+            CapacityRecordingAllocator alloc = new CapacityRecordingAllocator();
+
+            // A compressed frame within the limits, whose only chunk claims more than the uncompressed length
+            ByteBuf byteBuf = alloc.heapBuffer(100);
+            byteBuf.writeByte('A');
+            byteBuf.writeShort(0);
+            byteBuf.writeInt(Integer.MIN_VALUE | (4 + 4 + preamble.length));
+            byteBuf.writeInt(100);
+            byteBuf.writeInt(preamble.length);
+            byteBuf.writeBytes(preamble);
+
+            try {
+                decoder.decode(null, byteBuf, new LinkedList<>());
+                fail();
+            } catch (CorruptedFrameException ex) {
+                // OK
+            }
+            assertEquals(0, byteBuf.readableBytes());
+            // The payload buffer did not grow beyond the uncompressed length
+            assertEquals(0, alloc.maxGrownCapacity);
+        }
+    }
+
+    @Test
+    public void testMaxUncompressedLength() {
+        MockMessageCodec codec = new MockMessageCodec((byte) 'A', (short) 0);
+        MessageEncoder plainEncoder = new MessageEncoder(codec);
+        MessageEncoder encoder = new MessageEncoder(codec, null, false, FrameCompression.SNAPPY, 100);
+        MessageDecoder decoder = new MessageDecoder(codec, null, false, false, FrameCompression.SNAPPY, 1024);
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.append('x');
+        }
+        String text = sb.toString();
+
+        // An uncompressed frame is not limited
+        ByteBuf byteBuf = Unpooled.buffer(3000);
+        LinkedList<Object> out = new LinkedList<>();
+        plainEncoder.encode(null, new MockMessage(text), byteBuf);
+        decoder.decode(null, byteBuf, out);
+        assertEquals(text, ((MockMessage) out.get(0)).message);
+
+        // A compressed frame is rejected by the uncompressed length
+        encoder.encode(null, new MockMessage(text), byteBuf);
+        assertTrue(byteBuf.getInt(byteBuf.readerIndex() + 3) < 0);
+        try {
+            decoder.decode(null, byteBuf, out);
+            fail();
+        } catch (CorruptedFrameException ex) {
+            // OK
+        }
+    }
+
+    @Test
+    public void testIncompressiblePayload() {
+        byte[] bytes = new byte[1000];
+        new Random().nextBytes(bytes);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append((char) (b & 0x7F));
+        }
+        String text = sb.toString();
+
+        MockMessageCodec codec = new MockMessageCodec((byte) 'A', (short) 0);
+        MessageEncoder plainEncoder = new MessageEncoder(codec);
+        MessageEncoder encoder = new MessageEncoder(codec, null, false, FrameCompression.SNAPPY, 100);
+        MessageDecoder decoder = new MessageDecoder(codec, null, false, FrameCompression.SNAPPY);
+
+        ByteBuf plainBuf = Unpooled.buffer(2000);
+        plainEncoder.encode(null, new MockMessage(text), plainBuf);
+
+        // The payload is sent uncompressed if compression does not make it smaller
+        ByteBuf byteBuf = Unpooled.buffer(2000);
+        encoder.encode(null, new MockMessage(text), byteBuf);
+        assertEquals(plainBuf, byteBuf);
+
+        LinkedList<Object> out = new LinkedList<>();
+        decoder.decode(null, byteBuf, out);
+        assertEquals(text, ((MockMessage) out.get(0)).message);
+    }
+
+    @Test
+    public void testCompressionNotNegotiated() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("compressible ");
+        }
+
+        MockMessageCodec codec = new MockMessageCodec((byte) 'A', (short) 0);
+        MessageEncoder encoder = new MessageEncoder(codec, null, false, FrameCompression.DEFLATE, 100);
+        MessageDecoder decoder = new MessageDecoder(codec);
+
+        ByteBuf byteBuf = Unpooled.buffer(100);
+        encoder.encode(null, new MockMessage(sb.toString()), byteBuf);
+
+        try {
+            decoder.decode(null, byteBuf, new LinkedList<>());
+            fail();
+        } catch (CorruptedFrameException ex) {
+            // OK
+        }
+        assertEquals(0, byteBuf.readableBytes());
+    }
+
+    /**
+     * Records the largest capacity a buffer grew to.
+     */
+    private static class CapacityRecordingAllocator extends AbstractByteBufAllocator {
+
+        private int maxGrownCapacity = 0;
+
+        @Override
+        protected ByteBuf newHeapBuffer(int initialCapacity, int maxCapacity) {
+            return new UnpooledHeapByteBuf(this, initialCapacity, maxCapacity) {
+                @Override
+                public ByteBuf capacity(int newCapacity) {
+                    maxGrownCapacity = Math.max(maxGrownCapacity, newCapacity);
+                    return super.capacity(newCapacity);
+                }
+            };
+        }
+
+        @Override
+        protected ByteBuf newDirectBuffer(int initialCapacity, int maxCapacity) {
+            return newHeapBuffer(initialCapacity, maxCapacity);
+        }
+
+        @Override
+        public boolean isDirectBufferPooled() {
+            return false;
+        }
+
+    }
+
 }
@@ -9,9 +9,14 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class MessageProcessingThreadPoolTest {
 
@@ -47,8 +52,54 @@ public class MessageProcessingThreadPoolTest {
         test(10, 10);
     }
 
+    @Test
+    public void testVirtualThreadScheduler() throws Exception {
+        boolean supported;
+        try {
+            ((ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null)).shutdown();
+            supported = true;
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            supported = false;
+        }
+
+        MessageProcessingThreadPool threadPool =
+            new MessageProcessingThreadPool(1, MessageProcessingThreadPool.Scheduler.VIRTUAL_THREAD).open();
+        try {
+            if (supported) {
+                assertEquals(MessageProcessingThreadPool.Scheduler.VIRTUAL_THREAD, threadPool.scheduler());
+            } else {
+                // The thread pool falls back to platform threads
+                assertEquals(MessageProcessingThreadPool.Scheduler.SHARED_QUEUE, threadPool.scheduler());
+            }
+
+            CompletableFuture<Thread> processingThread = new CompletableFuture<>();
+            MessageProcessor messageProcessor = new MessageProcessor(new Throttling(0, 0), threadPool) {
+                @Override
+                protected void processMessage(Message msg) {
+                    processingThread.complete(Thread.currentThread());
+                }
+            };
+            messageProcessor.offer(new TestMessage(0, 0));
+
+            Thread thread = processingThread.get(1000, TimeUnit.MILLISECONDS);
+            if (supported) {
+                assertTrue((Boolean) Thread.class.getMethod("isVirtual").invoke(thread));
+            } else {
+                assertTrue(thread.getName().endsWith("MessageProcessingTask0"));
+            }
+        } finally {
+            threadPool.close();
+        }
+    }
+
     public void test(int numThreads, int numProcessors) {
-        MessageProcessingThreadPool threadPool = new MessageProcessingThreadPool(numThreads).open();
+        for (MessageProcessingThreadPool.Scheduler scheduler : MessageProcessingThreadPool.Scheduler.values()) {
+            test(numThreads, numProcessors, scheduler);
+        }
+    }
+
+    public void test(int numThreads, int numProcessors, MessageProcessingThreadPool.Scheduler scheduler) {
+        MessageProcessingThreadPool threadPool = new MessageProcessingThreadPool(numThreads, scheduler).open();
         try {
             TestMessageProcessor[] messageProcessors = new TestMessageProcessor[numProcessors];
 
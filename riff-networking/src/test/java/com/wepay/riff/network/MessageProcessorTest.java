@@ -1,18 +1,29 @@
 package com.wepay.riff.network;
 
 import com.wepay.zktools.util.Uninterruptibly;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelConfig;
+import io.netty.util.ReferenceCounted;
 import org.junit.Test;
 
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Exchanger;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class MessageProcessorTest {
 
@@ -99,6 +110,350 @@ public class MessageProcessorTest {
         }
     }
 
+    @Test
+    public void testConcurrentOffers() {
+        for (MessageProcessingThreadPool.Scheduler scheduler : MessageProcessingThreadPool.Scheduler.values()) {
+            testConcurrentOffers(scheduler);
+        }
+    }
+
+    private void testConcurrentOffers(MessageProcessingThreadPool.Scheduler scheduler) {
+        final int numWriters = 4;
+        final int numMessagesPerWriter = 10000;
+
+        Throttling throttling = new Throttling(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        AtomicInteger processed = new AtomicInteger(0);
+        AtomicInteger running = new AtomicInteger(0);
+        AtomicBoolean concurrentProcessing = new AtomicBoolean(false);
+        CountDownLatch done = new CountDownLatch(1);
+
+        MessageProcessingThreadPool threadPool = new MessageProcessingThreadPool(4, scheduler).open();
+        try {
+            MessageProcessor messageProcessor = new MessageProcessor(throttling, threadPool) {
+                @Override
+                protected void processMessage(Message msg) {
+                    if (running.incrementAndGet() != 1) {
+                        concurrentProcessing.set(true);
+                    }
+                    running.decrementAndGet();
+
+                    if (processed.incrementAndGet() == numWriters * numMessagesPerWriter) {
+                        done.countDown();
+                    }
+                }
+            };
+
+            Thread[] writers = new Thread[numWriters];
+            for (int i = 0; i < numWriters; i++) {
+                writers[i] = new Thread(() -> {
+                    for (int j = 0; j < numMessagesPerWriter; j++) {
+                        messageProcessor.offer(new MockMessage("msg" + j));
+                    }
+                });
+                writers[i].start();
+            }
+
+            for (Thread writer : writers) {
+                Uninterruptibly.run(writer::join);
+            }
+            Uninterruptibly.run(done::await);
+
+            assertFalse(concurrentProcessing.get());
+            assertEquals(numWriters * numMessagesPerWriter, processed.get());
+
+            // wait for the counter in throttling goes down.
+            for (int retry = 0; retry < 10 && throttling.size() > 0; retry++) {
+                Uninterruptibly.sleep(10);
+            }
+            assertEquals(0, throttling.size());
+
+        } finally {
+            threadPool.close();
+        }
+    }
+
+    @Test
+    public void testBatchDrain() {
+        final int maxMessagesPerTurn = 8;
+        final int numMessages = 100;
+
+        Throttling throttling = new Throttling(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        List<Integer> batchSizes = new ArrayList<>();
+        List<String> processed = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+
+        // Do not open the thread pool until all messages are offered.
+        MessageProcessingThreadPool threadPool = new MessageProcessingThreadPool(1);
+        try {
+            MessageProcessor messageProcessor = new MessageProcessor(throttling, threadPool, maxMessagesPerTurn, 0L) {
+                @Override
+                protected void processMessage(Message msg) {
+                    throw new IllegalStateException("not batched");
+                }
+
+                @Override
+                protected void processMessages(List<Message> msgs) {
+                    batchSizes.add(msgs.size());
+                    for (Message msg : msgs) {
+                        processed.add(((MockMessage) msg).message);
+                    }
+                    if (processed.size() == numMessages) {
+                        done.countDown();
+                    }
+                }
+            };
+
+            for (int i = 0; i < numMessages; i++) {
+                messageProcessor.offer(new MockMessage("msg" + i));
+            }
+            assertEquals(numMessages, throttling.size());
+
+            threadPool.open();
+            Uninterruptibly.run(done::await);
+
+            assertEquals(numMessages, processed.size());
+            for (int i = 0; i < numMessages; i++) {
+                assertEquals("msg" + i, processed.get(i));
+            }
+
+            assertEquals((numMessages + maxMessagesPerTurn - 1) / maxMessagesPerTurn, batchSizes.size());
+            for (int batchSize : batchSizes) {
+                assertTrue(batchSize <= maxMessagesPerTurn);
+            }
+
+            // wait for the counter in throttling goes down.
+            for (int retry = 0; retry < 10 && throttling.size() > 0; retry++) {
+                Uninterruptibly.sleep(10);
+            }
+            assertEquals(0, throttling.size());
+
+        } finally {
+            threadPool.close();
+        }
+    }
+
+    @Test
+    public void testProcessingFailureInBatch() {
+        final int maxMessagesPerTurn = 8;
+        final int numMessages = 20;
+        final int failing = 3;
+
+        Throttling throttling = new Throttling(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        List<Integer> processed = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(numMessages - 1);
+
+        MessageProcessingThreadPool threadPool = new MessageProcessingThreadPool(1);
+        try {
+            List<BufferMessage> messages = new ArrayList<>();
+            MessageProcessor messageProcessor = new MessageProcessor(throttling, threadPool, maxMessagesPerTurn, 0L) {
+                @Override
+                protected void processMessage(Message msg) {
+                    int index = messages.indexOf(msg);
+                    if (index == failing) {
+                        throw new IllegalStateException("failed to process message " + index);
+                    }
+                    processed.add(index);
+                    done.countDown();
+                }
+            };
+
+            for (int i = 0; i < numMessages; i++) {
+                BufferMessage message = new BufferMessage(Unpooled.buffer(10));
+                messages.add(message);
+                messageProcessor.offer(message);
+            }
+
+            threadPool.open();
+            Uninterruptibly.run(done::await);
+
+            // The rest of the batch is processed after the failure
+            assertEquals(numMessages - 1, processed.size());
+            for (int i = 0; i < numMessages - 1; i++) {
+                assertEquals(i < failing ? i : i + 1, (int) processed.get(i));
+            }
+
+            // wait for the counter in throttling goes down.
+            for (int retry = 0; retry < 10 && throttling.size() > 0; retry++) {
+                Uninterruptibly.sleep(10);
+            }
+            assertEquals(0, throttling.size());
+            for (BufferMessage message : messages) {
+                assertEquals(0, message.refCnt());
+            }
+
+        } finally {
+            threadPool.close();
+        }
+    }
+
+    @Test
+    public void testCloseIfIdle() {
+        Throttling throttling = new Throttling(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        MessageProcessingThreadPool threadPool = new MessageProcessingThreadPool(1);
+        AtomicInteger processed = new AtomicInteger(0);
+
+        MessageProcessor messageProcessor = new MessageProcessor(throttling, threadPool) {
+            @Override
+            protected void processMessage(Message msg) {
+                processed.incrementAndGet();
+            }
+        };
+
+        // A new processor is idle
+        MessageProcessor idleProcessor = new MessageProcessor(throttling, threadPool) {
+            @Override
+            protected void processMessage(Message msg) {
+                fail();
+            }
+        };
+        assertTrue(idleProcessor.closeIfIdle());
+
+        // The processor is not idle when it has queued messages
+        messageProcessor.offer(new MockMessage("msg"));
+        assertFalse(messageProcessor.closeIfIdle());
+        assertFalse(messageProcessor.closeIfIdle());
+
+        threadPool.open();
+        try {
+            for (int retry = 0; retry < 100 && processed.get() == 0; retry++) {
+                Uninterruptibly.sleep(10);
+            }
+            assertEquals(1, processed.get());
+
+            // The first call clears the touched mark, the second call closes
+            messageProcessor.offer(new MockMessage("msg"));
+            for (int retry = 0; retry < 100 && processed.get() == 1; retry++) {
+                Uninterruptibly.sleep(10);
+            }
+            assertFalse(messageProcessor.closeIfIdle());
+
+            boolean closed = false;
+            for (int retry = 0; retry < 100 && !closed; retry++) {
+                // The processor may still be finishing the turn
+                closed = messageProcessor.closeIfIdle();
+                if (!closed) {
+                    Uninterruptibly.sleep(10);
+                }
+            }
+            assertTrue(closed);
+
+            // A closed processor discards messages
+            messageProcessor.offer(new MockMessage("msg"));
+            Uninterruptibly.sleep(50);
+            assertEquals(2, processed.get());
+
+        } finally {
+            threadPool.close();
+        }
+    }
+
+    @Test
+    public void testReleaseMessages() {
+        Throttling throttling = new Throttling(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        CountDownLatch done = new CountDownLatch(2);
+        Queue<Integer> refCnts = new ConcurrentLinkedQueue<>();
+
+        MessageProcessingThreadPool threadPool = new MessageProcessingThreadPool(1);
+        try {
+            MessageProcessor messageProcessor = new MessageProcessor(throttling, threadPool) {
+                @Override
+                protected void processMessage(Message msg) {
+                    refCnts.add(((BufferMessage) msg).refCnt());
+                    done.countDown();
+                }
+            };
+
+            BufferMessage processed1 = new BufferMessage(Unpooled.buffer(10));
+            BufferMessage processed2 = new BufferMessage(Unpooled.buffer(10));
+            messageProcessor.offer(processed1);
+            messageProcessor.offer(processed2);
+
+            threadPool.open();
+            Uninterruptibly.run(done::await);
+
+            // The messages were still valid while they were processed
+            assertEquals(Arrays.asList(1, 1), new ArrayList<>(refCnts));
+
+            for (int retry = 0; retry < 10 && processed2.refCnt() > 0; retry++) {
+                Uninterruptibly.sleep(10);
+            }
+            assertEquals(0, processed1.refCnt());
+            assertEquals(0, processed2.refCnt());
+
+        } finally {
+            threadPool.close();
+        }
+
+        // Messages are released when the processor is closed, or offered to a closed processor.
+        MessageProcessor messageProcessor = new MessageProcessor(throttling, new MessageProcessingThreadPool(1)) {
+            @Override
+            protected void processMessage(Message msg) {
+                fail();
+            }
+        };
+
+        BufferMessage discarded1 = new BufferMessage(Unpooled.buffer(10));
+        BufferMessage discarded2 = new BufferMessage(Unpooled.buffer(10));
+        messageProcessor.offer(discarded1);
+        messageProcessor.close();
+        messageProcessor.offer(discarded2);
+
+        assertEquals(0, discarded1.refCnt());
+        assertEquals(0, discarded2.refCnt());
+    }
+
+    private static final class BufferMessage extends Message implements ReferenceCounted {
+
+        private final ByteBuf buf;
+
+        BufferMessage(ByteBuf buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public byte type() {
+            return MockMessage.MESSAGE_TYPE;
+        }
+
+        @Override
+        public int refCnt() {
+            return buf.refCnt();
+        }
+
+        @Override
+        public ReferenceCounted retain() {
+            buf.retain();
+            return this;
+        }
+
+        @Override
+        public ReferenceCounted retain(int increment) {
+            buf.retain(increment);
+            return this;
+        }
+
+        @Override
+        public ReferenceCounted touch() {
+            return this;
+        }
+
+        @Override
+        public ReferenceCounted touch(Object hint) {
+            return this;
+        }
+
+        @Override
+        public boolean release() {
+            return buf.release();
+        }
+
+        @Override
+        public boolean release(int decrement) {
+            return buf.release(decrement);
+        }
+
+    }
+
     private ChannelConfig mockChannelConfig(final AtomicBoolean autoRead) {
         return (ChannelConfig) Proxy.newProxyInstance(this.getClass().getClassLoader(),
             new Class[] {
@@ -1,5 +1,7 @@
 package com.wepay.riff.network;
 
+import java.nio.charset.StandardCharsets;
+
 public class MockMessageCodec implements MessageCodec {
 
     private final byte magicByte;
@@ -34,6 +36,18 @@ public class MockMessageCodec implements MessageCodec {
         }
     }
 
+    @Override
+    public int estimateSize(Message message) {
+        switch (message.type()) {
+            case MockMessage.MESSAGE_TYPE:
+                // type (1) + length prefix (4) + text
+                return 1 + 4 + ((MockMessage) message).message.getBytes(StandardCharsets.UTF_8).length;
+
+            default:
+                return -1;
+        }
+    }
+
     @Override
     public void encode(Message message, MessageAttributeWriter writer) {
         writer.writeByte(message.type());
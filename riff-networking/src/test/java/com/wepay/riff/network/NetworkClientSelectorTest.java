@@ -0,0 +1,97 @@
+package com.wepay.riff.network;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class NetworkClientSelectorTest {
+
+    private static final int NUM_CLIENTS = 4;
+
+    @Test
+    public void testRoundRobin() {
+        List<NetworkClient> clients = mkClients();
+        NetworkClientSelector selector = NetworkClientSelector.roundRobin();
+
+        Set<NetworkClient> selected = new HashSet<>();
+        for (int i = 0; i < NUM_CLIENTS; i++) {
+            selected.add(selector.select(clients, null));
+        }
+        assertEquals(NUM_CLIENTS, selected.size());
+
+        // Invalid clients are skipped
+        for (int i = 1; i < NUM_CLIENTS; i++) {
+            clients.get(i).close();
+        }
+        for (int i = 0; i < NUM_CLIENTS; i++) {
+            assertSame(clients.get(0), selector.select(clients, null));
+        }
+
+        clients.get(0).close();
+        assertNull(selector.select(clients, null));
+    }
+
+    @Test
+    public void testLeastPending() {
+        List<NetworkClient> clients = mkClients();
+        NetworkClientSelector selector = NetworkClientSelector.leastPending();
+
+        assertNotNull(selector.select(clients, null));
+
+        NetworkClient client = selector.select(clients, null);
+        client.close();
+        assertNotSame(client, selector.select(clients, null));
+    }
+
+    @Test
+    public void testSticky() {
+        List<NetworkClient> clients = mkClients();
+        NetworkClientSelector selector = NetworkClientSelector.sticky(NetworkClientSelector.roundRobin());
+
+        for (int processorId = 0; processorId < NUM_CLIENTS * 2; processorId++) {
+            NetworkClient client = selector.select(clients, processorId);
+            for (int i = 0; i < 10; i++) {
+                assertSame(client, selector.select(clients, processorId));
+            }
+        }
+
+        // The next valid client is selected if the client is not valid.
+        NetworkClient client = selector.select(clients, 1);
+        client.close();
+        NetworkClient another = selector.select(clients, 1);
+        assertNotNull(another);
+        assertNotSame(client, another);
+        assertSame(another, selector.select(clients, 1));
+
+        // Messages without a processor id are spread
+        Set<NetworkClient> selected = new HashSet<>();
+        for (int i = 0; i < NUM_CLIENTS; i++) {
+            selected.add(selector.select(clients, null));
+        }
+        assertEquals(NUM_CLIENTS - 1, selected.size());
+    }
+
+    private static List<NetworkClient> mkClients() {
+        List<NetworkClient> clients = new ArrayList<>();
+        for (int i = 0; i < NUM_CLIENTS; i++) {
+            // Clients are never opened
+            clients.add(new NetworkClient("localhost", 0, null) {
+                @Override
+                protected MessageHandler getMessageHandler() {
+                    return null;
+                }
+            });
+        }
+        return clients;
+    }
+
+}
@@ -1,27 +1,48 @@
 package com.wepay.riff.network;
 
+import com.wepay.riff.metrics.core.MetricRegistry;
 import com.wepay.riff.util.PortFinder;
 import com.wepay.zktools.util.State;
 import com.wepay.zktools.util.StateChangeFuture;
 import com.wepay.zktools.util.Uninterruptibly;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
 import org.junit.Test;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class NetworkClientServerTest {
 
+    private static final String NO_REPLY = "no reply";
+
     @Test
     public void testBasic() throws Exception {
         PortFinder portFinder = new PortFinder();
@@ -64,6 +85,869 @@ public class NetworkClientServerTest {
         }
     }
 
+    @Test
+    public void testFlushConsolidation() throws Exception {
+        PortFinder portFinder = new PortFinder();
+        int port = portFinder.getPort();
+
+        Map<Short, MessageCodec> codecs = new HashMap<>();
+
+        codecs.put((short) 0, new MockMessageCodec((byte) 'T', (short) 0));
+        EchoServer server = new EchoServer(port, codecs, null, Fault.NEVER) {
+            @Override
+            protected MessageHandler getMessageHandler() {
+                MessageHandler handler = super.getMessageHandler();
+                handler.setFlushConsolidation(10, 1000);
+                return handler;
+            }
+        };
+        try {
+            ArrayBlockingQueue<MockMessage> receivingQueue = new ArrayBlockingQueue<>(100);
+            EchoClient client = mkClient(port, codecs, receivingQueue, Fault.NEVER);
+            try {
+                MockMessage[] messages = new MockMessage[100];
+                for (int i = 0; i < messages.length; i++) {
+                    messages[i] = new MockMessage("msg" + i);
+                }
+
+                Thread thread = new Thread(() -> {
+                    for (MockMessage message : messages) {
+                        client.sendMessage(message);
+                    }
+                });
+
+                thread.start();
+
+                for (MockMessage message : messages) {
+                    MockMessage reply = Uninterruptibly.call(() -> receivingQueue.poll(1000, TimeUnit.MILLISECONDS));
+
+                    assertNotNull(reply);
+                    assertEquals(message.message, reply.message);
+                }
+
+            } finally {
+                client.close();
+            }
+
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testSendDuringHandshake() throws Exception {
+        PortFinder portFinder = new PortFinder();
+        int port = portFinder.getPort();
+
+        Map<Short, MessageCodec> codecs = new HashMap<>();
+        codecs.put((short) 0, new MockMessageCodec((byte) 'T', (short) 0));
+
+        // The server encodes Hello right away, and flushes it when the test releases it
+        AtomicReference<Runnable> deferredHello = new AtomicReference<>();
+        EchoServer server = new EchoServer(port, codecs, null, Fault.NEVER) {
+            @Override
+            protected MessageHandler getMessageHandler() {
+                return new EchoServerMessageHandler(codecs, null, Fault.NEVER) {
+                    @Override
+                    protected void sendHello(ChannelHandlerContext ctx) {
+                        ctx.write(new Hello(codecs.keySet(), "Hello from Server"));
+                        deferredHello.set(ctx::flush);
+                    }
+                };
+            }
+        };
+        try {
+            ArrayBlockingQueue<MockMessage> receivingQueue = new ArrayBlockingQueue<>(100);
+            CountDownLatch firstSendStarted = new CountDownLatch(1);
+            CountDownLatch firstSendReleased = new CountDownLatch(1);
+            AtomicInteger numSends = new AtomicInteger(0);
+
+            EchoClientMessageHandler clientMessageHandler =
+                new EchoClientMessageHandler(codecs, null, receivingQueue, Fault.NEVER) {
+                    @Override
+                    public boolean sendMessage(Message msg, boolean flush) {
+                        int n = numSends.incrementAndGet();
+                        if (n == 1) {
+                            // Hold the first message until the other messages are queued
+                            firstSendStarted.countDown();
+                            Uninterruptibly.run(firstSendReleased::await);
+                        }
+
+                        boolean sent = super.sendMessage(msg, flush);
+
+                        if (n == 2) {
+                            // The first message of a batch failed. Complete the handshake for the rest.
+                            while (deferredHello.get() == null) {
+                                Uninterruptibly.sleep(10);
+                            }
+                            deferredHello.get().run();
+                            while (getMessageCodec() == null) {
+                                Uninterruptibly.sleep(10);
+                            }
+                        }
+                        return sent;
+                    }
+                };
+
+            String host = InetAddress.getLocalHost().getHostName();
+            NetworkClient client = new NetworkClient(host, port, null) {
+                @Override
+                protected MessageHandler getMessageHandler() {
+                    return clientMessageHandler;
+                }
+            };
+            client.open();
+            try {
+                Set<String> sent = ConcurrentHashMap.newKeySet();
+                Set<String> failed = ConcurrentHashMap.newKeySet();
+                List<Thread> threads = new ArrayList<>();
+                for (int i = 0; i < 5; i++) {
+                    String text = "msg" + i;
+                    threads.add(new Thread(() -> (client.sendMessage(new MockMessage(text)) ? sent : failed).add(text)));
+                }
+
+                threads.get(0).start();
+                Uninterruptibly.run(firstSendStarted::await);
+                for (Thread thread : threads.subList(1, threads.size())) {
+                    thread.start();
+                }
+                while (client.queuedMessages() < threads.size() - 1) {
+                    Uninterruptibly.sleep(10);
+                }
+                firstSendReleased.countDown();
+
+                for (Thread thread : threads) {
+                    Uninterruptibly.run(thread::join);
+                }
+
+                // A failed call drops only its own message. The rest of the failed batch is sent in order.
+                assertEquals(2, failed.size());
+                assertEquals(3, sent.size());
+                assertEquals(0, client.queuedMessages());
+
+                Set<String> received = new HashSet<>();
+                for (int i = 0; i < sent.size(); i++) {
+                    MockMessage reply = Uninterruptibly.call(() -> receivingQueue.poll(1000, TimeUnit.MILLISECONDS));
+                    assertNotNull(reply);
+                    received.add(reply.message);
+                }
+                assertEquals(sent, received);
+
+            } finally {
+                client.close();
+            }
+
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testSendFailureInBatch() throws Exception {
+        PortFinder portFinder = new PortFinder();
+        int port = portFinder.getPort();
+
+        Map<Short, MessageCodec> codecs = new HashMap<>();
+        codecs.put((short) 0, new MockMessageCodec((byte) 'T', (short) 0));
+
+        EchoServer server = mkServer(port, codecs, Fault.NEVER);
+        try {
+            ArrayBlockingQueue<MockMessage> receivingQueue = new ArrayBlockingQueue<>(100);
+            CountDownLatch firstSendStarted = new CountDownLatch(1);
+            CountDownLatch firstSendReleased = new CountDownLatch(1);
+            AtomicInteger numSends = new AtomicInteger(0);
+            AtomicInteger numFailures = new AtomicInteger(0);
+
+            EchoClientMessageHandler clientMessageHandler =
+                new EchoClientMessageHandler(codecs, null, receivingQueue, Fault.NEVER) {
+                    @Override
+                    public boolean sendMessage(Message msg, boolean flush) {
+                        if (numSends.incrementAndGet() == 1) {
+                            // Hold the first message until the other messages are queued
+                            firstSendStarted.countDown();
+                            Uninterruptibly.run(firstSendReleased::await);
+                        }
+
+                        // The first message of the second batch fails once. The other messages are sent.
+                        // A real failure means the channel is closed, so every message is flushed here.
+                        if (((MockMessage) msg).message.equals("msg1") && numFailures.getAndIncrement() == 0) {
+                            return false;
+                        }
+                        return super.sendMessage(msg, true);
+                    }
+                };
+
+            String host = InetAddress.getLocalHost().getHostName();
+            NetworkClient client = new NetworkClient(host, port, null) {
+                @Override
+                protected MessageHandler getMessageHandler() {
+                    return clientMessageHandler;
+                }
+            };
+            client.open();
+            try {
+                while (clientMessageHandler.getMessageCodec() == null) {
+                    Uninterruptibly.sleep(10);
+                }
+
+                Map<String, Boolean> results = new ConcurrentHashMap<>();
+                List<Thread> threads = new ArrayList<>();
+                for (int i = 0; i < 3; i++) {
+                    String text = "msg" + i;
+                    threads.add(new Thread(() -> results.put(text, client.sendMessage(new MockMessage(text)))));
+                }
+
+                threads.get(0).start();
+                Uninterruptibly.run(firstSendStarted::await);
+                for (int i = 1; i < threads.size(); i++) {
+                    threads.get(i).start();
+                    // Queue the messages in order. The first message is counted until it is sent.
+                    while (client.queuedMessages() < i + 1) {
+                        Uninterruptibly.sleep(10);
+                    }
+                }
+                firstSendReleased.countDown();
+
+                for (Thread thread : threads) {
+                    Uninterruptibly.run(thread::join);
+                }
+
+                assertTrue(results.get("msg0"));
+                assertEquals(0, client.queuedMessages());
+
+                // A call reports the outcome of its own message, whichever call sent it
+                Set<String> sent = new HashSet<>();
+                for (Map.Entry<String, Boolean> entry : results.entrySet()) {
+                    if (entry.getValue()) {
+                        sent.add(entry.getKey());
+                    }
+                }
+                Set<String> received = new HashSet<>();
+                for (int i = 0; i < sent.size(); i++) {
+                    MockMessage reply = Uninterruptibly.call(() -> receivingQueue.poll(1000, TimeUnit.MILLISECONDS));
+                    assertNotNull(reply);
+                    received.add(reply.message);
+                }
+                assertEquals(sent, received);
+                assertNull(receivingQueue.poll(100, TimeUnit.MILLISECONDS));
+
+            } finally {
+                client.close();
+            }
+
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        PortFinder portFinder = new PortFinder();
+        int port = portFinder.getPort();
+
+        Map<Short, MessageCodec> codecs = new HashMap<>();
+
+        codecs.put((short) 0, new MockMessageCodec((byte) 'T', (short) 0));
+        MetricRegistry registry = MetricRegistry.getInstance();
+        String group = "NetworkClientServerTest.testMetrics";
+        NetworkMetrics metrics = new NetworkMetrics(registry, group);
+        EchoServer server = new EchoServer(port, codecs, null, Fault.NEVER) {
+            @Override
+            protected MessageHandler getMessageHandler() {
+                MessageHandler handler = super.getMessageHandler();
+                handler.setMetrics(metrics);
+                return handler;
+            }
+        };
+        try {
+            ArrayBlockingQueue<MockMessage> receivingQueue = new ArrayBlockingQueue<>(100);
+            EchoClient client = mkClient(port, codecs, receivingQueue, Fault.NEVER);
+            try {
+                int numMessages = 100;
+                for (int i = 0; i < numMessages; i++) {
+                    client.sendMessage(new MockMessage("msg" + i));
+                }
+
+                for (int i = 0; i < numMessages; i++) {
+                    MockMessage reply = Uninterruptibly.call(() -> receivingQueue.poll(1000, TimeUnit.MILLISECONDS));
+                    assertNotNull(reply);
+                }
+
+                String codecName = "MockMessageCodec-v0";
+                assertEquals(numMessages, registry.meter(group, codecName + ".messages-in").getCount());
+                assertEquals(numMessages, registry.meter(group, codecName + ".messages-out").getCount());
+                assertTrue(registry.meter(group, codecName + ".bytes-in").getCount() > numMessages * 7);
+                assertTrue(registry.meter(group, codecName + ".bytes-out").getCount() > numMessages * 7);
+                assertEquals(numMessages, registry.timer(group, codecName + ".decode-time").getCount());
+                assertEquals(numMessages, registry.timer(group, codecName + ".encode-time").getCount());
+                assertEquals(numMessages, registry.timer(group, "processor-queue-time").getCount());
+                assertEquals(numMessages, registry.histogram(group, "processor-queue-depth").getCount());
+                assertEquals(0, registry.counter(group, "inbound-queued-messages").getCount());
+
+            } finally {
+                client.close();
+            }
+
+        } finally {
+            server.close();
+            registry.removeMatching((id, metric) -> id.getGroup().equals(group));
+        }
+    }
+
+    @Test
+    public void testCompactEncoding() throws Exception {
+        Map<Short, MessageCodec> codecs = new HashMap<>();
+        codecs.put((short) 0, new MockMessageCodec((byte) 'T', (short) 0));
+
+        boolean[][] cases = {{true, true}, {true, false}, {false, true}};
+        for (boolean[] compact : cases) {
+            boolean serverCompact = compact[0];
+            boolean clientCompact = compact[1];
+
+            int port = new PortFinder().getPort();
+            EchoServer server = new EchoServer(port, codecs, null, Fault.NEVER) {
+                @Override
+                protected MessageHandler getMessageHandler() {
+                    MessageHandler handler = super.getMessageHandler();
+                    if (serverCompact) {
+                        handler.enableCompactEncoding();
+                    }
+                    return handler;
+                }
+            };
+            try {
+                ArrayBlockingQueue<MockMessage> receivingQueue = new ArrayBlockingQueue<>(100);
+                EchoClient client = mkClient(port, codecs, receivingQueue, Fault.NEVER, null, handler -> {
+                    if (clientCompact) {
+                        handler.enableCompactEncoding();
+                    }
+                });
+                try {
+                    // The compact encoding is used only if both ends enable it
+                    assertEquals(serverCompact && clientCompact, client.getMessageHandler().isCompactEncoding());
+
+                    for (int i = 0; i < 100; i++) {
+                        client.sendMessage(new MockMessage("msg" + i));
+                    }
+
+                    for (int i = 0; i < 100; i++) {
+                        MockMessage reply = Uninterruptibly.call(() -> receivingQueue.poll(1000, TimeUnit.MILLISECONDS));
+                        assertNotNull(reply);
+                        assertEquals("msg" + i, reply.message);
+                    }
+
+                } finally {
+                    client.close();
+                }
+
+            } finally {
+                server.close();
+            }
+        }
+    }
+
+    @Test
+    public void testStringDictionary() throws Exception {
+        PortFinder portFinder = new PortFinder();
+        int port = portFinder.getPort();
+
+        Map<Short, MessageCodec> codecs = new HashMap<>();
+        codecs.put((short) 0, new MockMessageCodec((byte) 'T', (short) 0));
+
+        EchoServer server = new EchoServer(port, codecs, null, Fault.NEVER) {
+            @Override
+            protected MessageHandler getMessageHandler() {
+                MessageHandler handler = super.getMessageHandler();
+                handler.enableStringDictionary();
+                handler.enableCompactEncoding();
+                return handler;
+            }
+        };
+        try {
+            ArrayBlockingQueue<MockMessage> receivingQueue = new ArrayBlockingQueue<>(100);
+            EchoClient client = mkClient(port, codecs, receivingQueue, Fault.NEVER, null, handler -> {
+                handler.enableStringDictionary();
+                handler.enableCompactEncoding();
+            });
+            try {
+                assertTrue(client.getMessageHandler().isStringDictionary());
+
+                // Repeat a few strings
+                for (int i = 0; i < 100; i++) {
+                    client.sendMessage(new MockMessage("msg" + (i % 5)));
+                }
+
+                for (int i = 0; i < 100; i++) {
+                    MockMessage reply = Uninterruptibly.call(() -> receivingQueue.poll(1000, TimeUnit.MILLISECONDS));
+                    assertNotNull(reply);
+                    assertEquals("msg" + (i % 5), reply.message);
+                }
+
+            } finally {
+                client.close();
+            }
+
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        Map<Short, MessageCodec> codecs = new HashMap<>();
+        codecs.put((short) 0, new MockMessageCodec((byte) 'T', (short) 0));
+
+        FrameCompression[] all = FrameCompression.values();
+        FrameCompression[] deflate = {FrameCompression.DEFLATE};
+
+        // {server algorithms, client algorithms, expected}, null means compression is not enabled
+        Object[][] cases = {
+            {all, all, FrameCompression.SNAPPY},
+            {deflate, all, FrameCompression.DEFLATE},
+            {all, null, null},
+            {null, deflate, null},
+        };
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("compressible ");
+        }
+        String largeText = sb.toString();
+
+        // Larger than the chunk size of Snappy
+        sb.setLength(0);
+        for (int i = 0; i < 10000; i++) {
+            sb.append("compressible ").append(i);
+        }
+        String hugeText = sb.toString();
+        String[] texts = {"msg", largeText, hugeText};
+
+        for (Object[] c : cases) {
+            FrameCompression[] serverAlgorithms = (FrameCompression[]) c[0];
+            FrameCompression[] clientAlgorithms = (FrameCompression[]) c[1];
+
+            int port = new PortFinder().getPort();
+            EchoServer server = new EchoServer(port, codecs, null, Fault.NEVER) {
+                @Override
+                protected MessageHandler getMessageHandler() {
+                    MessageHandler handler = super.getMessageHandler();
+                    if (serverAlgorithms != null) {
+                        handler.enableCompression(100, serverAlgorithms);
+                    }
+                    return handler;
+                }
+            };
+            try {
+                ArrayBlockingQueue<MockMessage> receivingQueue = new ArrayBlockingQueue<>(100);
+                EchoClient client = mkClient(port, codecs, receivingQueue, Fault.NEVER, null, handler -> {
+                    if (clientAlgorithms != null) {
+                        handler.enableCompression(100, clientAlgorithms);
+                    }
+                });
+                try {
+                    assertEquals(c[2], client.getMessageHandler().compression());
+
+                    for (int i = 0; i < 100; i++) {
+                        // Mix messages below and above the threshold
+                        client.sendMessage(new MockMessage(texts[i % texts.length] + i));
+                    }
+
+                    for (int i = 0; i < 100; i++) {
+                        // Huge messages take a while to compress on a busy machine
+                        MockMessage reply = Uninterruptibly.call(() -> receivingQueue.poll(3000, TimeUnit.MILLISECONDS));
+                        assertNotNull(reply);
+                        assertEquals(texts[i % texts.length] + i, reply.message);
+                    }
+
+                } finally {
+                    client.close();
+                }
+
+            } finally {
+                server.close();
+            }
+        }
+    }
+
+    @Test
+    public void testSharedEventLoopGroup() throws Exception {
+        PortFinder portFinder = new PortFinder();
+        int port = portFinder.getPort();
+
+        Map<Short, MessageCodec> codecs = new HashMap<>();
+
+        codecs.put((short) 0, new MockMessageCodec((byte) 'T', (short) 0));
+        EchoServer server = mkServer(port, codecs, Fault.NEVER);
+        EventLoopGroup group = new NioEventLoopGroup(1);
+        try {
+            EchoClient[] clients = new EchoClient[3];
+            ArrayBlockingQueue<MockMessage> receivingQueue = new ArrayBlockingQueue<>(100);
+            for (int i = 0; i < clients.length; i++) {
+                clients[i] = mkClient(port, codecs, receivingQueue, Fault.NEVER, group);
+            }
+
+            for (int i = 0; i < clients.length; i++) {
+                MockMessage message = new MockMessage("msg" + i);
+                clients[i].sendMessage(message);
+
+                MockMessage reply = Uninterruptibly.call(() -> receivingQueue.poll(1000, TimeUnit.MILLISECONDS));
+                assertNotNull(reply);
+                assertEquals(message.message, reply.message);
+            }
+
+            for (EchoClient client : clients) {
+                client.close();
+            }
+
+            // The shared group is not shut down by clients
+            assertFalse(group.isShuttingDown());
+
+        } finally {
+            group.shutdownGracefully();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testClientPool() throws Exception {
+        PortFinder portFinder = new PortFinder();
+        int port = portFinder.getPort();
+
+        Map<Short, MessageCodec> codecs = new HashMap<>();
+
+        codecs.put((short) 0, new MockMessageCodec((byte) 'T', (short) 0));
+        EchoServer server = mkServer(port, codecs, Fault.NEVER);
+        try {
+            int numKeys = 5;
+            ArrayBlockingQueue<MockMessage> receivingQueue = new ArrayBlockingQueue<>(100);
+            NetworkClientPool pool = new NetworkClientPool(3, NetworkClientSelector.sticky(NetworkClientSelector.roundRobin())) {
+                @Override
+                protected NetworkClient newClient(int index) {
+                    try {
+                        return mkClient(port, codecs, receivingQueue, Fault.NEVER);
+                    } catch (Exception ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+
+                @Override
+                protected Integer extractProcessorId(Message msg) {
+                    return Integer.parseInt(((MockMessage) msg).message.split(":")[0]);
+                }
+            };
+            pool.open();
+            try {
+                assertEquals(3, pool.clients().size());
+
+                MockMessage[] messages = new MockMessage[100];
+                for (int i = 0; i < messages.length; i++) {
+                    messages[i] = new MockMessage((i % numKeys) + ":" + i);
+                }
+
+                Thread thread = new Thread(() -> {
+                    for (MockMessage message : messages) {
+                        pool.sendMessage(message);
+                    }
+                });
+
+                thread.start();
+
+                // Replies of the same key are received in order.
+                int[] lastSeen = new int[numKeys];
+                Arrays.fill(lastSeen, -1);
+                for (int i = 0; i < messages.length; i++) {
+                    MockMessage reply = Uninterruptibly.call(() -> receivingQueue.poll(1000, TimeUnit.MILLISECONDS));
+
+                    assertNotNull(reply);
+                    String[] parts = reply.message.split(":");
+                    int key = Integer.parseInt(parts[0]);
+                    int seq = Integer.parseInt(parts[1]);
+                    assertTrue(lastSeen[key] < seq);
+                    lastSeen[key] = seq;
+                }
+
+            } finally {
+                pool.close();
+            }
+
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testClientPoolEndpointDown() throws Exception {
+        PortFinder portFinder = new PortFinder();
+        int port = portFinder.getPort();
+        int downPort = portFinder.getPort();
+
+        Map<Short, MessageCodec> codecs = new HashMap<>();
+
+        codecs.put((short) 0, new MockMessageCodec((byte) 'T', (short) 0));
+        EchoServer server = mkServer(port, codecs, Fault.NEVER);
+        try {
+            String host = InetAddress.getLocalHost().getHostName();
+            ArrayBlockingQueue<MockMessage> receivingQueue = new ArrayBlockingQueue<>(100);
+            List<NetworkClient> created = new ArrayList<>();
+            NetworkClientPool pool = new NetworkClientPool(3, NetworkClientSelector.roundRobin()) {
+                @Override
+                protected NetworkClient newClient(int index) {
+                    // Nothing listens on the port of the last client
+                    NetworkClient client = new NetworkClient(host, index < 2 ? port : downPort, null) {
+                        @Override
+                        protected MessageHandler getMessageHandler() {
+                            return new EchoClientMessageHandler(codecs, null, receivingQueue, Fault.NEVER);
+                        }
+                    };
+                    created.add(client);
+                    return client;
+                }
+            };
+
+            try {
+                pool.open();
+                fail();
+            } catch (ConnectFailedException ex) {
+                // Expected
+            }
+
+            // The clients connected to the server are closed, too
+            assertEquals(3, created.size());
+            for (NetworkClient client : created) {
+                assertTrue(client.isDisconnected());
+            }
+            assertTrue(pool.clients().isEmpty());
+            assertFalse(pool.sendMessage(new MockMessage("msg")));
+
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testClientPoolReconnect() throws Exception {
+        PortFinder portFinder = new PortFinder();
+        int port = portFinder.getPort();
+
+        Map<Short, MessageCodec> codecs = new HashMap<>();
+
+        codecs.put((short) 0, new MockMessageCodec((byte) 'T', (short) 0));
+        EchoServer server = mkServer(port, codecs, Fault.NEVER);
+        try {
+            ArrayBlockingQueue<MockMessage> receivingQueue = new ArrayBlockingQueue<>(100);
+            AtomicInteger numCreated = new AtomicInteger(0);
+            long reconnectIntervalMs = 100L;
+            NetworkClientPool pool = new NetworkClientPool(2, NetworkClientSelector.roundRobin(), reconnectIntervalMs) {
+                @Override
+                protected NetworkClient newClient(int index) {
+                    numCreated.incrementAndGet();
+                    try {
+                        return mkClient(port, codecs, receivingQueue, Fault.NEVER);
+                    } catch (Exception ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            };
+            pool.open();
+            try {
+                NetworkClient failed = pool.clients().get(0);
+                failed.close();
+
+                // The client is not replaced within the reconnect interval
+                assertTrue(pool.sendMessage(new MockMessage("msg0")));
+                assertEquals(2, numCreated.get());
+                assertSame(failed, pool.clients().get(0));
+
+                Uninterruptibly.sleep(reconnectIntervalMs);
+
+                // The client is replaced, and messages are sent through both clients again
+                for (int i = 1; i < 5; i++) {
+                    assertTrue(pool.sendMessage(new MockMessage("msg" + i)));
+                }
+                assertEquals(3, numCreated.get());
+                assertNotSame(failed, pool.clients().get(0));
+                for (NetworkClient client : pool.clients()) {
+                    assertTrue(client.isValid());
+                }
+
+                for (int i = 0; i < 5; i++) {
+                    MockMessage reply = Uninterruptibly.call(() -> receivingQueue.poll(1000, TimeUnit.MILLISECONDS));
+                    assertNotNull(reply);
+                }
+
+            } finally {
+                pool.close();
+            }
+
+            // A closed pool does not replace clients
+            assertTrue(pool.clients().isEmpty());
+            assertFalse(pool.sendMessage(new MockMessage("closed")));
+            assertEquals(3, numCreated.get());
+
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testSendMessageAsync() throws Exception {
+        PortFinder portFinder = new PortFinder();
+        int port = portFinder.getPort();
+
+        Map<Short, MessageCodec> codecs = new HashMap<>();
+
+        codecs.put((short) 0, new MockMessageCodec((byte) 'T', (short) 0));
+        EchoServer server = mkServer(port, codecs, Fault.NEVER);
+        try {
+            ArrayBlockingQueue<MockMessage> receivingQueue = new ArrayBlockingQueue<>(100);
+            EchoClient client = mkClient(port, codecs, receivingQueue, Fault.NEVER);
+            try {
+                MockMessage[] messages = new MockMessage[100];
+                CompletableFuture<?>[] futures = new CompletableFuture<?>[messages.length];
+                for (int i = 0; i < messages.length; i++) {
+                    messages[i] = new MockMessage("msg" + i);
+                    futures[i] = client.sendMessageAsync(messages[i]);
+                }
+
+                CompletableFuture.allOf(futures).get(1000, TimeUnit.MILLISECONDS);
+
+                for (MockMessage message : messages) {
+                    MockMessage reply = Uninterruptibly.call(() -> receivingQueue.poll(1000, TimeUnit.MILLISECONDS));
+
+                    assertNotNull(reply);
+                    assertEquals(message.message, reply.message);
+                }
+
+            } finally {
+                client.close();
+            }
+
+            try {
+                client.sendMessageAsync(new MockMessage("closed")).get();
+                fail();
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof DisconnectedException);
+            }
+
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testSendRequest() throws Exception {
+        PortFinder portFinder = new PortFinder();
+        int port = portFinder.getPort();
+
+        Map<Short, MessageCodec> codecs = new HashMap<>();
+
+        codecs.put((short) 0, new MockMessageCodec((byte) 'T', (short) 0));
+        EchoServer server = new EchoServer(port, codecs, null, Fault.NEVER) {
+            @Override
+            protected MessageHandler getMessageHandler() {
+                MessageHandler handler = super.getMessageHandler();
+                handler.enableCorrelation();
+                return handler;
+            }
+        };
+        try {
+            ArrayBlockingQueue<MockMessage> receivingQueue = new ArrayBlockingQueue<>(100);
+            EchoClient client = mkClient(port, codecs, receivingQueue, Fault.NEVER, null,
+                handler -> handler.enableRequestTracking(10000));
+            try {
+                MessageHandler handler = client.getMessageHandler();
+                assertTrue(handler.isCorrelation());
+
+                // Pipelined requests
+                List<CompletableFuture<Message>> futures = new ArrayList<>();
+                for (int i = 0; i < 100; i++) {
+                    futures.add(client.sendRequest(new MockMessage("request" + i)));
+                }
+                for (int i = 0; i < futures.size(); i++) {
+                    Message response = futures.get(i).get(1000, TimeUnit.MILLISECONDS);
+                    assertEquals("request" + i, ((MockMessage) response).message);
+                }
+                assertEquals(0, handler.numPendingRequests());
+
+                // Plain messages are still delivered to process()
+                client.sendMessage(new MockMessage("plain"));
+                MockMessage reply = Uninterruptibly.call(() -> receivingQueue.poll(1000, TimeUnit.MILLISECONDS));
+                assertNotNull(reply);
+                assertEquals("plain", reply.message);
+
+                // Timeout
+                try {
+                    handler.sendRequest(new MockMessage(NO_REPLY), 100).get(1000, TimeUnit.MILLISECONDS);
+                    fail();
+                } catch (ExecutionException ex) {
+                    assertTrue(ex.getCause() instanceof TimeoutException);
+                }
+                assertEquals(0, handler.numPendingRequests());
+
+                // Pending requests fail on disconnect
+                CompletableFuture<Message> pending = handler.sendRequest(new MockMessage(NO_REPLY));
+                client.close();
+                try {
+                    pending.get(1000, TimeUnit.MILLISECONDS);
+                    fail();
+                } catch (ExecutionException ex) {
+                    assertTrue(ex.getCause() instanceof DisconnectedException);
+                }
+
+            } finally {
+                client.close();
+            }
+
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testCorrelationNotNegotiated() throws Exception {
+        PortFinder portFinder = new PortFinder();
+        int port = portFinder.getPort();
+
+        Map<Short, MessageCodec> codecs = new HashMap<>();
+        codecs.put((short) 0, new MockMessageCodec((byte) 'T', (short) 0));
+
+        // The server does not enable correlation
+        EchoServer server = mkServer(port, codecs, Fault.NEVER);
+        try {
+            ArrayBlockingQueue<MockMessage> receivingQueue = new ArrayBlockingQueue<>(100);
+            EchoClient client = mkClient(port, codecs, receivingQueue, Fault.NEVER, null,
+                handler -> handler.enableRequestTracking(10000));
+            try {
+                MessageHandler handler = client.getMessageHandler();
+                assertFalse(handler.isCorrelation());
+
+                // Plain messages are sent without the envelope
+                for (int i = 0; i < 10; i++) {
+                    client.sendMessage(new MockMessage("msg" + i));
+                }
+                for (int i = 0; i < 10; i++) {
+                    MockMessage reply = Uninterruptibly.call(() -> receivingQueue.poll(1000, TimeUnit.MILLISECONDS));
+                    assertNotNull(reply);
+                    assertEquals("msg" + i, reply.message);
+                }
+
+                try {
+                    client.sendRequest(new MockMessage("request")).get(1000, TimeUnit.MILLISECONDS);
+                    fail();
+                } catch (ExecutionException ex) {
+                    assertTrue(ex.getCause() instanceof IllegalStateException);
+                }
+                assertEquals(0, handler.numPendingRequests());
+
+            } finally {
+                client.close();
+            }
+
+        } finally {
+            server.close();
+        }
+    }
+
     @Test
     public void testOlderClientVersion() throws Exception {
         PortFinder portFinder = new PortFinder();
@@ -411,6 +1295,13 @@ public class NetworkClientServerTest {
                     sendMessage(msg, true);
                     break;
 
+                case MessageType.CORRELATED:
+                    CorrelatedMessage request = (CorrelatedMessage) msg;
+                    if (!NO_REPLY.equals(((MockMessage) request.payload).message)) {
+                        sendMessage(request.reply(request.payload), true);
+                    }
+                    break;
+
                 default:
                     throw new IllegalArgumentException("message not handled: msg=" + msg);
             }
@@ -430,6 +1321,27 @@ public class NetworkClientServerTest {
         final Map<Short, MessageCodec> codecs,
         final ArrayBlockingQueue<MockMessage> receivingQueue,
         final Fault fault
+    ) throws Exception {
+        return mkClient(port, codecs, receivingQueue, fault, null);
+    }
+
+    private EchoClient mkClient(
+        final int port,
+        final Map<Short, MessageCodec> codecs,
+        final ArrayBlockingQueue<MockMessage> receivingQueue,
+        final Fault fault,
+        final EventLoopGroup group
+    ) throws Exception {
+        return mkClient(port, codecs, receivingQueue, fault, group, handler -> { });
+    }
+
+    private EchoClient mkClient(
+        final int port,
+        final Map<Short, MessageCodec> codecs,
+        final ArrayBlockingQueue<MockMessage> receivingQueue,
+        final Fault fault,
+        final EventLoopGroup group,
+        final Consumer<MessageHandler> configure
     ) throws Exception {
         State<ClientState> clientState = new State<>(ClientState.NEW);
 
@@ -455,7 +1367,8 @@ public class NetworkClientServerTest {
         // Don't use "localhost". Always use InetAddress.getLocalHost().getHostName() for test stability.
         String host = InetAddress.getLocalHost().getHostName();
         EchoClientMessageHandler clientMessageHandler = new EchoClientMessageHandler(codecs, callbacks, receivingQueue, fault);
-        EchoClient client = new EchoClient(host, port) {
+        configure.accept(clientMessageHandler);
+        EchoClient client = new EchoClient(host, port, group) {
             @Override
             protected MessageHandler getMessageHandler() {
                 return clientMessageHandler;
@@ -486,8 +1399,8 @@ public class NetworkClientServerTest {
 
     private abstract static class EchoClient extends NetworkClient {
 
-        EchoClient(String host, int port) {
-            super(host, port, null);
+        EchoClient(String host, int port, EventLoopGroup group) {
+            super(host, port, null, group != null ? new TransportConfig(Transport.of(group)) : TransportConfig.DEFAULT, group);
         }
 
         @Override
@@ -0,0 +1,124 @@
+package com.wepay.riff.network;
+
+import com.wepay.zktools.util.Uninterruptibly;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PendingWritesTest {
+
+    private static final int MAX_PENDING_WRITES = 10;
+
+    @Test
+    public void testMaxPendingWrites() throws Exception {
+        MockMessageCodec codec = new MockMessageCodec((byte) 'T', (short) 0);
+        Map<Short, MessageCodec> codecs = new HashMap<>();
+        codecs.put(codec.version(), codec);
+
+        MessageHandler handler = new MessageHandler(codecs, "Hello", null, 10, 20) {
+            @Override
+            protected void process(Message msg) {
+                // Do nothing
+            }
+        };
+        // Any unflushed message makes the channel unwritable
+        handler.setWriteBufferWaterMark(1, 2);
+        handler.setMaxPendingWrites(MAX_PENDING_WRITES);
+
+        FlushGate gate = new FlushGate();
+        EventLoopGroup group = new DefaultEventLoopGroup(1);
+        try {
+            LocalAddress address = new LocalAddress(PendingWritesTest.class.getSimpleName());
+            Channel server = new ServerBootstrap()
+                .group(group)
+                .channel(LocalServerChannel.class)
+                .childHandler(new HelloPeer(codec))
+                .bind(address).sync().channel();
+
+            Channel client = new Bootstrap()
+                .group(group)
+                .channel(LocalChannel.class)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(gate);
+                        ch.pipeline().addLast("helloDecoder", new MessageDecoder(HelloCodec.INSTANCE));
+                        ch.pipeline().addLast("helloEncoder", new MessageEncoder(HelloCodec.INSTANCE));
+                        ch.pipeline().addLast(handler);
+                    }
+                })
+                .connect(address).sync().channel();
+
+            // Hello from the handler is not flushed, so the channel stays unwritable
+            while (handler.getMessageCodec() == null || client.isWritable()) {
+                Uninterruptibly.sleep(10);
+            }
+
+            CompletableFuture<?>[] futures = new CompletableFuture<?>[MAX_PENDING_WRITES];
+            for (int i = 0; i < futures.length; i++) {
+                futures[i] = handler.sendMessageAsync(new MockMessage("msg" + i));
+            }
+            assertEquals(MAX_PENDING_WRITES, handler.numPendingWrites());
+
+            try {
+                handler.sendMessageAsync(new MockMessage("rejected")).get();
+                fail();
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof PendingWritesFullException);
+            }
+            assertEquals(MAX_PENDING_WRITES, handler.numPendingWrites());
+            for (CompletableFuture<?> future : futures) {
+                assertFalse(future.isDone());
+            }
+
+            // The channel becomes writable, and the held messages are written
+            gate.open = true;
+            client.flush();
+            CompletableFuture.allOf(futures).get(1000, TimeUnit.MILLISECONDS);
+            assertEquals(0, handler.numPendingWrites());
+
+            client.close().sync();
+            server.close().sync();
+
+        } finally {
+            group.shutdownGracefully().sync();
+        }
+    }
+
+    /**
+     * Holds flushes until opened.
+     */
+    private static class FlushGate extends ChannelOutboundHandlerAdapter {
+
+        private volatile boolean open = false;
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) throws Exception {
+            if (open) {
+                super.flush(ctx);
+            }
+        }
+
+    }
+
+}
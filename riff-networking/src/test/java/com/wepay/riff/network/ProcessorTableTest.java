@@ -0,0 +1,73 @@
+package com.wepay.riff.network;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ProcessorTableTest {
+
+    private static final int NUM_PROCESSORS = 1000;
+
+    @Test
+    public void test() {
+        ProcessorTable table = new ProcessorTable();
+        MessageProcessor[] processors = new MessageProcessor[NUM_PROCESSORS];
+
+        for (int i = 0; i < NUM_PROCESSORS; i++) {
+            // Include negative and colliding ids
+            int processorId = (i - NUM_PROCESSORS / 2) * 16;
+            processors[i] = mkProcessor();
+
+            assertNull(table.get(processorId));
+            table.put(processorId, processors[i]);
+            assertEquals(i + 1, table.size());
+        }
+
+        for (int i = 0; i < NUM_PROCESSORS; i++) {
+            assertSame(processors[i], table.get((i - NUM_PROCESSORS / 2) * 16));
+        }
+        assertEquals(new HashSet<>(Arrays.asList(processors)), new HashSet<>(Arrays.asList(table.processors())));
+
+        Set<Integer> ids = new HashSet<>();
+        for (int processorId : table.processorIds()) {
+            ids.add(processorId);
+        }
+        assertEquals(NUM_PROCESSORS, ids.size());
+
+        // Remove only if mapped to the processor
+        int processorId = -NUM_PROCESSORS / 2 * 16;
+        assertFalse(table.remove(processorId, mkProcessor()));
+        assertTrue(table.remove(processorId, processors[0]));
+        assertFalse(table.remove(processorId, processors[0]));
+        assertNull(table.get(processorId));
+        assertEquals(NUM_PROCESSORS - 1, table.size());
+
+        // Other processors are still found after the removal
+        for (int i = 1; i < NUM_PROCESSORS; i++) {
+            assertSame(processors[i], table.get((i - NUM_PROCESSORS / 2) * 16));
+        }
+
+        // Replace
+        MessageProcessor processor = mkProcessor();
+        table.put(0, processor);
+        assertSame(processor, table.get(0));
+        assertEquals(NUM_PROCESSORS - 1, table.size());
+    }
+
+    private static MessageProcessor mkProcessor() {
+        return new MessageProcessor(new Throttling(Integer.MAX_VALUE, Integer.MAX_VALUE), null) {
+            @Override
+            protected void processMessage(Message msg) {
+            }
+        };
+    }
+
+}
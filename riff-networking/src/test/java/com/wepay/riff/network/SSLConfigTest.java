@@ -1,13 +1,27 @@
 package com.wepay.riff.network;
 
 import com.wepay.riff.config.ConfigException;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslProvider;
 import org.junit.Test;
 
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeFalse;
 
 public class SSLConfigTest {
 
@@ -68,6 +82,153 @@ public class SSLConfigTest {
         value = config.get(SSLConfig.TRUST_MANAGER_ALGORITHM);
         assertTrue(value instanceof String);
         assertEquals(SSLConfig.DEFAULT_TRUST_MANAGER_ALGORITHM, value);
+
+        value = config.get(SSLConfig.PROVIDER);
+        assertTrue(value instanceof String);
+        assertEquals(SSLConfig.DEFAULT_PROVIDER, value);
+
+        assertFalse(config.getOpt(SSLConfig.CIPHERS).isPresent());
+        assertFalse(config.getOpt(SSLConfig.PROTOCOLS).isPresent());
+
+        value = config.get(SSLConfig.SESSION_CACHE_SIZE);
+        assertTrue(value instanceof Long);
+        assertEquals(SSLConfig.DEFAULT_SESSION_CACHE_SIZE, value);
+
+        value = config.get(SSLConfig.SESSION_TIMEOUT);
+        assertTrue(value instanceof Long);
+        assertEquals(SSLConfig.DEFAULT_SESSION_TIMEOUT, value);
+
+        value = config.get(SSLConfig.SESSION_TICKETS);
+        assertTrue(value instanceof Boolean);
+        assertEquals(SSLConfig.DEFAULT_SESSION_TICKETS, value);
+    }
+
+    @Test
+    public void testInvalidValues() {
+        Properties props = new Properties();
+        props.setProperty(SSLConfig.PROVIDER, "boringssl");
+        try {
+            new SSLConfig("", props);
+            fail();
+        } catch (ConfigException ex) {
+            // Ignore
+        }
+
+        props = new Properties();
+        props.setProperty(SSLConfig.SESSION_CACHE_SIZE, "-1");
+        try {
+            new SSLConfig("", props);
+            fail();
+        } catch (ConfigException ex) {
+            // Ignore
+        }
+    }
+
+    @Test
+    public void testContextOptions() throws Exception {
+        List<String> ciphers = Arrays.asList(
+            "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+            "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384"
+        );
+
+        Properties props = new Properties();
+        props.setProperty(SSLConfig.PROVIDER, SSLConfig.PROVIDER_JDK);
+        props.setProperty(SSLConfig.CIPHERS, " " + ciphers.get(0) + ", " + ciphers.get(1) + ",");
+        props.setProperty(SSLConfig.PROTOCOLS, "TLSv1.2");
+        props.setProperty(SSLConfig.SESSION_CACHE_SIZE, "100");
+        props.setProperty(SSLConfig.SESSION_TIMEOUT, "60");
+        // Ignored by the JDK provider
+        props.setProperty(SSLConfig.SESSION_TICKETS, "true");
+        SSLConfig config = new SSLConfig("", props);
+
+        assertEquals(ciphers, config.get(SSLConfig.CIPHERS));
+        assertEquals(SslProvider.JDK, config.sslProvider());
+
+        SslContext serverSslCtx = ServerSSL.createContext(config);
+        SslContext clientSslCtx = ClientSSL.createContext(config);
+
+        for (SslContext sslCtx : Arrays.asList(serverSslCtx, clientSslCtx)) {
+            assertEquals(ciphers, sslCtx.cipherSuites());
+            assertEquals(100L, sslCtx.sessionCacheSize());
+            assertEquals(60L, sslCtx.sessionTimeout());
+        }
+
+        // The second handshake with the same peer resumes the session
+        SSLSession first = handshake(
+            clientSslCtx.newEngine(ByteBufAllocator.DEFAULT, "localhost", 12345),
+            serverSslCtx.newEngine(ByteBufAllocator.DEFAULT)
+        );
+        SSLSession second = handshake(
+            clientSslCtx.newEngine(ByteBufAllocator.DEFAULT, "localhost", 12345),
+            serverSslCtx.newEngine(ByteBufAllocator.DEFAULT)
+        );
+
+        assertEquals("TLSv1.2", first.getProtocol());
+        assertTrue(ciphers.contains(first.getCipherSuite()));
+        assertArrayEquals(first.getId(), second.getId());
+    }
+
+    @Test
+    public void testOpenSslNotAvailable() throws Exception {
+        assumeFalse(OpenSsl.isAvailable());
+
+        // auto falls back to the JDK provider
+        SSLConfig config = new SSLConfig("", new Properties());
+        assertEquals(SslProvider.JDK, config.sslProvider());
+
+        Properties props = new Properties();
+        props.setProperty(SSLConfig.PROVIDER, SSLConfig.PROVIDER_OPENSSL);
+        config = new SSLConfig("", props);
+        try {
+            ServerSSL.createContext(config);
+            fail();
+        } catch (SSLException ex) {
+            // Ignore
+        }
+    }
+
+    private static SSLSession handshake(SSLEngine client, SSLEngine server) throws SSLException {
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        ByteBuffer clientToServer = ByteBuffer.allocate(client.getSession().getPacketBufferSize());
+        ByteBuffer serverToClient = ByteBuffer.allocate(server.getSession().getPacketBufferSize());
+        ByteBuffer clientApp = ByteBuffer.allocate(client.getSession().getApplicationBufferSize());
+        ByteBuffer serverApp = ByteBuffer.allocate(server.getSession().getApplicationBufferSize());
+
+        client.beginHandshake();
+        server.beginHandshake();
+
+        for (int i = 0; i < 100; i++) {
+            if (isHandshakeDone(client) && isHandshakeDone(server)) {
+                return client.getSession();
+            }
+            client.wrap(empty, clientToServer);
+            runDelegatedTasks(client);
+            server.wrap(empty, serverToClient);
+            runDelegatedTasks(server);
+
+            clientToServer.flip();
+            server.unwrap(clientToServer, serverApp);
+            clientToServer.compact();
+            runDelegatedTasks(server);
+
+            serverToClient.flip();
+            client.unwrap(serverToClient, clientApp);
+            serverToClient.compact();
+            runDelegatedTasks(client);
+        }
+
+        throw new AssertionError("handshake did not complete");
+    }
+
+    private static boolean isHandshakeDone(SSLEngine engine) {
+        return engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+    }
+
+    private static void runDelegatedTasks(SSLEngine engine) {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
     }
 
 }
@@ -55,6 +55,101 @@ public class ThrottlingTest {
         assertEquals(0, throttling.size());
     }
 
+    @Test
+    public void testBytePolicy() {
+        Throttling throttling = new Throttling(LOW_THRESHOLD, HIGH_THRESHOLD);
+        throttling.setPolicy(ThrottlingPolicy.BYTES, 1000, 2000);
+        AtomicBoolean autoRead = new AtomicBoolean();
+        throttling.setChannelConfig(mockChannelConfig(autoRead));
+
+        Message small = mkMessage(10);
+        Message large = mkMessage(1500);
+
+        // Many small messages do not throttle
+        for (int i = 0; i < 100; i++) {
+            throttling.increment(small);
+        }
+        assertEquals(1000, throttling.size());
+        assertTrue(autoRead.get());
+
+        // A large message does
+        throttling.increment(large);
+        assertEquals(2500, throttling.size());
+        assertFalse(autoRead.get());
+
+        throttling.decrement(large);
+        assertEquals(1000, throttling.size());
+        assertFalse(autoRead.get());
+
+        throttling.decrement(small);
+        assertTrue(autoRead.get());
+    }
+
+    @Test
+    public void testProcessorThrottling() {
+        Throttling throttling = new Throttling(LOW_THRESHOLD * 10, HIGH_THRESHOLD * 10);
+        throttling.setProcessorThresholds(LOW_THRESHOLD, HIGH_THRESHOLD);
+        AtomicBoolean autoRead = new AtomicBoolean();
+        throttling.setChannelConfig(mockChannelConfig(autoRead));
+
+        Throttling processor1 = throttling.newProcessorThrottling();
+        Throttling processor2 = throttling.newProcessorThrottling();
+        Message msg = mkMessage(1);
+
+        // Processors under their thresholds do not throttle the channel
+        for (int i = 0; i < HIGH_THRESHOLD; i++) {
+            processor1.increment(msg);
+            processor2.increment(msg);
+        }
+        assertEquals(HIGH_THRESHOLD * 2, throttling.size());
+        assertTrue(autoRead.get());
+
+        // A hot processor throttles the channel
+        processor1.increment(msg);
+        assertFalse(autoRead.get());
+
+        // The other processor does not unthrottle the channel
+        for (int i = 0; i < HIGH_THRESHOLD; i++) {
+            processor2.decrement(msg);
+        }
+        assertFalse(autoRead.get());
+
+        while (processor1.size() >= LOW_THRESHOLD) {
+            processor1.decrement(msg);
+        }
+        assertTrue(autoRead.get());
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        Throttling throttling = new Throttling(LOW_THRESHOLD, HIGH_THRESHOLD);
+        AtomicBoolean autoRead = new AtomicBoolean();
+        throttling.setChannelConfig(mockChannelConfig(autoRead));
+
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 100000; j++) {
+                    throttling.increment();
+                    throttling.decrement();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, throttling.size());
+        assertTrue(autoRead.get());
+    }
+
+    private static Message mkMessage(int encodedSize) {
+        Message msg = new MockMessage("");
+        msg.encodedSize(encodedSize);
+        return msg;
+    }
+
     private ChannelConfig mockChannelConfig(final AtomicBoolean autoRead) {
         return (ChannelConfig) Proxy.newProxyInstance(this.getClass().getClassLoader(),
             new Class[] {
@@ -0,0 +1,61 @@
+package com.wepay.riff.network;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TransportTest {
+
+    @Test
+    public void testResolve() {
+        assertEquals(Epoll.isAvailable() ? Transport.EPOLL : Transport.NIO, Transport.AUTO.resolve());
+        assertEquals(Transport.NIO, Transport.NIO.resolve());
+        assertEquals(Transport.EPOLL, Transport.EPOLL.resolve());
+
+        EventLoopGroup group = Transport.AUTO.newEventLoopGroup(1);
+        try {
+            if (Epoll.isAvailable()) {
+                assertTrue(group instanceof EpollEventLoopGroup);
+            } else {
+                assertTrue(group instanceof NioEventLoopGroup);
+            }
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+
+    @Test
+    public void testNio() {
+        TransportConfig config = new TransportConfig(Transport.NIO, true, true);
+
+        assertEquals(NioSocketChannel.class, config.transport.socketChannelClass());
+        assertEquals(NioServerSocketChannel.class, config.transport.serverSocketChannelClass());
+
+        // Epoll options are ignored
+        config.configure(new Bootstrap());
+        config.configure(new ServerBootstrap());
+    }
+
+    @Test
+    public void testEpollNotAvailable() {
+        if (!Epoll.isAvailable()) {
+            try {
+                new TransportConfig(Transport.EPOLL);
+                fail();
+            } catch (IllegalArgumentException ex) {
+                // OK
+            }
+        }
+    }
+
+}
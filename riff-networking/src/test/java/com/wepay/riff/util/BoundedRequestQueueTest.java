@@ -0,0 +1,344 @@
+package com.wepay.riff.util;
+
+import com.wepay.zktools.util.Uninterruptibly;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BoundedRequestQueueTest {
+
+    private static final int QUEUE_SIZE = 10;
+    private static final int NUM = 100;
+    private static final int BATCH_SIZE = 3;
+    private static final long SLEEP = 10;
+    private static final long LONG_SLEEP = 100;
+    private static final int NUM_THREADS = 4;
+    private static final int NUM_PER_THREAD = 10000;
+
+    @Test
+    public void testSingleDequeue() {
+        BoundedRequestQueue<Integer> queue = new BoundedRequestQueue<>(QUEUE_SIZE);
+
+        CountDownLatch latch = new CountDownLatch(1);
+
+        Thread writer = new Thread(() -> {
+            Uninterruptibly.run(latch::await);
+            for (int i = 0; i < NUM; i++) {
+                if (i < NUM / 2) {
+                    Uninterruptibly.sleep(SLEEP);
+                }
+
+                queue.enqueue(i);
+            }
+        });
+
+        ArrayList<Integer> dequeued = new ArrayList<>();
+
+        Thread reader = new Thread(() -> {
+            Uninterruptibly.run(latch::await);
+
+            for (int i = 0; i < NUM; i++) {
+                if (i > NUM / 2) {
+                    Uninterruptibly.sleep(SLEEP);
+                }
+
+                dequeued.add(queue.dequeue());
+            }
+        });
+
+        writer.start();
+        reader.start();
+
+        Uninterruptibly.sleep(LONG_SLEEP);
+        latch.countDown();
+
+        Uninterruptibly.run(writer::join);
+        Uninterruptibly.run(reader::join);
+
+        assertEquals(0, queue.size());
+        assertEquals(NUM, dequeued.size());
+        for (int i = 0; i < NUM; i++) {
+            assertEquals(i, (int) dequeued.get(i));
+        }
+    }
+
+    @Test
+    public void testBatchDequeue() {
+        BoundedRequestQueue<Integer> queue = new BoundedRequestQueue<>(QUEUE_SIZE);
+
+        CountDownLatch latch = new CountDownLatch(1);
+
+        Thread writer = new Thread(() -> {
+            Uninterruptibly.run(latch::await);
+            for (int i = 0; i < NUM; i++) {
+                if (i < NUM / 2) {
+                    Uninterruptibly.sleep(SLEEP);
+                }
+
+                queue.enqueue(i);
+            }
+        });
+
+        ArrayList<Integer> batchSizes = new ArrayList<>();
+        ArrayList<Integer> dequeued = new ArrayList<>();
+
+        Thread reader = new Thread(() -> {
+            Uninterruptibly.run(latch::await);
+
+            List<Integer> batch = queue.dequeue(BATCH_SIZE);
+            while (batch != null && dequeued.size() < NUM) {
+                if (batch.size() > 0 && batch.get(0) > NUM / 2) {
+                    Uninterruptibly.sleep(SLEEP);
+                }
+
+                batchSizes.add(batch.size());
+                dequeued.addAll(batch);
+
+                if (dequeued.size() < NUM) {
+                    batch = queue.dequeue(BATCH_SIZE);
+                }
+            }
+        });
+
+        writer.start();
+        reader.start();
+
+        Uninterruptibly.sleep(LONG_SLEEP);
+        latch.countDown();
+
+        Uninterruptibly.run(writer::join);
+        Uninterruptibly.run(reader::join);
+
+        assertEquals(0, queue.size());
+        assertEquals(NUM, dequeued.size());
+        for (int i = 0; i < NUM; i++) {
+            assertEquals(i, (int) dequeued.get(i));
+        }
+
+        boolean ok = false;
+        for (int batchSize : batchSizes) {
+            assertNotEquals(0, batchSize);
+            if (batchSize > 1) {
+                ok = true;
+            }
+        }
+
+        assertTrue(ok);
+    }
+
+    @Test
+    public void testToList() {
+        BoundedRequestQueue<Integer> queue = new BoundedRequestQueue<>(QUEUE_SIZE);
+
+        for (int size = 0; size < QUEUE_SIZE; size++) {
+            for (int i = 0; i < size; i++) {
+                queue.enqueue(i);
+            }
+            List<Integer> list = queue.toList();
+            assertEquals(size, list.size());
+            for (int i = 0; i < size; i++) {
+                assertEquals(i, (int) list.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testClose() {
+        BoundedRequestQueue<Integer> queue = new BoundedRequestQueue<>(QUEUE_SIZE);
+
+        CountDownLatch latch = new CountDownLatch(1);
+
+        AtomicReference<Integer> ret0 = new AtomicReference<>(-1);
+        AtomicReference<List<Integer>> ret1 = new AtomicReference<>(Collections.singletonList(-1));
+
+        Thread reader0 = new Thread(() -> {
+            Uninterruptibly.run(latch::await);
+            ret0.set(queue.dequeue());
+        });
+
+        Thread reader1 = new Thread(() -> {
+            Uninterruptibly.run(latch::await);
+            ret1.set(queue.dequeue(BATCH_SIZE));
+        });
+
+        reader0.start();
+        reader1.start();
+
+        Uninterruptibly.sleep(LONG_SLEEP);
+
+        latch.countDown();
+
+        Uninterruptibly.sleep(LONG_SLEEP);
+
+        queue.close();
+
+        Uninterruptibly.run(reader0::join);
+        Uninterruptibly.run(reader1::join);
+
+        assertEquals(0, queue.size());
+        assertNull(ret0.get());
+        assertNull(ret1.get());
+
+        assertNull(queue.dequeue());
+        assertNull(queue.dequeue(BATCH_SIZE));
+    }
+
+    @Test
+    public void testCapacity() {
+        assertEquals(1, new BoundedRequestQueue<Integer>(1).capacity());
+        assertEquals(QUEUE_SIZE, new BoundedRequestQueue<Integer>(QUEUE_SIZE).capacity());
+        assertEquals(16, new BoundedRequestQueue<Integer>(16).capacity());
+
+        // The queue holds exactly as many requests as the capacity, though the ring is rounded up to a power of two
+        for (int capacity : new int[] {1, 2, QUEUE_SIZE, 16}) {
+            BoundedRequestQueue<Integer> queue = new BoundedRequestQueue<>(capacity);
+            for (int round = 0; round < 3; round++) {
+                AtomicInteger count = new AtomicInteger(0);
+                Thread writer = new Thread(() -> {
+                    for (int i = 0; i <= capacity; i++) {
+                        queue.enqueue(i);
+                        count.incrementAndGet();
+                    }
+                });
+                writer.start();
+
+                Uninterruptibly.sleep(LONG_SLEEP);
+                assertEquals(capacity, count.get());
+                assertEquals(capacity, queue.size());
+
+                ArrayList<Integer> drained = new ArrayList<>();
+                for (int i = 0; i <= capacity; i++) {
+                    drained.add(queue.dequeue());
+                }
+                Uninterruptibly.run(writer::join);
+                assertEquals(capacity + 1, drained.size());
+                assertEquals(0, queue.size());
+            }
+        }
+    }
+
+    @Test
+    public void testDrainTo() {
+        BoundedRequestQueue<Integer> queue = new BoundedRequestQueue<>(QUEUE_SIZE);
+
+        ArrayList<Integer> drained = new ArrayList<>();
+        assertEquals(0, queue.drainTo(drained, BATCH_SIZE));
+
+        for (int i = 0; i < QUEUE_SIZE; i++) {
+            queue.enqueue(i);
+        }
+
+        assertEquals(BATCH_SIZE, queue.drainTo(drained, BATCH_SIZE));
+        assertEquals(QUEUE_SIZE - BATCH_SIZE, queue.size());
+        assertEquals(QUEUE_SIZE - BATCH_SIZE, queue.drainTo(drained, QUEUE_SIZE));
+        assertEquals(0, queue.size());
+
+        assertEquals(QUEUE_SIZE, drained.size());
+        for (int i = 0; i < QUEUE_SIZE; i++) {
+            assertEquals(i, (int) drained.get(i));
+        }
+
+        queue.enqueue(0);
+        queue.close();
+        assertEquals(0, queue.drainTo(drained, BATCH_SIZE));
+        assertFalse(queue.enqueue(1));
+    }
+
+    @Test
+    public void testBlockedProducers() {
+        BoundedRequestQueue<Integer> queue = new BoundedRequestQueue<>(2);
+
+        Thread[] writers = new Thread[NUM_THREADS];
+        for (int t = 0; t < NUM_THREADS; t++) {
+            int base = t * NUM;
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < NUM; i++) {
+                    queue.enqueue(base + i);
+                }
+            });
+            writers[t].start();
+        }
+
+        // Let the producers fill the queue and park
+        Uninterruptibly.sleep(LONG_SLEEP);
+        assertEquals(2, queue.size());
+
+        Set<Integer> dequeued = ConcurrentHashMap.newKeySet();
+        for (int i = 0; i < NUM_THREADS * NUM; i++) {
+            assertTrue(dequeued.add(queue.dequeue()));
+        }
+
+        for (Thread writer : writers) {
+            Uninterruptibly.run(writer::join);
+        }
+
+        assertEquals(0, queue.size());
+        assertEquals(NUM_THREADS * NUM, dequeued.size());
+    }
+
+    @Test
+    public void testConcurrentProducersAndConsumers() {
+        BoundedRequestQueue<Integer> queue = new BoundedRequestQueue<>(QUEUE_SIZE);
+
+        CountDownLatch latch = new CountDownLatch(1);
+        Set<Integer> dequeued = ConcurrentHashMap.newKeySet();
+        AtomicInteger duplicates = new AtomicInteger(0);
+        AtomicInteger remaining = new AtomicInteger(NUM_THREADS * NUM_PER_THREAD);
+
+        Thread[] threads = new Thread[NUM_THREADS * 2];
+        for (int t = 0; t < NUM_THREADS; t++) {
+            int base = t * NUM_PER_THREAD;
+            threads[t] = new Thread(() -> {
+                Uninterruptibly.run(latch::await);
+                for (int i = 0; i < NUM_PER_THREAD; i++) {
+                    queue.enqueue(base + i);
+                }
+            });
+            threads[NUM_THREADS + t] = new Thread(() -> {
+                Uninterruptibly.run(latch::await);
+                ArrayList<Integer> batch = new ArrayList<>();
+                while (remaining.get() > 0) {
+                    batch.clear();
+                    int n = queue.drainTo(batch, BATCH_SIZE);
+                    if (n == 0) {
+                        Thread.yield();
+                        continue;
+                    }
+                    for (Integer value : batch) {
+                        if (!dequeued.add(value)) {
+                            duplicates.incrementAndGet();
+                        }
+                    }
+                    remaining.addAndGet(-n);
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        latch.countDown();
+        for (Thread thread : threads) {
+            Uninterruptibly.run(thread::join);
+        }
+
+        assertEquals(0, duplicates.get());
+        assertEquals(0, remaining.get());
+        assertEquals(NUM_THREADS * NUM_PER_THREAD, dequeued.size());
+        assertEquals(0, queue.size());
+    }
+
+}
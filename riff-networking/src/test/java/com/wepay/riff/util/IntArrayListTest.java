@@ -0,0 +1,73 @@
+package com.wepay.riff.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IntArrayListTest {
+
+    @Test
+    public void testAddAndRemove() {
+        IntArrayList list = new IntArrayList(1);
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            list.addInt(i);
+            expected.add(i);
+        }
+        list.add(50, -1);
+        expected.add(50, -1);
+        assertEquals(Integer.valueOf(0), list.remove(0));
+        expected.remove(0);
+        assertEquals(-1, list.setInt(49, 0));
+        expected.set(49, 0);
+
+        assertEquals(expected, list);
+        assertEquals(list, expected);
+        assertEquals(expected.hashCode(), list.hashCode());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals((int) expected.get(i), list.getInt(i));
+        }
+
+        list.clear();
+        assertTrue(list.isEmpty());
+    }
+
+    @Test
+    public void testWrap() {
+        int[] array = {1, 2, 3};
+        IntArrayList list = new IntArrayList(array);
+        assertEquals(Arrays.asList(1, 2, 3), list);
+
+        // Growing the list copies the array
+        list.addInt(4);
+        assertEquals(Arrays.asList(1, 2, 3, 4), list);
+        assertTrue(Arrays.equals(new int[] {1, 2, 3, 4}, list.toIntArray()));
+        assertTrue(Arrays.equals(new int[] {1, 2, 3}, array));
+    }
+
+    @Test
+    public void testIndexOutOfBounds() {
+        IntArrayList list = new IntArrayList(new int[10]);
+        list.remove(9);
+        try {
+            // The capacity is larger than the size
+            list.getInt(9);
+            fail();
+        } catch (IndexOutOfBoundsException ex) {
+            // OK
+        }
+        try {
+            list.add(10, 0);
+            fail();
+        } catch (IndexOutOfBoundsException ex) {
+            // OK
+        }
+    }
+
+}